@@ -0,0 +1,122 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
+
+import uk.ac.open.kmi.parking.Parking.Availability;
+import uk.ac.open.kmi.parking.service.TileDownloaderThread.ParkingInformation;
+
+/**
+ * the server's side of ParkingTileCodec, which the app only ever decodes; it's built with the app's sources but kept out of the app
+ */
+class ParkingTileEncoder {
+    /**
+     * encodes the car parks of a supertile, this is what the server does when asked for ParkingTileCodec.MEDIA_TYPE
+     * @param parkings the car parks
+     * @return the encoded data
+     */
+    static byte[] encode(Collection<ParkingInformation> parkings) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(parkings.size() * 64);
+        out.write(ParkingTileCodec.MAGIC, 0, ParkingTileCodec.MAGIC.length);
+        writeVarint(out, ParkingTileCodec.VERSION);
+        writeVarint(out, parkings.size());
+
+        int late6 = 0, lone6 = 0;
+        long timestamp = 0;
+        String id = "", title = "", availabilityResource = "", updateResource = "";
+        for (ParkingInformation p : parkings) {
+            int flags = 0;
+            if (p.availability == Availability.AVAILABLE) {
+                flags |= ParkingTileCodec.AVAILABLE;
+            } else if (p.availability == Availability.FULL) {
+                flags |= ParkingTileCodec.FULL;
+            }
+            boolean hasTimestamp = p.timestamp != null && p.timestamp.longValue() != Long.MIN_VALUE;
+            if (hasTimestamp) {
+                flags |= ParkingTileCodec.HAS_TIMESTAMP;
+            }
+            if (p.unconfirmed) {
+                flags |= ParkingTileCodec.UNCONFIRMED;
+            }
+            // a title made up for a car park without one isn't sent
+            boolean hasTitle = p.title != null && p.titleProperty != null;
+            if (hasTitle) {
+                flags |= ParkingTileCodec.HAS_TITLE;
+            }
+            if (p.availabilityResource != null) {
+                flags |= ParkingTileCodec.HAS_AVAILABILITY_RESOURCE;
+            }
+            if (p.updateResource != null) {
+                flags |= ParkingTileCodec.HAS_UPDATE_RESOURCE;
+            }
+            out.write(flags);
+
+            writeSignedVarint(out, p.late6 - late6);
+            writeSignedVarint(out, p.lone6 - lone6);
+            late6 = p.late6;
+            lone6 = p.lone6;
+            if (hasTimestamp) {
+                writeSignedVarint(out, p.timestamp.longValue() - timestamp);
+                timestamp = p.timestamp.longValue();
+            }
+
+            id = writeString(out, p.id, id);
+            if (hasTitle) {
+                title = writeString(out, p.title, title);
+            }
+            if (p.availabilityResource != null) {
+                availabilityResource = writeString(out, p.availabilityResource, availabilityResource);
+            }
+            if (p.updateResource != null) {
+                updateResource = writeString(out, p.updateResource, updateResource);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeSignedVarint(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    // writes the string as the length of the prefix it shares with the previous one and the rest
+    private static String writeString(ByteArrayOutputStream out, String value, String previous) {
+        int shared = 0;
+        int max = Math.min(value.length(), previous.length());
+        while (shared < max && value.charAt(shared) == previous.charAt(shared)) {
+            shared++;
+        }
+        if (shared > 0 && Character.isHighSurrogate(value.charAt(shared-1))) {
+            // don't split a surrogate pair, the rest wouldn't be valid UTF-8
+            shared--;
+        }
+        byte[] rest = value.substring(shared).getBytes(ParkingTileCodec.UTF8);
+        writeVarint(out, shared);
+        writeVarint(out, rest.length);
+        out.write(rest, 0, rest.length);
+        return value;
+    }
+}
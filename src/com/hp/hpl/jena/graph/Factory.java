@@ -6,8 +6,11 @@
 
 package com.hp.hpl.jena.graph;
 
+import com.hp.hpl.jena.mem.FrozenGraph;
+import com.hp.hpl.jena.mem.GraphMemCompact;
 import com.hp.hpl.jena.mem.faster.GraphMemFaster;
 import com.hp.hpl.jena.shared.*;
+import com.hp.hpl.jena.shared.impl.JenaParameters;
 
 /**
     A factory class for creating Graphs.
@@ -33,10 +36,32 @@ public class Factory
         { return Factory.createGraphMem( style ); }
               
     public static Graph createGraphMem()
-        { return new GraphMemFaster(); }
+        { return createGraphMem( ReificationStyle.Minimal ); }
 
+    /**
+        Answer a memory-based Graph with the given reification style: a
+        GraphMemCompact if JenaParameters.enableCompactGraphMem is set,
+        otherwise a GraphMemFaster.
+    */
     public static Graph createGraphMem( ReificationStyle style )
-        { return new GraphMemFaster( style ); }
+        { 
+        return JenaParameters.enableCompactGraphMem 
+            ? createCompactGraphMem( style ) : new GraphMemFaster( style ); 
+        }
+
+    /**
+        Answer a memory-based Graph which keeps its triples as dictionary-encoded
+        ints, so it needs much less memory than the default GraphMemFaster.
+    */
+    public static Graph createCompactGraphMem( ReificationStyle style )
+        { return new GraphMemCompact( style ); }
+
+    /**
+        Answer an immutable copy of the graph <code>g</code>, which needs much
+        less memory than a GraphMem and can be read by many threads at once.
+    */
+    public static Graph createFrozenGraph( Graph g )
+        { return new FrozenGraph( g ); }
 
     public static Graph createGraphMemWithTransactionHandler( final TransactionHandler th )
         {
@@ -27,8 +27,6 @@ import com.hp.hpl.jena.shared.PrefixMapping;
 public abstract class Node {
     
     final protected Object label;
-    static final int THRESHOLD = 10000;
-    
     static final NodeCache present = new NodeCache(); 
     
     /**
@@ -259,7 +257,7 @@ public abstract class Node {
     /* package visibility only */ Node( Object label ) 
         { this.label = label; }
         
-    static private boolean caching = true;
+    static private volatile boolean caching = true;
     
     /**
         provided only for testing purposes. _cache(false)_ switches off caching and
@@ -276,10 +274,10 @@ public abstract class Node {
         We object strongly to null labels: for example, they make .equals flaky. We reuse nodes 
         from the recent cache if we can. Otherwise, the maker knows how to construct a new
         node of the correct class, and we add that node to the cache. create is
-        synchronised to avoid threading problems - a separate thread might zap the
-        cache entry that get is currently looking at.
+        not synchronised: the cache itself is safe for concurrent use, so the
+        threads parsing at the same time don't queue up on a single lock.
     */
-    public static synchronized Node create( NodeMaker maker, Object label )
+    public static Node create( NodeMaker maker, Object label )
         {
         if (label == null) throw new JenaException( "Node.make: null label" );
         Node node = present.get( label );
@@ -288,14 +286,11 @@ public abstract class Node {
         
     /**
          cache the node <code>n</code> under the key <code>label</code>,
-         and return that node.
+         and return that node, or the node with the same label that another
+         thread cached in the meantime.
     */
     private static Node cacheNewNode( Object label, Node n )
-        { 
-        if (present.size() > THRESHOLD) { /* System.err.println( "> trashing node cache" ); */ present.clear(); }
-        if (caching) present.put( label, n );
-        return n;
-        }
+        { return caching ? present.putIfAbsent( label, n ) : n; }
         
 	/**
 		Nodes only equal other Nodes that have equal labels.
@@ -6,6 +6,8 @@
 
 package com.hp.hpl.jena.graph;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 /**
     A NodeCache caches nodes according to their labels, to reduce store turnover
     at the expense of some additional computation. The cache is represented as an
@@ -13,6 +15,11 @@ package com.hp.hpl.jena.graph;
     Only the most recent node with any given reduced hash is kept. This tactic
     means that we don't need to have any explicit cache-clearing code in normal
     oepration.
+    <p>
+    The cache is safe to use from many threads without locking: every slot is
+    read once and replaced with compare-and-set, so a thread never sees a
+    half-published node, and two threads creating a node for the same label at
+    the same time end up sharing one of them.
      
 	@author kers
  */
@@ -27,7 +34,7 @@ public class NodeCache
     /**
         The cache nodes, indexed by their label's reduced hash.
     */
-    protected final Node [] nodes = new Node [SIZE];
+    protected final AtomicReferenceArray<Node> nodes = new AtomicReferenceArray<Node>( SIZE );
     
     protected static final boolean counting = false;
     
@@ -35,7 +42,7 @@ public class NodeCache
         Wipe the cache of all entries.
     */
     public void clear()
-        { for (int i = 0; i < SIZE; i += 1) nodes[i] = null; }
+        { for (int i = 0; i < SIZE; i += 1) nodes.set( i, null ); }
     
     public int size()
         { return 0; }
@@ -49,7 +56,7 @@ public class NodeCache
     private int count()
         {
         int result = 0;
-        for (int i = 0; i < SIZE; i += 1) if (nodes[i] != null) result += 1;
+        for (int i = 0; i < SIZE; i += 1) if (nodes.get( i ) != null) result += 1;
         return result;
         }
     
@@ -61,7 +68,7 @@ public class NodeCache
     */
     public Node get( Object label )
         {
-        Node present = nodes[(label.hashCode() & 0x7fffffff) % SIZE]; 
+        Node present = nodes.get( slot( label ) ); 
         if (counting)
             {
             if (present == null || !label.equals( present.label )) misses += 1; else hits += 1;
@@ -77,8 +84,27 @@ public class NodeCache
     */
     public void put( Object label, Node cached )
         {
-        nodes[(label.hashCode() & 0x7fffffff) % SIZE] = cached;
+        nodes.set( slot( label ), cached );
         }
+    
+    /**
+         Record in the cache the designated Node, unless a node with the same
+         label got there first, in which case answer that node instead. The
+         <code>label</code> must be .equals() to the Node's label.
+    */
+    public Node putIfAbsent( Object label, Node cached )
+        {
+        int slot = slot( label );
+        for (;;)
+            {
+            Node present = nodes.get( slot );
+            if (present != null && label.equals( present.label )) return present;
+            if (nodes.compareAndSet( slot, present, cached )) return cached;
+            }
+        }
+    
+    private static int slot( Object label )
+        { return (label.hashCode() & 0x7fffffff) % SIZE; }
     }
 
 /*
@@ -0,0 +1,499 @@
+/*
+    (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+    All rights reserved - see end of file.
+*/
+
+package com.hp.hpl.jena.mem;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+import com.hp.hpl.jena.graph.*;
+import com.hp.hpl.jena.graph.impl.TripleStore;
+import com.hp.hpl.jena.util.iterator.*;
+
+/**
+    A CompactTripleStore keeps its triples as ints rather than as Triple
+    objects. Every node gets an id from a NodeDictionary, and each triple is a
+    row of three ids, one in each of the subject, predicate and object Columns.
+    For every node id, a Column also keeps the rows which have that node in its
+    field, so a find with any concrete field goes straight to the rows it needs.
+    Triple objects are only made as a find's iterator hands them out.
+<p>
+    A node's rows are in no particular order, and a removed row's place in
+    each list is taken by the last row of that list, so adding and removing a
+    triple cost the same however many triples share its nodes, apart from the
+    check for duplicates, which scans the shortest of the triple's three lists.
+<p>
+    Per triple this is six ints plus about three list entries, and per node a
+    dictionary slot and two or three ints, against a Triple object and three
+    hashed bunch entries for the NodeToTriplesMaps.
+*/
+public class CompactTripleStore implements TripleStore
+    {
+    protected final Graph parent;
+    protected final NodeDictionary dictionary = new NodeDictionary();
+    protected final Column subjects = new Column();
+    protected final Column predicates = new Column();
+    protected final Column objects = new Column();
+
+    /**
+        All rows below limit have been used at some time. A free row has -1 as
+        its subject id, and the next free row (or -1) as its subject position.
+    */
+    protected int limit = 0;
+
+    /**
+        The most recently freed row, or -1 if no row below limit is free.
+    */
+    protected int free = -1;
+
+    /**
+        The number of triples in this store.
+    */
+    protected int size = 0;
+
+    /**
+        A count of the changes to this store, for detecting concurrent
+        modification while iterating.
+    */
+    protected int changes = 0;
+
+    public CompactTripleStore( Graph parent )
+        { this.parent = parent; }
+
+    /**
+        Destroy this triple store - discard the columns and the dictionary.
+    */
+    public void close()
+        { clear(); }
+
+    /**
+        Add a triple to this triple store, unless it's already there.
+    */
+    public void add( Triple t )
+        {
+        int s = dictionary.intern( t.getSubject() );
+        int p = dictionary.intern( t.getPredicate() );
+        int o = dictionary.intern( t.getObject() );
+        if (findRow( s, p, o ) >= 0) return;
+        int row = newRow();
+        subjects.add( row, s );
+        predicates.add( row, p );
+        objects.add( row, o );
+        size += 1;
+        changes += 1;
+        }
+
+    /**
+        Remove a triple from this triple store, if it's there.
+    */
+    public void delete( Triple t )
+        {
+        int s = dictionary.lookup( t.getSubject() );
+        int p = dictionary.lookup( t.getPredicate() );
+        int o = dictionary.lookup( t.getObject() );
+        if (s < 0 || p < 0 || o < 0) return;
+        int row = findRow( s, p, o );
+        if (row >= 0) removeRow( row );
+        }
+
+    /**
+        Answer the size (number of triples) of this triple store.
+    */
+    public int size()
+        { return size; }
+
+    /**
+        Answer true iff this triple store is empty.
+    */
+    public boolean isEmpty()
+        { return size == 0; }
+
+    /**
+        Answer true iff this triple store contains the (concrete) triple
+        <code>t</code>, with literals matched by sameValueAs.
+    */
+    public boolean contains( Triple t )
+        {
+        ExtendedIterator<Triple> it = find( t );
+        try { return it.hasNext(); } finally { it.close(); }
+        }
+
+    public ExtendedIterator<Node> listSubjects()
+        { return nodesIn( subjects ); }
+
+    public ExtendedIterator<Node> listPredicates()
+        { return nodesIn( predicates ); }
+
+    public ExtendedIterator<Node> listObjects()
+        { return nodesIn( objects ); }
+
+    /**
+        Answer an ExtendedIterator returning all the triples from this store that
+        match the pattern <code>m = (S, P, O)</code>. Concrete literals match by
+        sameValueAs, so they may stand for several ids. Of the concrete fields,
+        the one whose ids have the fewest rows is the one walked.
+    */
+    public ExtendedIterator<Triple> find( TripleMatch tm )
+        {
+        Triple t = tm.asTriple();
+        int [] S = idsFor( t.getSubject() ), P = idsFor( t.getPredicate() ), O = idsFor( t.getObject() );
+        if (S == NodeDictionary.NONE || P == NodeDictionary.NONE || O == NodeDictionary.NONE)
+            return NullIterator.<Triple>instance();
+        Column column = null;
+        int [] ids = null;
+        long fewest = Long.MAX_VALUE;
+        if (S != null && subjects.count( S ) < fewest)
+            { column = subjects; ids = S; fewest = subjects.count( S ); }
+        if (O != null && objects.count( O ) < fewest)
+            { column = objects; ids = O; fewest = objects.count( O ); }
+        if (P != null && predicates.count( P ) < fewest)
+            { column = predicates; ids = P; }
+        return new RowIterator( column, ids, S, P, O );
+        }
+
+    /**
+        Clear this store, ie remove all triples from it.
+    */
+    public void clear()
+        {
+        dictionary.clear();
+        subjects.clear();
+        predicates.clear();
+        objects.clear();
+        limit = size = 0;
+        free = -1;
+        changes += 1;
+        }
+
+    /**
+        Answer null for a wildcard, else the ids that match <code>n</code>.
+    */
+    protected int [] idsFor( Node n )
+        { return n.isConcrete() ? dictionary.lookupSameValue( n ) : null; }
+
+    /**
+        Answer the row of the triple with exactly these ids, or -1 if there's
+        no such triple.
+    */
+    protected int findRow( int s, int p, int o )
+        {
+        int cs = subjects.count( s ), cp = predicates.count( p ), co = objects.count( o );
+        if (cs <= cp && cs <= co) return subjects.find( s, predicates, p, objects, o );
+        if (co <= cp) return objects.find( o, subjects, s, predicates, p );
+        return predicates.find( p, subjects, s, objects, o );
+        }
+
+    protected int newRow()
+        {
+        if (free >= 0)
+            {
+            int row = free;
+            free = subjects.posOf[row];
+            return row;
+            }
+        subjects.ensureRows( limit + 1 );
+        predicates.ensureRows( limit + 1 );
+        objects.ensureRows( limit + 1 );
+        return limit++;
+        }
+
+    protected void removeRow( int row )
+        {
+        int s = subjects.nodeOf[row], p = predicates.nodeOf[row], o = objects.nodeOf[row];
+        subjects.remove( row );
+        predicates.remove( row );
+        objects.remove( row );
+        removeIfUnused( s );
+        removeIfUnused( p );
+        removeIfUnused( o );
+        subjects.nodeOf[row] = -1;
+        subjects.posOf[row] = free;
+        free = row;
+        size -= 1;
+        changes += 1;
+        }
+
+    protected void removeIfUnused( int id )
+        {
+        if (subjects.count( id ) == 0 && predicates.count( id ) == 0 && objects.count( id ) == 0)
+            dictionary.remove( id );
+        }
+
+    protected Triple triple( int row )
+        {
+        return new Triple
+            (
+            dictionary.get( subjects.nodeOf[row] ),
+            dictionary.get( predicates.nodeOf[row] ),
+            dictionary.get( objects.nodeOf[row] )
+            );
+        }
+
+    protected static boolean matches( int [] ids, Column column, int row )
+        {
+        if (ids == null) return true;
+        int id = column.nodeOf[row];
+        for (int i = 0; i < ids.length; i += 1) if (ids[i] == id) return true;
+        return false;
+        }
+
+    /**
+        Answer an iterator over the distinct nodes which appear in the field
+        <code>column</code> of some triple.
+    */
+    protected ExtendedIterator<Node> nodesIn( final Column column )
+        {
+        return new NiceIterator<Node>()
+            {
+            protected final int expected = changes;
+            protected int id = 0;
+
+            @Override public boolean hasNext()
+                {
+                if (changes != expected) throw new ConcurrentModificationException();
+                int limit = dictionary.limit();
+                while (id < limit && column.count( id ) == 0) id += 1;
+                return id < limit;
+                }
+
+            @Override public Node next()
+                {
+                if (!hasNext()) noElements( "no more nodes" );
+                return dictionary.get( id++ );
+                }
+            };
+        }
+
+    /**
+        An iterator over the rows listed in one column for some ids, or over
+        all the rows if there's no column, handing out as Triples the rows whose
+        other fields match too. The lists are walked from the end, so removing
+        the current triple, which moves a row that's already been seen into its
+        place, doesn't make the iterator miss anything.
+    */
+    protected class RowIterator extends NiceIterator<Triple>
+        {
+        protected final Column column;
+        protected final int [] ids, S, P, O;
+        protected int expected = changes;
+        protected int k = 0;
+        protected int pos;
+        protected int next = -1;
+        protected int current = -1;
+
+        protected RowIterator( Column column, int [] ids, int [] S, int [] P, int [] O )
+            {
+            this.column = column;
+            this.ids = ids;
+            this.S = S; this.P = P; this.O = O;
+            this.pos = column == null ? limit - 1 : column.count( ids[0] ) - 1;
+            }
+
+        @Override public boolean hasNext()
+            {
+            if (changes != expected) throw new ConcurrentModificationException();
+            while (next < 0)
+                {
+                int row;
+                if (column == null)
+                    {
+                    if (pos < 0) return false;
+                    row = pos--;
+                    if (subjects.nodeOf[row] < 0) continue;
+                    }
+                else
+                    {
+                    while (pos < 0)
+                        {
+                        if (k + 1 >= ids.length) return false;
+                        pos = column.count( ids[++k] ) - 1;
+                        }
+                    row = column.rowAt( ids[k], pos-- );
+                    }
+                if (matches( S, subjects, row ) && matches( P, predicates, row ) && matches( O, objects, row ))
+                    next = row;
+                }
+            return true;
+            }
+
+        @Override public Triple next()
+            {
+            if (!hasNext()) noElements( "no more triples" );
+            current = next;
+            next = -1;
+            return triple( current );
+            }
+
+        @Override public void remove()
+            {
+            if (current < 0) throw new IllegalStateException( "no current triple to remove" );
+            if (changes != expected) throw new ConcurrentModificationException();
+            Triple t = triple( current );
+            removeRow( current );
+            expected = changes;
+            current = -1;
+            parent.getEventManager().notifyDeleteTriple( parent, t );
+            }
+        }
+
+    /**
+        One field of the triples: the node id of every row, and for every node
+        id the rows which have it. A node's first row is kept apart from the
+        rest, so the many nodes which appear in only one triple need no array
+        of their own.
+    */
+    protected static class Column
+        {
+        /**
+            The node id in this field of each row, and the row's position in
+            that node's list.
+        */
+        protected int [] nodeOf, posOf;
+
+        /**
+            For each node id, its first row (-1 if it has none), and the rest of
+            its rows (null if it has none) after their count in element 0.
+        */
+        protected int [] firstRow;
+        protected int [][] moreRows;
+
+        protected Column()
+            { clear(); }
+
+        protected void clear()
+            {
+            nodeOf = new int[16];
+            posOf = new int[16];
+            firstRow = new int[0];
+            moreRows = new int[0][];
+            }
+
+        protected int count( int node )
+            {
+            if (node >= firstRow.length || firstRow[node] < 0) return 0;
+            int [] more = moreRows[node];
+            return more == null ? 1 : 1 + more[0];
+            }
+
+        protected long count( int [] nodes )
+            {
+            long result = 0;
+            for (int i = 0; i < nodes.length; i += 1) result += count( nodes[i] );
+            return result;
+            }
+
+        protected int rowAt( int node, int pos )
+            { return pos == 0 ? firstRow[node] : moreRows[node][pos]; }
+
+        protected void ensureRows( int capacity )
+            {
+            if (capacity > nodeOf.length)
+                {
+                int newLength = nodeOf.length + (nodeOf.length >> 1);
+                nodeOf = NodeDictionary.copyOf( nodeOf, newLength );
+                posOf = NodeDictionary.copyOf( posOf, newLength );
+                }
+            }
+
+        protected void add( int row, int node )
+            {
+            if (node >= firstRow.length) ensureNodes( node + 1 );
+            int pos = count( node );
+            if (pos == 0)
+                firstRow[node] = row;
+            else
+                {
+                int [] more = moreRows[node];
+                if (more == null)
+                    moreRows[node] = more = new int[3];
+                else if (pos == more.length)
+                    moreRows[node] = more = NodeDictionary.copyOf( more, pos + (pos >> 1) + 1 );
+                more[pos] = row;
+                more[0] = pos;
+                }
+            nodeOf[row] = node;
+            posOf[row] = pos;
+            }
+
+        /**
+            Remove the row from its node's list, moving the node's last row into
+            its place.
+        */
+        protected void remove( int row )
+            {
+            int node = nodeOf[row], pos = posOf[row], last = count( node ) - 1;
+            if (pos < last)
+                {
+                int moved = rowAt( node, last );
+                if (pos == 0) firstRow[node] = moved; else moreRows[node][pos] = moved;
+                posOf[moved] = pos;
+                }
+            if (last == 0)
+                firstRow[node] = -1;
+            else if (last == 1)
+                moreRows[node] = null;
+            else
+                {
+                int [] more = moreRows[node];
+                more[0] = last - 1;
+                if (last * 4 < more.length) moreRows[node] = NodeDictionary.copyOf( more, last * 2 );
+                }
+            }
+
+        /**
+            Answer the row in the list of <code>node</code> which has
+            <code>x</code> in column <code>a</code> and <code>y</code> in
+            column <code>b</code>, or -1 if there's none.
+        */
+        protected int find( int node, Column a, int x, Column b, int y )
+            {
+            int n = count( node );
+            for (int pos = 0; pos < n; pos += 1)
+                {
+                int row = rowAt( node, pos );
+                if (a.nodeOf[row] == x && b.nodeOf[row] == y) return row;
+                }
+            return -1;
+            }
+
+        protected void ensureNodes( int capacity )
+            {
+            int oldLength = firstRow.length;
+            int newLength = Math.max( capacity, oldLength + (oldLength >> 1) );
+            firstRow = NodeDictionary.copyOf( firstRow, newLength );
+            Arrays.fill( firstRow, oldLength, newLength, -1 );
+            int [][] newMore = new int[newLength][];
+            System.arraycopy( moreRows, 0, newMore, 0, oldLength );
+            moreRows = newMore;
+            }
+        }
+    }
+
+/*
+ * (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
\ No newline at end of file
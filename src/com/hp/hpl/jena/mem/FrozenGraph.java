@@ -0,0 +1,376 @@
+/*
+    (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+    All rights reserved - see end of file.
+*/
+
+package com.hp.hpl.jena.mem;
+
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.graph.*;
+import com.hp.hpl.jena.graph.impl.*;
+import com.hp.hpl.jena.shared.ReificationStyle;
+import com.hp.hpl.jena.util.iterator.*;
+
+/**
+    A FrozenGraph is an immutable copy of some other graph, for data that is
+    only read once it's loaded (eg a vocabulary or presentation ontology).
+    The nodes are kept in a NodeDictionary and each triple is three int ids,
+    in columns sorted SPO; two more int arrays give the rows in POS and OSP
+    order. So a triple costs twenty bytes, and a find is a binary search for
+    the range of rows which match its concrete nodes.
+<p>
+    Adds and deletes throw AddDeniedException and DeleteDeniedException.
+    Nothing in a FrozenGraph changes after construction, so once it has been
+    safely published any number of threads can read it without locking.
+*/
+public class FrozenGraph extends GraphBase
+    {
+    /**
+        The nodes of this graph's triples.
+    */
+    protected final NodeDictionary dictionary;
+
+    /**
+        The number of triples in this graph.
+    */
+    protected final int size;
+
+    /**
+        The ids of the subjects, predicates and objects of the triples, each
+        triple a row, the rows sorted by subject, predicate, object.
+    */
+    protected final int [] subjects, predicates, objects;
+
+    /**
+        The three orders in which a find can search the rows.
+    */
+    protected final Index bySubject, byPredicate, byObject;
+
+    /**
+        Initialise this FrozenGraph with a copy of all the triples of
+        <code>g</code> and its prefixes. The prefix mapping isn't locked (a
+        ModelCom adds its default prefixes to it), but only the triples are
+        frozen.
+    */
+    public FrozenGraph( Graph g )
+        {
+        this( rowsOf( g ) );
+        pm.setNsPrefixes( g.getPrefixMapping() );
+        }
+
+    /**
+        Initialise this FrozenGraph with the triples in <code>rows</code>, which
+        may be in any order and may repeat. The rows are not changed.
+    */
+    protected FrozenGraph( Rows rows )
+        {
+        super( ReificationStyle.Minimal );
+        NodeDictionary d = rows.dictionary;
+        int [] s = rows.subjects, p = rows.predicates, o = rows.objects;
+        int count = rows.count, range = d.limit();
+        int [] order = sortedRows( count, range, s, p, o );
+        int [] S = new int[count], P = new int[count], O = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i += 1)
+            {
+            int row = order[i];
+            if (n > 0 && s[row] == S[n - 1] && p[row] == P[n - 1] && o[row] == O[n - 1]) continue;
+            S[n] = s[row]; P[n] = p[row]; O[n] = o[row];
+            n += 1;
+            }
+        if (n < count)
+            {
+            S = NodeDictionary.copyOf( S, n );
+            P = NodeDictionary.copyOf( P, n );
+            O = NodeDictionary.copyOf( O, n );
+            }
+        dictionary = d;
+        size = n;
+        subjects = S;
+        predicates = P;
+        objects = O;
+        bySubject = new Index( null, S, P, O );
+        byPredicate = new Index( sortedRows( n, range, P, O, S ), P, O, S );
+        byObject = new Index( sortedRows( n, range, O, S, P ), O, S, P );
+        // allocate GraphBase's lazy parts now, so that readers never race to do it
+        getReifier();
+        getCapabilities();
+        queryHandler();
+        }
+
+    /**
+        A FrozenGraph can't be updated, so its capabilities say so.
+    */
+    @Override public Capabilities getCapabilities()
+        {
+        if (capabilities == null) capabilities = new AllCapabilities()
+            {
+            @Override public boolean addAllowed( boolean every ) { return false; }
+            @Override public boolean deleteAllowed( boolean every ) { return false; }
+            @Override public boolean iteratorRemoveAllowed() { return false; }
+            };
+        return capabilities;
+        }
+
+    @Override public int graphBaseSize()
+        { return size; }
+
+    /**
+        Answer an iterator over the triples that match <code>m</code>, found
+        with the index whose leading fields are the concrete nodes of
+        <code>m</code>.
+    */
+    @Override public ExtendedIterator<Triple> graphBaseFind( TripleMatch m )
+        {
+        Triple t = m.asTriple();
+        int [] S = idsFor( t.getSubject() ), P = idsFor( t.getPredicate() ), O = idsFor( t.getObject() );
+        if (S == NodeDictionary.NONE || P == NodeDictionary.NONE || O == NodeDictionary.NONE)
+            return NullIterator.<Triple>instance();
+        if (S != null)
+            return O != null && P == null
+                ? byObject.find( new int [][] { O, S } )
+                : bySubject.find( P == null ? new int [][] { S } : O == null ? new int [][] { S, P } : new int [][] { S, P, O } );
+        if (P != null)
+            return byPredicate.find( O == null ? new int [][] { P } : new int [][] { P, O } );
+        return byObject.find( O == null ? new int [0][] : new int [][] { O } );
+        }
+
+    /**
+        Answer true iff this graph contains <code>t</code>. A concrete triple
+        with a non-literal object can be looked up by equality in the SPO index;
+        anything else is done by find.
+    */
+    @Override public boolean graphBaseContains( Triple t )
+        {
+        if (!t.isConcrete() || t.getObject().isLiteral()) return containsByFind( t );
+        int s = dictionary.lookup( t.getSubject() ), p = dictionary.lookup( t.getPredicate() ), o = dictionary.lookup( t.getObject() );
+        if (s < 0 || p < 0 || o < 0) return false;
+        int [] values = new int[] { s, p, o };
+        int from = bySubject.bound( values, 3, 0, false );
+        return from < size && bySubject.compare( from, values, 3 ) == 0;
+        }
+
+    /**
+        Answer the ids of the nodes that match <code>n</code>: null for a
+        wildcard, which matches anything.
+    */
+    protected int [] idsFor( Node n )
+        { return n.isConcrete() ? dictionary.lookupSameValue( n ) : null; }
+
+    protected Triple tripleAt( int row )
+        {
+        return new Triple
+            ( dictionary.get( subjects[row] ), dictionary.get( predicates[row] ), dictionary.get( objects[row] ) );
+        }
+
+    /**
+        Answer the triples of <code>g</code> as rows of ids in a new dictionary.
+    */
+    protected static Rows rowsOf( Graph g )
+        {
+        Rows rows = new Rows( g.size() );
+        NodeDictionary d = rows.dictionary;
+        ExtendedIterator<Triple> it = GraphUtil.findAll( g );
+        try
+            {
+            while (it.hasNext())
+                {
+                Triple t = it.next();
+                rows.add( d.intern( t.getSubject() ), d.intern( t.getPredicate() ), d.intern( t.getObject() ) );
+                }
+            }
+        finally
+            { it.close(); }
+        return rows;
+        }
+
+    /**
+        Answer the rows 0 to <code>count</code> - 1 sorted by the ids in
+        <code>first</code>, then <code>second</code>, then <code>third</code>,
+        all of which are below <code>range</code>: a radix sort, one stable
+        counting sort per column starting with the last.
+    */
+    protected static int [] sortedRows( int count, int range, int [] first, int [] second, int [] third )
+        {
+        int [] rows = new int[count];
+        for (int i = 0; i < count; i += 1) rows[i] = i;
+        return sortBy( sortBy( sortBy( rows, third, range ), second, range ), first, range );
+        }
+
+    protected static int [] sortBy( int [] rows, int [] key, int range )
+        {
+        int [] starts = new int[range + 1];
+        for (int i = 0; i < rows.length; i += 1) starts[key[rows[i]] + 1] += 1;
+        for (int i = 0; i < range; i += 1) starts[i + 1] += starts[i];
+        int [] result = new int[rows.length];
+        for (int i = 0; i < rows.length; i += 1) result[starts[key[rows[i]]]++] = rows[i];
+        return result;
+        }
+
+    /**
+        The triples a FrozenGraph is made from, as rows of ids of the nodes in
+        <code>dictionary</code>, in any order.
+    */
+    protected static class Rows
+        {
+        protected final NodeDictionary dictionary = new NodeDictionary();
+        protected int [] subjects, predicates, objects;
+        protected int count = 0;
+
+        protected Rows( int capacity )
+            {
+            subjects = new int[Math.max( capacity, 16 )];
+            predicates = new int[subjects.length];
+            objects = new int[subjects.length];
+            }
+
+        protected void add( int s, int p, int o )
+            {
+            if (count == subjects.length)
+                {
+                int capacity = count + (count >> 1);
+                subjects = NodeDictionary.copyOf( subjects, capacity );
+                predicates = NodeDictionary.copyOf( predicates, capacity );
+                objects = NodeDictionary.copyOf( objects, capacity );
+                }
+            subjects[count] = s;
+            predicates[count] = p;
+            objects[count] = o;
+            count += 1;
+            }
+        }
+
+    /**
+        An order of the rows: <code>rows</code> lists them (null meaning the rows
+        as they are, for SPO) sorted by the ids in <code>keys</code>, first key
+        first.
+    */
+    protected class Index
+        {
+        protected final int [] rows;
+        protected final int [][] keys;
+
+        protected Index( int [] rows, int [] ... keys )
+            {
+            this.rows = rows;
+            this.keys = keys;
+            }
+
+        protected int rowAt( int i )
+            { return rows == null ? i : rows[i]; }
+
+        /**
+            Answer an iterator over the rows whose first <code>ids.length</code>
+            keys are one of the corresponding <code>ids</code>. Each combination
+            of ids is its own range of this index.
+        */
+        protected ExtendedIterator<Triple> find( int [][] ids )
+            {
+            int n = ids.length, combinations = 1;
+            for (int k = 0; k < n; k += 1) combinations *= ids[k].length;
+            int [] ranges = new int[combinations * 2];
+            int [] values = new int[n];
+            for (int c = 0; c < combinations; c += 1)
+                {
+                for (int k = n - 1, rest = c; k >= 0; k -= 1)
+                    {
+                    values[k] = ids[k][rest % ids[k].length];
+                    rest /= ids[k].length;
+                    }
+                int from = bound( values, n, 0, false );
+                ranges[c * 2] = from;
+                ranges[c * 2 + 1] = bound( values, n, from, true );
+                }
+            return new RangeIterator( this, ranges );
+            }
+
+        /**
+            Answer the first index at or after <code>from</code> whose row's first
+            <code>n</code> keys are not less than (or, if <code>upper</code>, are
+            greater than) <code>values</code>.
+        */
+        protected int bound( int [] values, int n, int from, boolean upper )
+            {
+            int lo = from, hi = size;
+            while (lo < hi)
+                {
+                int mid = (lo + hi) >>> 1;
+                int c = compare( mid, values, n );
+                if (c < 0 || upper && c == 0) lo = mid + 1; else hi = mid;
+                }
+            return lo;
+            }
+
+        protected int compare( int i, int [] values, int n )
+            {
+            int row = rowAt( i );
+            for (int k = 0; k < n; k += 1)
+                {
+                int d = keys[k][row] - values[k];
+                if (d != 0) return d;
+                }
+            return 0;
+            }
+        }
+
+    /**
+        An iterator over the triples of some ranges of an index, each range a
+        pair of (from, to) positions in <code>ranges</code>.
+    */
+    protected class RangeIterator extends NiceIterator<Triple>
+        {
+        protected final Index index;
+        protected final int [] ranges;
+        protected int next = 0, i = 0, end = 0;
+
+        protected RangeIterator( Index index, int [] ranges )
+            {
+            this.index = index;
+            this.ranges = ranges;
+            }
+
+        @Override public boolean hasNext()
+            {
+            while (i >= end && next < ranges.length)
+                {
+                i = ranges[next++];
+                end = ranges[next++];
+                }
+            return i < end;
+            }
+
+        @Override public Triple next()
+            {
+            if (!hasNext()) throw new NoSuchElementException( "FrozenGraph find next()" );
+            return tripleAt( index.rowAt( i++ ) );
+            }
+        }
+    }
+
+/*
+ * (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
\ No newline at end of file
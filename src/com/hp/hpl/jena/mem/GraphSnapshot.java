@@ -0,0 +1,245 @@
+/*
+    (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+    All rights reserved - see end of file.
+*/
+
+package com.hp.hpl.jena.mem;
+
+import java.io.*;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.*;
+import com.hp.hpl.jena.rdf.model.*;
+import com.hp.hpl.jena.shared.*;
+import com.hp.hpl.jena.util.FileUtils;
+
+/**
+    Reads and writes graph snapshots: a binary form of a FrozenGraph which
+    can be read back without any parsing. A snapshot holds the prefixes, the
+    nodes (each once) and the triples as rows of node indexes. It also records
+    the checksum of the document it was made from, and the base it was read
+    with, so that a reader can tell when the snapshot is stale and the source
+    must be parsed after all.
+<p>
+    The snapshot of a document <code>foo.ttl</code> is conventionally kept next
+    to it as <code>foo.ttl.snapshot</code>, where FileManager will find it; the
+    main method here makes one.
+*/
+public class GraphSnapshot
+    {
+    /**
+        The suffix added to a document's name to make the name of its snapshot.
+    */
+    public static final String EXTENSION = ".snapshot";
+
+    protected static final int MAGIC = 0x4a534e50, VERSION = 1;
+
+    protected static final byte URI = 'U', BLANK = 'B', LITERAL = 'L';
+
+    private GraphSnapshot()
+        {}
+
+    /**
+        Write a snapshot of <code>g</code> to <code>out</code>, recording that it
+        was read with base <code>base</code> from a document with checksum
+        <code>source</code> (either of which may be null or -1 if unknown).
+        <code>out</code> is flushed but not closed.
+    */
+    public static void write( Graph g, String base, long source, OutputStream out )
+        {
+        FrozenGraph f = g instanceof FrozenGraph ? (FrozenGraph) g : new FrozenGraph( g );
+        try
+            {
+            DataOutputStream data = new DataOutputStream( new BufferedOutputStream( out ) );
+            data.writeInt( MAGIC );
+            data.writeInt( VERSION );
+            data.writeLong( source );
+            writeString( data, base == null ? "" : base );
+            Map<String, String> prefixes = g.getPrefixMapping().getNsPrefixMap();
+            data.writeInt( prefixes.size() );
+            for (Map.Entry<String, String> e: prefixes.entrySet())
+                {
+                writeString( data, e.getKey() );
+                writeString( data, e.getValue() );
+                }
+            NodeDictionary d = f.dictionary;
+            data.writeInt( d.limit() );
+            data.writeInt( f.size );
+            for (int id = 0; id < d.limit(); id += 1) writeNode( data, d.get( id ) );
+            for (int row = 0; row < f.size; row += 1)
+                {
+                data.writeInt( f.subjects[row] );
+                data.writeInt( f.predicates[row] );
+                data.writeInt( f.objects[row] );
+                }
+            data.flush();
+            }
+        catch (IOException e)
+            { throw new WrappedIOException( e ); }
+        }
+
+    /**
+        Answer the FrozenGraph in the snapshot read from <code>in</code>, or null
+        if the snapshot was made with a base other than <code>base</code> or from
+        a document whose checksum isn't <code>source</code>; a null base or
+        negative source accepts any. <code>in</code> is not closed.
+    */
+    public static FrozenGraph read( InputStream in, String base, long source )
+        {
+        try
+            {
+            DataInputStream data = new DataInputStream( new BufferedInputStream( in ) );
+            if (data.readInt() != MAGIC) throw new JenaException( "not a graph snapshot" );
+            int version = data.readInt();
+            if (version != VERSION) throw new JenaException( "unknown graph snapshot version " + version );
+            long madeFrom = data.readLong();
+            String madeWith = readString( data );
+            if (source >= 0 && madeFrom != source || base != null && !base.equals( madeWith )) return null;
+            String [] prefixes = new String[data.readInt() * 2];
+            for (int i = 0; i < prefixes.length; i += 1) prefixes[i] = readString( data );
+            int nodes = data.readInt(), count = data.readInt();
+            FrozenGraph.Rows rows = new FrozenGraph.Rows( count );
+            int [] ids = new int[nodes];
+            for (int i = 0; i < nodes; i += 1) ids[i] = rows.dictionary.intern( readNode( data ) );
+            for (int i = 0; i < count; i += 1)
+                rows.add( ids[data.readInt()], ids[data.readInt()], ids[data.readInt()] );
+            FrozenGraph result = new FrozenGraph( rows );
+            for (int i = 0; i < prefixes.length; i += 2)
+                result.getPrefixMapping().setNsPrefix( prefixes[i], prefixes[i + 1] );
+            return result;
+            }
+        catch (IOException e)
+            { throw new WrappedIOException( e ); }
+        }
+
+    /**
+        Answer the checksum of <code>bytes</code>, as recorded in a snapshot.
+    */
+    public static long checksum( byte [] bytes )
+        {
+        CRC32 crc = new CRC32();
+        crc.update( bytes );
+        return crc.getValue();
+        }
+
+    /**
+        Answer the whole of <code>in</code> as bytes, closing it.
+    */
+    public static byte [] readAll( InputStream in )
+        {
+        try
+            {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( Math.max( in.available(), 4096 ) );
+            byte [] buffer = new byte[4096];
+            for (int n = in.read( buffer ); n >= 0; n = in.read( buffer )) bytes.write( buffer, 0, n );
+            return bytes.toByteArray();
+            }
+        catch (IOException e)
+            { throw new WrappedIOException( e ); }
+        finally
+            { try { in.close(); } catch (IOException e) {} }
+        }
+
+    protected static void writeNode( DataOutputStream data, Node n ) throws IOException
+        {
+        if (n.isURI())
+            {
+            data.writeByte( URI );
+            writeString( data, n.getURI() );
+            }
+        else if (n.isBlank())
+            data.writeByte( BLANK );
+        else if (n.isLiteral())
+            {
+            String type = n.getLiteralDatatypeURI();
+            data.writeByte( LITERAL );
+            writeString( data, n.getLiteralLexicalForm() );
+            writeString( data, n.getLiteralLanguage() );
+            writeString( data, type == null ? "" : type );
+            }
+        else
+            throw new JenaException( "cannot snapshot the node " + n );
+        }
+
+    /**
+        Answer the next node of a snapshot. Each blank node in a snapshot becomes
+        a new blank node, just as it would if the document were parsed again.
+    */
+    protected static Node readNode( DataInputStream data ) throws IOException
+        {
+        byte kind = data.readByte();
+        if (kind == URI) return Node.createURI( readString( data ) );
+        if (kind == BLANK) return Node.createAnon();
+        if (kind != LITERAL) throw new JenaException( "broken graph snapshot, node kind " + kind );
+        String lex = readString( data ), lang = readString( data ), type = readString( data );
+        return Node.createLiteral( lex, lang, type.length() == 0 ? null : TypeMapper.getInstance().getSafeTypeByName( type ) );
+        }
+
+    /**
+        Strings are written as their length in bytes and their UTF-8 encoding;
+        DataOutputStream.writeUTF can't take literals over 64K.
+    */
+    protected static void writeString( DataOutputStream data, String s ) throws IOException
+        {
+        byte [] bytes = s.getBytes( "UTF-8" );
+        data.writeInt( bytes.length );
+        data.write( bytes );
+        }
+
+    protected static String readString( DataInputStream data ) throws IOException
+        {
+        byte [] bytes = new byte[data.readInt()];
+        data.readFully( bytes );
+        return new String( bytes, "UTF-8" );
+        }
+
+    /**
+        Make the snapshot of a document:
+        <code>GraphSnapshot document base [snapshot]</code>, where the snapshot
+        defaults to the document's name plus EXTENSION, and the syntax is
+        guessed from the document's name.
+    */
+    public static void main( String [] args ) throws IOException
+        {
+        if (args.length < 2)
+            {
+            System.err.println( "usage: GraphSnapshot document base [snapshot]" );
+            System.exit( 1 );
+            }
+        byte [] source = readAll( new FileInputStream( args[0] ) );
+        Model m = ModelFactory.createDefaultModel();
+        m.read( new ByteArrayInputStream( source ), args[1], FileUtils.guessLang( args[0] ) );
+        OutputStream out = new FileOutputStream( args.length > 2 ? args[2] : args[0] + EXTENSION );
+        try { write( m.getGraph(), args[1], checksum( source ), out ); }
+        finally { out.close(); }
+        }
+    }
+
+/*
+ * (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
\ No newline at end of file
@@ -20,6 +20,16 @@ public class HashedBunchMap extends HashCommon<Object> implements BunchMap
         super( 10 );
         values = new TripleBunch[capacity];
         }
+    
+    /**
+        Initialise this map big enough to hold <code>expectedSize</code> entries
+        without growing.
+    */
+    public HashedBunchMap( int expectedSize )
+        {
+        super( nextSize( (int) (expectedSize / loadFactor) ) );
+        values = new TripleBunch[capacity];
+        }
 
     @Override protected Object[] newKeyArray( int size )
         { return new Object[size]; }
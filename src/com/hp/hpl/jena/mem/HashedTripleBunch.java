@@ -20,6 +20,13 @@ public class HashedTripleBunch extends HashCommon<Triple> implements TripleBunch
         for (Iterator<Triple> it = b.iterator(); it.hasNext();) add( it.next() );        
         changes = 0;
         }
+    
+    /**
+        Initialise this bunch big enough to hold <code>expectedSize</code> triples
+        without growing.
+    */
+    public HashedTripleBunch( int expectedSize )
+        { super( nextSize( (int) (expectedSize / loadFactor) ) ); }
 
     @Override protected Triple[] newKeyArray( int size )
         { return new Triple[size]; }
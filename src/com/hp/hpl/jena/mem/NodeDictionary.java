@@ -0,0 +1,274 @@
+/*
+    (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+    All rights reserved - see end of file.
+*/
+
+package com.hp.hpl.jena.mem;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+    A NodeDictionary gives each of its nodes a small int id, dense from 0, so
+    that a store can keep ints where it would otherwise keep Node references.
+    The ids of removed nodes are handed out again later.
+<p>
+    The hash table is keyed on the nodes' indexing values, as the
+    NodeToTriplesMaps are, and probed linearly. So all the literals which are
+    sameValueAs one another (eg "1"^^xsd:int and "01"^^xsd:int) hash alike
+    and sit in one run of the table, and lookupSameValue finds them all with
+    a single probe. Hashes aren't kept, to save the space; they're worked out
+    again when the table is rehashed or an entry removed.
+*/
+public class NodeDictionary
+    {
+    /**
+        An empty array of ids, answered when nothing matches.
+    */
+    public static final int [] NONE = new int[0];
+
+    /**
+        The nodes, indexed by id; null for a free id.
+    */
+    protected Node [] nodes = new Node[16];
+
+    /**
+        The hash table: each used slot holds an id plus one, an empty slot holds
+        0. Its length is a power of two and it's kept at most half full.
+    */
+    protected int [] slots = new int[32];
+
+    /**
+        The free ids below limit, the first freeCount of them.
+    */
+    protected int [] freeIds = NONE;
+    protected int freeCount = 0;
+
+    /**
+        All ids below limit have been handed out at some time.
+    */
+    protected int limit = 0;
+
+    /**
+        The number of nodes currently in the dictionary.
+    */
+    protected int size = 0;
+
+    /**
+        Answer the number of nodes in this dictionary.
+    */
+    public int size()
+        { return size; }
+
+    /**
+        Answer the number of ids handed out so far; every id in use is below this.
+    */
+    public int limit()
+        { return limit; }
+
+    /**
+        Answer the node with the given id, or null if the id is free.
+    */
+    public Node get( int id )
+        { return nodes[id]; }
+
+    /**
+        Answer the id of the node <code>n</code>, or -1 if it isn't in this
+        dictionary. Nodes are compared with .equals().
+    */
+    public int lookup( Node n )
+        {
+        int mask = slots.length - 1;
+        for (int i = hashOf( n ) & mask; ; i = (i - 1) & mask)
+            {
+            int id = slots[i] - 1;
+            if (id < 0) return -1;
+            if (n.equals( nodes[id] )) return id;
+            }
+        }
+
+    /**
+        Answer the ids of all the nodes in this dictionary which are sameValueAs
+        <code>n</code>; for anything but a literal that's at most the id of
+        <code>n</code> itself. Answers NONE if there are none.
+    */
+    public int [] lookupSameValue( Node n )
+        {
+        if (!n.isLiteral())
+            {
+            int id = lookup( n );
+            return id < 0 ? NONE : new int[] { id };
+            }
+        int [] result = NONE;
+        int mask = slots.length - 1;
+        for (int i = hashOf( n ) & mask; ; i = (i - 1) & mask)
+            {
+            int id = slots[i] - 1;
+            if (id < 0) return result;
+            if (n.sameValueAs( nodes[id] ))
+                {
+                int [] more = new int[result.length + 1];
+                System.arraycopy( result, 0, more, 0, result.length );
+                more[result.length] = id;
+                result = more;
+                }
+            }
+        }
+
+    /**
+        Answer the id of the node <code>n</code>, adding it to this dictionary
+        if it's not there yet.
+    */
+    public int intern( Node n )
+        {
+        int mask = slots.length - 1;
+        int i = hashOf( n ) & mask;
+        while (true)
+            {
+            int id = slots[i] - 1;
+            if (id < 0) break;
+            if (n.equals( nodes[id] )) return id;
+            i = (i - 1) & mask;
+            }
+        int id = newId();
+        nodes[id] = n;
+        slots[i] = id + 1;
+        if (++size * 2 > slots.length) rehash( slots.length * 2 );
+        return id;
+        }
+
+    /**
+        Remove the node with the given id from this dictionary, if it's there,
+        and free the id for reuse.
+    */
+    public void remove( int id )
+        {
+        if (nodes[id] == null) return;
+        removeSlot( slotOf( id ) );
+        nodes[id] = null;
+        if (freeCount == freeIds.length) freeIds = copyOf( freeIds, freeCount * 2 + 4 );
+        freeIds[freeCount++] = id;
+        size -= 1;
+        }
+
+    /**
+        Drop all the nodes from this dictionary.
+    */
+    public void clear()
+        {
+        nodes = new Node[16];
+        slots = new int[32];
+        freeIds = NONE;
+        limit = size = freeCount = 0;
+        }
+
+    /**
+        Answer the spread hash of the indexing value of <code>n</code>.
+    */
+    protected static int hashOf( Node n )
+        {
+        int h = n.getIndexingValue().hashCode();
+        return h ^ (h >>> 16);
+        }
+
+    protected int newId()
+        {
+        if (freeCount > 0) return freeIds[--freeCount];
+        if (limit == nodes.length)
+            {
+            Node [] newNodes = new Node[limit + (limit >> 1)];
+            System.arraycopy( nodes, 0, newNodes, 0, limit );
+            nodes = newNodes;
+            }
+        return limit++;
+        }
+
+    /**
+        Answer a copy of <code>a</code> with the given length, cut short or
+        padded with zeroes.
+    */
+    public static int [] copyOf( int [] a, int length )
+        {
+        int [] result = new int[length];
+        System.arraycopy( a, 0, result, 0, Math.min( a.length, length ) );
+        return result;
+        }
+
+    protected int slotOf( int id )
+        {
+        int mask = slots.length - 1;
+        int i = hashOf( nodes[id] ) & mask;
+        while (slots[i] != id + 1) i = (i - 1) & mask;
+        return i;
+        }
+
+    /**
+        Empty the slot <code>here</code>, moving later entries of its run down
+        so that no lookup stops short of them: Knuth's Algorithm R, as in
+        HashCommon.removeFrom.
+    */
+    protected void removeSlot( int here )
+        {
+        int mask = slots.length - 1;
+        while (true)
+            {
+            slots[here] = 0;
+            int scan = here;
+            while (true)
+                {
+                scan = (scan - 1) & mask;
+                int id = slots[scan] - 1;
+                if (id < 0) return;
+                int r = hashOf( nodes[id] ) & mask;
+                if (scan <= r && r < here || r < here && here < scan || here < scan && scan <= r)
+                    { /* stays where it is */ }
+                else
+                    {
+                    slots[here] = slots[scan];
+                    here = scan;
+                    break;
+                    }
+                }
+            }
+        }
+
+    protected void rehash( int capacity )
+        {
+        int [] newSlots = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < limit; id += 1)
+            if (nodes[id] != null)
+                {
+                int i = hashOf( nodes[id] ) & mask;
+                while (newSlots[i] != 0) i = (i - 1) & mask;
+                newSlots[i] = id + 1;
+                }
+        slots = newSlots;
+        }
+    }
+
+/*
+ * (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
\ No newline at end of file
@@ -33,6 +33,24 @@ public class FasterTripleStore extends GraphTripleStoreBase implements TripleSto
     protected NodeToTriplesMapFaster getObjects()
         { return (NodeToTriplesMapFaster) objects; }
     
+    /**
+        Add all the <code>triples</code> to this store. If the store is empty,
+        each index is built in one go by NodeToTriplesMapFaster.addAll; the
+        subject index drops any duplicates, so the other two needn't check for
+        them. Otherwise the triples are added one at a time.
+    */
+    public void addAll( List<Triple> triples )
+        {
+        if (size() > 0)
+            for (int i = 0; i < triples.size(); i += 1) add( triples.get( i ) );
+        else
+            {
+            List<Triple> added = getSubjects().addAll( triples, false );
+            getPredicates().addAll( added, true );
+            getObjects().addAll( added, true );
+            }
+        }
+    
     public Applyer createApplyer( ProcessedTriple pt )
         {
         if (pt.hasNoVariables())
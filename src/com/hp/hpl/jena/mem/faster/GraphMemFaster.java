@@ -6,6 +6,8 @@
 
 package com.hp.hpl.jena.mem.faster;
 
+import java.util.*;
+
 import com.hp.hpl.jena.graph.*;
 import com.hp.hpl.jena.graph.Reifier.Util;
 import com.hp.hpl.jena.graph.impl.*;
@@ -34,6 +36,33 @@ public class GraphMemFaster extends GraphMemBase
     @Override public void performDelete( Triple t )
         { if (!getReifier().handledRemove( t )) store.delete( t ); }
 
+    /**
+        Add all the <code>triples</code> without notifying anyone; the caller
+        sends a single bulk event. Triples the reifier takes are handled as in
+        performAdd, and the rest go to the store together, so that an empty
+        store can build its indexes in one pass.
+    */
+    public void performAddAll( List<Triple> triples )
+        {
+        Reifier r = getReifier();
+        List<Triple> plain = triples;
+        for (int i = 0; i < triples.size(); i += 1)
+            {
+            Triple t = triples.get( i );
+            if (r.handledAdd( t ))
+                { if (plain == triples) plain = new ArrayList<Triple>( triples.subList( 0, i ) ); }
+            else if (plain != triples)
+                plain.add( t );
+            }
+        ((FasterTripleStore) store).addAll( plain );
+        }
+
+    @Override public BulkUpdateHandler getBulkUpdateHandler()
+        {
+        if (bulkHandler == null) bulkHandler = new GraphMemFasterBulkUpdateHandler( this );
+        return bulkHandler;
+        }
+
     @Override public int graphBaseSize()  
         { return store.size(); }
     
@@ -0,0 +1,61 @@
+/*
+ 	(c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ 	All rights reserved - see end of file.
+*/
+
+package com.hp.hpl.jena.mem.faster;
+
+import java.util.*;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.GraphMemBulkUpdateHandler;
+
+/**
+    A GraphMemFasterBulkUpdateHandler gives a GraphMemFaster arrays, lists
+    and iterators of triples in one go rather than one triple at a time, so
+    that loading into an empty graph builds the store's indexes in one pass.
+*/
+public class GraphMemFasterBulkUpdateHandler extends GraphMemBulkUpdateHandler
+    {
+    public GraphMemFasterBulkUpdateHandler( GraphMemFaster graph )
+        { super( graph ); }
+    
+    @Override public void add( Triple [] triples )
+        {
+        ((GraphMemFaster) graph).performAddAll( Arrays.asList( triples ) );
+        manager.notifyAddArray( graph, triples );
+        }
+    
+    @Override protected void add( List<Triple> triples, boolean notify )
+        {
+        ((GraphMemFaster) graph).performAddAll( triples );
+        if (notify) manager.notifyAddList( graph, triples );
+        }
+    }
+
+/*
+ * (c) Copyright 2005, 2006, 2007, 2008, 2009 Hewlett-Packard Development Company, LP
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
\ No newline at end of file
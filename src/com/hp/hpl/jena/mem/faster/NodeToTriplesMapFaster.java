@@ -42,6 +42,64 @@ public class NodeToTriplesMapFaster extends NodeToTriplesMapBase
            } 
        }
     
+    /**
+        Add all the <code>triples</code> to this NTM, which must be empty. The
+        triples are first counted by index node, so that the bunch map and each
+        bunch are created at their final size and then filled without growing or
+        being promoted from an ArrayBunch. If <code>distinct</code> is true the
+        caller promises that there are no duplicates among the triples, and they
+        are not checked for. Answer the triples that were really added, which is
+        <code>triples</code> itself unless some were duplicates.
+    */
+    public List<Triple> addAll( List<Triple> triples, boolean distinct )
+        {
+        if (size > 0) throw new JenaException( "NodeToTriplesMapFaster.addAll: not empty" );
+        int n = triples.size();
+        Map<Object, Counted> counts = new HashMap<Object, Counted>();
+        Counted [] counted = new Counted[n];
+        for (int i = 0; i < n; i += 1)
+            {
+            Object o = getIndexField( triples.get( i ) );
+            Counted c = counts.get( o );
+            if (c == null) counts.put( o, c = new Counted() );
+            c.count += 1;
+            counted[i] = c;
+            }
+        HashedBunchMap map = new HashedBunchMap( counts.size() );
+        for (Map.Entry<Object, Counted> e: counts.entrySet())
+            {
+            Counted c = e.getValue();
+            c.bunch = c.count > 9 ? new HashedTripleBunch( c.count ) : new ArrayBunch();
+            map.put( e.getKey(), c.bunch );
+            }
+        bunchMap = map;
+        List<Triple> added = triples;
+        for (int i = 0; i < n; i += 1)
+            {
+            Triple t = triples.get( i );
+            TripleBunch s = counted[i].bunch;
+            if (!distinct && s.contains( t ))
+                { if (added == triples) added = new ArrayList<Triple>( triples.subList( 0, i ) ); }
+            else
+                {
+                s.add( t );
+                size += 1;
+                if (added != triples) added.add( t );
+                }
+            }
+        return added;
+        }
+    
+    /**
+        The number of triples with one index node, and the bunch they go into;
+        used by addAll.
+    */
+    private static class Counted
+        {
+        int count;
+        TripleBunch bunch;
+        }
+    
     /**
         Remove <code>t</code> from this NTM. Answer <code>true</code> iff the 
         triple was previously in the set, ie, it really truly has been removed. 
@@ -28,11 +28,26 @@ public class ParserTurtle
     }
     
     public void parse(Graph graph, String baseURI, Reader reader)
+    {
+        TurtleRDFGraphInserter inserter = new TurtleRDFGraphInserter(graph) ;
+        try { parse(inserter, baseURI, reader) ; }
+        finally { inserter.finish() ; }
+    }
+    
+    /** Parse straight into an event handler, without building a graph */
+    public void parse(TurtleEventHandler handler, String baseURI, InputStream in)
+    {
+        Reader reader = FileUtils.asUTF8(in) ;
+        parse(handler, baseURI, reader) ;
+    }
+    
+    /** Parse straight into an event handler, without building a graph */
+    public void parse(TurtleEventHandler handler, String baseURI, Reader reader)
     {
         // Nasty things happen if the reader is not UTF-8.
         try {
             TurtleParser parser = new TurtleParser(reader) ;
-            parser.setEventHandler(new TurtleRDFGraphInserter(graph)) ;
+            parser.setEventHandler(handler) ;
             parser.setBaseURI(baseURI) ;
             parser.parse() ;
         }
@@ -6,15 +6,27 @@
 
 package com.hp.hpl.jena.n3.turtle;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.faster.GraphMemFaster;
 
 
 public class TurtleRDFGraphInserter implements TurtleEventHandler
 {
     Graph graph = null ;
-    public TurtleRDFGraphInserter(Graph graph) { this.graph = graph ; }
+    List<Triple> pending = null ;
+    
+    public TurtleRDFGraphInserter(Graph graph)
+    {
+        this.graph = graph ;
+        // A new in-memory graph gets the whole document in one go, see finish()
+        if ( graph instanceof GraphMemFaster && graph.isEmpty() )
+            pending = new ArrayList<Triple>() ;
+    }
     
     public void triple(int line, int col, Triple triple)
     {
@@ -30,7 +42,20 @@ public class TurtleRDFGraphInserter implements TurtleEventHandler
         if ( ! ( o.isURI() || o.isBlank() || o.isLiteral() ) ) 
             throw new TurtleParseException("["+line+", "+col+"] : Error: Object is not a URI, blank node or literal") ;
         
-        graph.add(triple) ;
+        if ( pending != null )
+            pending.add(triple) ;
+        else
+            graph.add(triple) ;
+    }
+
+    /** Add the triples held back for a bulk load, if any; called when the parse ends */
+    public void finish()
+    {
+        if ( pending == null )
+            return ;
+        List<Triple> triples = pending ;
+        pending = null ;
+        graph.getBulkUpdateHandler().add(triples) ;
     }
 
     public void startFormula(int line, int col)
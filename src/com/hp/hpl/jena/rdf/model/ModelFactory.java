@@ -129,6 +129,14 @@ public class ModelFactory extends ModelFactoryBase
     public static Model withHiddenStatements( Model m )
         { return ModelReifier.withHiddenStatements( m ); }
 
+    /**
+        Answer a read-only Model with a frozen copy of the statements and
+        prefixes of <code>m</code>; later changes to <code>m</code> are not
+        reflected in it. Suitable for data that is only read once it's loaded.
+    */
+    public static Model createFrozenModel( Model m )
+        { return new ModelCom( Factory.createFrozenGraph( m.getGraph() ) ); }
+
     /**
         construct a new memory-based model that does not capture reification triples
         (but still handles reifyAs() and .as(ReifiedStatement).
@@ -32,7 +32,10 @@ package com.hp.hpl.jena.rdf.model.impl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.mem.faster.GraphMemFaster;
 import com.hp.hpl.jena.rdf.model.*;
 import com.hp.hpl.jena.util.FileUtils;
 import com.hp.hpl.jena.shared.*;
@@ -50,6 +53,8 @@ public class NTripleReader extends Object implements RDFReader {
     static final Logger log = LoggerFactory.getLogger(NTripleReader.class);
 
     private Model model = null;
+    // the triples held back for a bulk load into a new in-memory graph
+    private List<Triple> pending = null;
     private Hashtable<String, Resource> anons = new Hashtable<String, Resource>();
 
     private IStream in = null;
@@ -115,11 +120,22 @@ public class NTripleReader extends Object implements RDFReader {
     }
 
     protected void readRDF()  {
+        Graph graph = model.getGraph();
+        if (graph instanceof GraphMemFaster && graph.isEmpty())
+            pending = new ArrayList<Triple>();
         try {
             model.notifyEvent( GraphEvents.startRead );
             unwrappedReadRDF();
         } finally {
-            model.notifyEvent( GraphEvents.finishRead );
+            try {
+                if (pending != null) {
+                    List<Triple> triples = pending;
+                    pending = null;
+                    graph.getBulkUpdateHandler().add(triples);
+                }
+            } finally {
+                model.notifyEvent( GraphEvents.finishRead );
+            }
         }
     }
     
@@ -163,7 +179,10 @@ public class NTripleReader extends Object implements RDFReader {
                     break;
 
                 try {
-                    model.add(subject, predicate, object);
+                    if (pending != null)
+                        pending.add(Triple.create(subject.asNode(), predicate.asNode(), object.asNode()));
+                    else
+                        model.add(subject, predicate, object);
                 } catch (Exception e2) {
                     errorHandler.fatalError(e2);
                 }
@@ -104,6 +104,15 @@ public class JenaParameters {
      * will only be unique for this single JVM run.
      */
     public static boolean disableBNodeUIDGeneration = false;
+    
+    /**
+     * If this flag is true (default is false) then Factory.createGraphMem, and so
+     * the default models, use a GraphMemCompact, which keeps its triples as
+     * dictionary-encoded ints. It needs much less memory per triple than the
+     * usual GraphMemFaster, but makes a new Triple for every triple that a find
+     * hands out.
+     */
+    public static boolean enableCompactGraphMem = false;
 }
 
 
@@ -12,6 +12,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 //import javax.servlet.* ;
 
+import com.hp.hpl.jena.graph.Graph ;
+import com.hp.hpl.jena.mem.GraphSnapshot ;
 import com.hp.hpl.jena.rdf.model.* ;
 import com.hp.hpl.jena.shared.*;
 
@@ -71,6 +73,7 @@ public class FileManager
     LocationMapper mapper = null ;
     boolean cacheModelLoads = false ;
     Map<String, Model> modelCache = null ;
+    boolean loadSnapshots = true ;
     
     /** Get the global file manager.
      * @return the global file manager
@@ -108,6 +111,7 @@ public class FileManager
             mapper = new LocationMapper(filemanager.getLocationMapper()) ;
         cacheModelLoads = false ;
         modelCache = null ;
+        loadSnapshots = filemanager.loadSnapshots ;
     }
 
     /** Create a "standard" FileManager. */
@@ -234,6 +238,13 @@ public class FileManager
 
     // -------- Cache operations (end)
 
+    /** Change whether readModel and loadModel use the snapshot (see {@link GraphSnapshot})
+     *  which sits next to a local file, if it was made from that same file. On by default. */ 
+    public void setSnapshotLoading(boolean state) { loadSnapshots = state ; }
+
+    /** return whether snapshot loading is on or off */
+    public boolean getSnapshotLoading() { return loadSnapshots ; }
+
     /** Load a model from a file (local or remote).
      *  Guesses the syntax of the file based on filename extension, 
      *  defaulting to RDF/XML.
@@ -391,11 +402,46 @@ public class FileManager
             // XXX
             //syntax
         }
+        if ( loadSnapshots && FileUtils.isFile(mappedURI) )
+        {
+            TypedStream snapshot = openNoMapOrNull(mappedURI+GraphSnapshot.EXTENSION) ;
+            if ( snapshot != null )
+                return readModelOrSnapshot(model, in, snapshot, mappedURI, baseURI, syntax) ;
+        }
         model.read(in.getInput(), baseURI, syntax) ;
         try { in.getInput().close(); } catch (IOException ex) {}
         return model ;
     }
 
+    /** Read the snapshot into the model, unless it's stale or broken, in which case
+     *  parse the document after all. Closes both streams. */
+    private Model readModelOrSnapshot(Model model, TypedStream in, TypedStream snapshot, String mappedURI, String baseURI, String syntax)
+    {
+        byte[] source = GraphSnapshot.readAll(in.getInput()) ;
+        Graph g = null ;
+        try {
+            g = GraphSnapshot.read(snapshot.getInput(), baseURI, GraphSnapshot.checksum(source)) ;
+        } catch (JenaException ex)
+        {
+            log.warn("Broken snapshot of '"+mappedURI+"': "+ex.getMessage()) ;
+        } finally
+        {
+            try { snapshot.getInput().close(); } catch (IOException ex) {}
+        }
+        if ( g == null )
+        {
+            if ( log.isDebugEnabled() )
+                log.debug("Stale snapshot of '"+mappedURI+"'") ;
+            model.read(new ByteArrayInputStream(source), baseURI, syntax) ;
+            return model ;
+        }
+        if ( log.isDebugEnabled() )
+            log.debug("Snapshot of '"+mappedURI+"'") ;
+        model.getGraph().getBulkUpdateHandler().add(g) ;
+        model.setNsPrefixes(g.getPrefixMapping()) ;
+        return model ;
+    }
+
     private static String chooseBaseURI(String baseURI)
     {
         String scheme = FileUtils.getScheme(baseURI) ;
@@ -0,0 +1,273 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * the details of a car park, kept as flat arrays of property/value pairs instead of a whole Jena model
+ * only the statements about the car park itself and about its bags of unverified properties are kept, which is all the details view shows
+ * the nodes are interned so the same properties and common values are shared by all car parks
+ * this class is immutable
+ */
+public final class CarparkDetails {
+    @SuppressWarnings("unused")
+    private static final String TAG = "carpark details";
+
+    // the kinds of nodes in the binary form
+    private static final int URI = 0;
+    private static final int LITERAL = 1;
+    private static final int BLANK = 2;
+
+    private static final Node HAS_UNVERIFIED_PROPERTIES = Onto.PARKING_hasUnverifiedProperties.asNode();
+
+    private static final Map<Node, WeakReference<Node>> internedNodes = new WeakHashMap<Node, WeakReference<Node>>();
+
+    private final Node carpark;
+    // property at even indexes, its value right after it
+    private final Node[] pairs;
+    // the bags of unverified properties, in the order of their hasUnverifiedProperties statements
+    private final Node[] bags;
+    private final Node[][] bagPairs;
+
+    private CarparkDetails(Node carpark, Node[] pairs, Node[] bags, Node[][] bagPairs) {
+        this.carpark = carpark;
+        this.pairs = pairs;
+        this.bags = bags;
+        this.bagPairs = bagPairs;
+    }
+
+    /**
+     * extracts the details of a car park from parsed data; the model isn't referenced afterwards
+     * @param model the parsed data
+     * @param uri the URI of the car park
+     * @return the details
+     */
+    public static CarparkDetails fromModel(Model model, String uri) {
+        Graph graph = model.getGraph();
+        Node carpark = intern(Node.createURI(uri));
+        Node[] pairs = collectPairs(graph, carpark);
+
+        List<Node> bags = new ArrayList<Node>(2);
+        for (int i=0; i<pairs.length; i+=2) {
+            if (pairs[i].equals(HAS_UNVERIFIED_PROPERTIES) && !pairs[i+1].isLiteral()) {
+                bags.add(pairs[i+1]);
+            }
+        }
+        Node[][] bagPairs = new Node[bags.size()][];
+        for (int i=0; i<bagPairs.length; i++) {
+            bagPairs[i] = collectPairs(graph, bags.get(i));
+        }
+        return new CarparkDetails(carpark, pairs, bags.toArray(new Node[bags.size()]), bagPairs);
+    }
+
+    private static Node[] collectPairs(Graph graph, Node subject) {
+        List<Node> pairs = new ArrayList<Node>();
+        for (ExtendedIterator<Triple> it = graph.find(subject, Node.ANY, Node.ANY); it.hasNext(); ) {
+            Triple t = it.next();
+            pairs.add(intern(t.getPredicate()));
+            pairs.add(intern(t.getObject()));
+        }
+        return pairs.toArray(new Node[pairs.size()]);
+    }
+
+    private static Node intern(Node node) {
+        synchronized (internedNodes) {
+            WeakReference<Node> ref = internedNodes.get(node);
+            Node known = ref == null ? null : ref.get();
+            if (known != null) {
+                return known;
+            }
+            internedNodes.put(node, new WeakReference<Node>(node));
+            return node;
+        }
+    }
+
+    /**
+     * @param property the property
+     * @return the values of the property on the car park, in no particular order
+     */
+    public List<Node> getValues(Property property) {
+        List<Node> retval = values(this.pairs, property.asNode(), null);
+        return retval == null ? Collections.<Node>emptyList() : retval;
+    }
+
+    /**
+     * @param property the property
+     * @return the values of the property in all the bags of unverified properties of the car park
+     */
+    public List<Node> getUnverifiedValues(Property property) {
+        List<Node> retval = null;
+        Node p = property.asNode();
+        for (Node[] bag : this.bagPairs) {
+            retval = values(bag, p, retval);
+        }
+        return retval == null ? Collections.<Node>emptyList() : retval;
+    }
+
+    // adds the values to retval, which is created when needed
+    private static List<Node> values(Node[] pairs, Node property, List<Node> retval) {
+        for (int i=0; i<pairs.length; i+=2) {
+            if (pairs[i].equals(property)) {
+                if (retval == null) {
+                    retval = new ArrayList<Node>(2);
+                }
+                retval.add(pairs[i+1]);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * @return how many statements the details have
+     */
+    public int size() {
+        int retval = this.pairs.length;
+        for (Node[] bag : this.bagPairs) {
+            retval += bag.length;
+        }
+        return retval / 2;
+    }
+
+    /**
+     * creates a Jena model with the statements of the details, for the rare code that needs one
+     * the model is not kept, every call creates a new one
+     * @return a new model
+     */
+    public Model asModel() {
+        Model model = ModelFactory.createDefaultModel();
+        Graph graph = model.getGraph();
+        addPairs(graph, this.carpark, this.pairs);
+        for (int i=0; i<this.bags.length; i++) {
+            addPairs(graph, this.bags[i], this.bagPairs[i]);
+        }
+        return model;
+    }
+
+    /**
+     * writes the details in a compact binary form that read() understands
+     * @param out where to write
+     * @throws IOException when writing fails
+     */
+    public void write(DataOutput out) throws IOException {
+        writeNode(out, this.carpark);
+        writePairs(out, this.pairs);
+        out.writeInt(this.bags.length);
+        for (int i=0; i<this.bags.length; i++) {
+            writeNode(out, this.bags[i]);
+            writePairs(out, this.bagPairs[i]);
+        }
+    }
+
+    /**
+     * reads details written by write()
+     * @param in where to read from
+     * @return the details
+     * @throws IOException when reading fails or the data is broken
+     */
+    public static CarparkDetails read(DataInput in) throws IOException {
+        Node carpark = readNode(in);
+        Node[] pairs = readPairs(in);
+        int bagCount = in.readInt();
+        if (bagCount < 0) {
+            throw new IOException("negative bag count");
+        }
+        Node[] bags = new Node[bagCount];
+        Node[][] bagPairs = new Node[bagCount][];
+        for (int i=0; i<bagCount; i++) {
+            bags[i] = readNode(in);
+            bagPairs[i] = readPairs(in);
+        }
+        return new CarparkDetails(carpark, pairs, bags, bagPairs);
+    }
+
+    private static void writePairs(DataOutput out, Node[] pairs) throws IOException {
+        out.writeInt(pairs.length);
+        for (Node node : pairs) {
+            writeNode(out, node);
+        }
+    }
+
+    private static Node[] readPairs(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length % 2 != 0) {
+            throw new IOException("bad number of nodes: " + length);
+        }
+        Node[] pairs = new Node[length];
+        for (int i=0; i<length; i++) {
+            pairs[i] = readNode(in);
+        }
+        return pairs;
+    }
+
+    private static void writeNode(DataOutput out, Node node) throws IOException {
+        if (node.isURI()) {
+            out.writeByte(URI);
+            out.writeUTF(node.getURI());
+        } else if (node.isLiteral()) {
+            out.writeByte(LITERAL);
+            out.writeUTF(node.getLiteralLexicalForm());
+            out.writeUTF(node.getLiteralLanguage());
+            String datatype = node.getLiteralDatatypeURI();
+            out.writeUTF(datatype == null ? "" : datatype);
+        } else {
+            out.writeByte(BLANK);
+            out.writeUTF(node.getBlankNodeLabel());
+        }
+    }
+
+    private static Node readNode(DataInput in) throws IOException {
+        int kind = in.readByte();
+        switch (kind) {
+        case URI:
+            return intern(Node.createURI(in.readUTF()));
+        case LITERAL:
+            String lex = in.readUTF();
+            String lang = in.readUTF();
+            String datatype = in.readUTF();
+            return intern(Node.createLiteral(lex, lang, datatype.length() == 0 ? null : TypeMapper.getInstance().getSafeTypeByName(datatype)));
+        case BLANK:
+            return intern(Node.createAnon(AnonId.create(in.readUTF())));
+        default:
+            throw new IOException("unknown node kind " + kind);
+        }
+    }
+
+    private static void addPairs(Graph graph, Node subject, Node[] pairs) {
+        for (int i=0; i<pairs.length; i+=2) {
+            graph.add(Triple.create(subject, pairs[i], pairs[i+1]));
+        }
+    }
+}
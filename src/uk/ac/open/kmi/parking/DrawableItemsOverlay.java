@@ -17,7 +17,10 @@
 package uk.ac.open.kmi.parking;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+import uk.ac.open.kmi.parking.service.CarparkCluster;
 import uk.ac.open.kmi.parking.service.ParkingsService;
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -26,6 +29,7 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.Bitmap.Config;
 import android.graphics.drawable.AnimationDrawable;
 import android.graphics.drawable.Drawable;
@@ -74,6 +78,8 @@ public class DrawableItemsOverlay extends Overlay {
 
     private static final double PHYSICAL_PIN_DIAMETER_IN = .25f; // about 7.5mm diameter for where touch should register on a pin
 
+    private static final float PHYSICAL_CLUSTER_DIAMETER_IN = .2f; // the diameter of a cluster of one car park, bigger clusters grow logarithmically
+
     private float xdpi, ydpi;
 
     private View addingCarparkAnim;
@@ -147,9 +153,16 @@ public class DrawableItemsOverlay extends Overlay {
         if (mpx < mpxThresholdNone) {
             this.currentSize = 0f;
             this.bubbleOverlay.removeItem();
-            this.activity.setTooFarOut(true);
             mapView.post(new Runnable() { public void run() { updateHighlightedCarpark(null, false, mapView); }});
-            return; // no need to show anything, we're zoomed too far out
+            if (mapView.getZoomLevel() < ParkingsService.CLUSTER_MIN_ZOOM) {
+                this.drawnClusters = Collections.emptyList();
+                this.activity.setTooFarOut(true);
+                return; // no need to show anything, we're zoomed too far out
+            }
+            // too many car parks to show one by one, show clusters instead
+            this.activity.setTooFarOut(false);
+            drawClusters(canvas, mapView);
+            return;
         } else if (mpx > mpxThresholdFull) {
             this.currentSize = 1f;
         } else if (mpx > mpxThresholdTinyFirst) {
@@ -241,6 +254,91 @@ public class DrawableItemsOverlay extends Overlay {
         canvas.drawBitmap(this.bufferBitmap, -this.bufferOffsetX, -this.bufferOffsetY, paint);
     }
 
+    // the clusters as they were last drawn, for tapping
+    private List<CarparkCluster> drawnClusters = Collections.emptyList();
+    private static final Paint clusterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private static final RectF clusterOval = new RectF();
+    private static final int CLUSTER_AVAILABLE_COLOR = Color.rgb(0x33, 0xaa, 0x33);
+    private static final int CLUSTER_FULL_COLOR = Color.rgb(0xcc, 0x22, 0x22);
+    private static final int CLUSTER_UNKNOWN_COLOR = Color.rgb(0x88, 0x88, 0x88);
+
+    /**
+     * draws the car park clusters straight on the canvas as pie charts of their availability mix, with the number of car parks in the middle
+     */
+    private void drawClusters(Canvas canvas, MapView mapView) {
+        List<CarparkCluster> clusters = this.parkingsService.getCurrentClusters(mapView.getMapCenter(), mapView.getLongitudeSpan(), mapView.getLatitudeSpan(), mapView.getZoomLevel());
+        this.drawnClusters = clusters;
+
+        Projection proj = mapView.getProjection();
+        Point point = this.tmpPt1;
+        for (CarparkCluster cluster : clusters) {
+            proj.toPixels(cluster.point, point);
+            float radius = getClusterRadius(cluster);
+            clusterOval.set(point.x - radius, point.y - radius, point.x + radius, point.y + radius);
+
+            clusterPaint.setStyle(Paint.Style.FILL);
+            float start = -90;
+            start = drawClusterSlice(canvas, start, cluster.available, cluster.count, CLUSTER_AVAILABLE_COLOR);
+            start = drawClusterSlice(canvas, start, cluster.full, cluster.count, CLUSTER_FULL_COLOR);
+            drawClusterSlice(canvas, start, cluster.getUnknown(), cluster.count, CLUSTER_UNKNOWN_COLOR);
+
+            clusterPaint.setStyle(Paint.Style.STROKE);
+            clusterPaint.setStrokeWidth(radius / 8);
+            clusterPaint.setColor(Color.WHITE);
+            canvas.drawCircle(point.x, point.y, radius, clusterPaint);
+
+            if (cluster.count > 1) {
+                clusterPaint.setStyle(Paint.Style.FILL);
+                clusterPaint.setTextAlign(Paint.Align.CENTER);
+                clusterPaint.setTextSize(radius);
+                canvas.drawText(String.valueOf(cluster.count), point.x, point.y + radius / 3, clusterPaint);
+            }
+        }
+    }
+
+    private static float drawClusterSlice(Canvas canvas, float start, int part, int count, int color) {
+        if (part == 0) {
+            return start;
+        }
+        float sweep = 360f * part / count;
+        clusterPaint.setColor(color);
+        canvas.drawArc(clusterOval, start, sweep, true, clusterPaint);
+        return start + sweep;
+    }
+
+    private float getClusterRadius(CarparkCluster cluster) {
+        return PHYSICAL_CLUSTER_DIAMETER_IN * this.xdpi / 2 * (1 + (float) Math.log10(cluster.count));
+    }
+
+    /**
+     * on a tap on a cluster, zoom in on it
+     * @return true if a cluster was tapped
+     */
+    private boolean onClusterTap(GeoPoint point, MapView mapView) {
+        Projection proj = mapView.getProjection();
+        Point pix = proj.toPixels(point, null);
+        Point cpix = this.tmpPt2;
+
+        CarparkCluster tapped = null;
+        double nearestDistance = Double.MAX_VALUE;
+        for (CarparkCluster cluster : this.drawnClusters) {
+            proj.toPixels(cluster.point, cpix);
+            double dist = Math.hypot((pix.x - cpix.x)/this.xdpi, (pix.y - cpix.y)/this.ydpi);
+            // anywhere in the cluster, or near enough to a small one
+            double reach = Math.max(PHYSICAL_PIN_DIAMETER_IN / 2, getClusterRadius(cluster) / this.xdpi);
+            if (dist < reach && dist < nearestDistance) {
+                tapped = cluster;
+                nearestDistance = dist;
+            }
+        }
+        if (tapped == null) {
+            return false;
+        }
+        mapView.getController().animateTo(tapped.point);
+        mapView.getController().zoomIn();
+        return true;
+    }
+
     synchronized void onStop() {
         if (this.bufferBitmap != null) {
             this.bufferBitmap.recycle();
@@ -349,8 +447,12 @@ public class DrawableItemsOverlay extends Overlay {
 
     private static final Rect tmpRect = new Rect();
 
+    // how far (in unscaled pixels) any drawn icon reaches from its point, so a tap only needs to check the items around it
+    private int maxDrawableExtent = 0;
+
     private void drawScaledDrawable(Canvas canvas, Point point, Drawable drawable, boolean shadow) {
         drawable.copyBounds(tmpRect);
+        this.maxDrawableExtent = Math.max(this.maxDrawableExtent, Math.max(Math.max(-tmpRect.left, tmpRect.right), Math.max(-tmpRect.top, tmpRect.bottom)));
         drawable.setBounds((int)(tmpRect.left * this.currentSize), (int)(tmpRect.top * this.currentSize), (int)(tmpRect.right * this.currentSize), (int)(tmpRect.bottom * this.currentSize));
         drawAt(canvas, drawable, point.x + this.bufferOffsetX, point.y + this.bufferOffsetY, shadow);
         drawable.setBounds(tmpRect);
@@ -363,7 +465,7 @@ public class DrawableItemsOverlay extends Overlay {
             return false;
         }
         if (this.currentSize == 0f) {
-            return false;
+            return !this.activity.addingMode && onClusterTap(point, mapView);
         }
 
         // when adding a car park, tap on a map will move there
@@ -379,7 +481,16 @@ public class DrawableItemsOverlay extends Overlay {
         // todo the current car park should be checked first because it's in the foreground
 
         Point ipix = new Point();
-        Collection<DrawableOverlayItem> items = this.parkingsService.getSortedCurrentItems();
+        Collection<DrawableOverlayItem> items;
+        if (this.maxDrawableExtent == 0) {
+            items = this.parkingsService.getSortedCurrentItems();
+        } else {
+            // only the items whose icon or tap tolerance can reach the tap
+            int reach = (int) Math.ceil(this.maxDrawableExtent * this.currentSize + PHYSICAL_PIN_DIAMETER_IN * Math.max(this.xdpi, this.ydpi)) + 1;
+            GeoPoint topLeft = proj.fromPixels(pix.x - reach, pix.y - reach);
+            GeoPoint bottomRight = proj.fromPixels(pix.x + reach, pix.y + reach);
+            items = this.parkingsService.getSortedCurrentItems(bottomRight.getLatitudeE6(), topLeft.getLongitudeE6(), topLeft.getLatitudeE6(), bottomRight.getLongitudeE6());
+        }
 
         double nearestDistance = PHYSICAL_PIN_DIAMETER_IN;
 
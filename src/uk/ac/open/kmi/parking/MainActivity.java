@@ -522,6 +522,13 @@ public class MainActivity extends MapActivity implements LocationListener, Sorte
         super.onStop();
     }
 
+    @Override
+    public void onLowMemory() {
+        Log.i(TAG, "onLowMemory");
+        this.parkingsService.onLowMemory();
+        super.onLowMemory();
+    }
+
     @Override
     public void onBackPressed() {
         if (this.bubbleOverlay.removeItem()) {
@@ -16,16 +16,12 @@
 
 package uk.ac.open.kmi.parking;
 
-import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
-
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.view.View;
 
 import com.google.android.maps.GeoPoint;
-import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Property;
 
 /**
@@ -96,9 +92,9 @@ public class Parking extends DrawableOverlayItem {
      */
     public long nextAvailUpdate = 0;
     /**
-     * the RDF triples with details of the parking
+     * the details of the parking, null until they are loaded
      */
-    public Model details;
+    public CarparkDetails details;
 
     /**
      * the property that was used to get the name, will be ignored in presentation
@@ -137,6 +133,34 @@ public class Parking extends DrawableOverlayItem {
     private static Rect boundsAvailable = null;
     private static Rect boundsUnknown = null;
 
+    /**
+     * returns the car park with the given ID, brought up to date with the given information, or a new car park if none is known for the ID yet
+     * a known car park keeps its details and a title that isn't from the data; it's only replaced by a new one if it has moved
+     * this is safe to call from more threads at the same time, they will all get the same car park
+     * @param point location
+     * @param title car park name
+     * @param id RDF id
+     * @param availabilityResource the resource where this car park's availability can be updated
+     * @param updateResource the resource where new properties for this car park should be sent
+     * @param available availability status
+     * @param timestamp timestamp (may be null) of the availability status
+     * @param availTTL time-to-live (in ms) for the availability information
+     * @param titleProperty the property that was used to get the name, will be ignored in presentation, is null when the server gave us no title
+     * @param unconfirmed whether the car park is submitted recently and not yet approved
+     * @return the registered car park
+     */
+    public static Parking getOrCreate(final GeoPoint point, final String title, final Uri id, final String availabilityResource, final String updateResource, final Availability available, final Long timestamp, final long availTTL, final Property titleProperty, final boolean unconfirmed) {
+        return knownParkings.getOrCreate(id.toString(), new ParkingRegistry.Factory() {
+            public Parking create() {
+                return new Parking(point, title, id, availabilityResource, updateResource, available, timestamp, availTTL, titleProperty, unconfirmed);
+            }
+
+            public boolean update(Parking existing) {
+                return existing.update(point, title, availabilityResource, updateResource, available, timestamp, availTTL, titleProperty, unconfirmed);
+            }
+        });
+    }
+
     /**
      * constructor, fills all the fields
      * @param point location
@@ -150,7 +174,7 @@ public class Parking extends DrawableOverlayItem {
      * @param titleProperty the property that was used to get the name, will be ignored in presentation, is null when the server gave us no title
      * @param unconfirmed whether the car park is submitted recently and not yet approved
      */
-    public Parking(GeoPoint point, String title, Uri id, String availabilityResource, String updateResource, Availability available, Long timestamp, long availTTL, Property titleProperty, boolean unconfirmed) {
+    private Parking(GeoPoint point, String title, Uri id, String availabilityResource, String updateResource, Availability available, Long timestamp, long availTTL, Property titleProperty, boolean unconfirmed) {
         super(point, title, id);
         this.latitude = point.getLatitudeE6() / 1000000.;
         this.longitude = point.getLongitudeE6() / 1000000.;
@@ -168,11 +192,32 @@ public class Parking extends DrawableOverlayItem {
 
         this.lastAvailUpdate = System.currentTimeMillis();
         this.nextAvailUpdate = this.lastAvailUpdate + availTTL;
+    }
 
-        // there might be race conditions if two parkings with the same ID are created in parallel, when the one that remains in the map would be under the other's ID object and could potentially disappear when that object is GCd
-        // but since parkings are only created in tiledownloaderthread in sequence, this is not an issue so there's no synchronization here
-        knownParkings.remove(id); // necessary so that the new entry created below uses this particular ID object
-        knownParkings.put(id, new WeakReference<Parking>(this));
+    /**
+     * updates the fields from fresh data, the parameters are the same as for the constructor
+     * @return false if the car park has moved and needs to be a new object
+     */
+    private synchronized boolean update(GeoPoint point, String title, String availabilityResource, String updateResource, Availability available, Long timestamp, long availTTL, Property titleProperty, boolean unconfirmed) {
+        if (point.getLatitudeE6() != this.point.getLatitudeE6() || point.getLongitudeE6() != this.point.getLongitudeE6()) {
+            return false;
+        }
+        // a title from the data wins, but a geocoded one is better than none
+        if (titleProperty != null || !this.hasAnyTitle) {
+            this.title = title;
+            this.titleProperty = titleProperty;
+            this.hasAnyTitle = titleProperty != null;
+        }
+        this.availabilityResource = availabilityResource;
+        this.updateResource = updateResource;
+        this.unconfirmed = unconfirmed;
+
+        // data older than what we have doesn't make the car park's availability any fresher
+        if (setAvailability(available, timestamp)) {
+            this.lastAvailUpdate = System.currentTimeMillis();
+            this.nextAvailUpdate = this.lastAvailUpdate + availTTL;
+        }
+        return true;
     }
 
     /* *
@@ -266,7 +311,7 @@ public class Parking extends DrawableOverlayItem {
         return this.id.hashCode();
     }
 
-    private static WeakHashMap<Uri, WeakReference<Parking>> knownParkings = new WeakHashMap<Uri, WeakReference<Parking>>();
+    private static final ParkingRegistry knownParkings = new ParkingRegistry();
 
     /**
      * returns parking by its ID if such a parking is known to us
@@ -274,16 +319,10 @@ public class Parking extends DrawableOverlayItem {
      * @return the parking or null
      */
     public static Parking getParking(Uri id) {
-//        if (id == null) {
-//            return null;
-//        }
-        WeakReference<Parking> ref = knownParkings.get(id);
-        Parking retval;
-        if (ref != null) {
-            retval = ref.get();
-        } else {
-            retval = null;
+        if (id == null) {
+            return null;
         }
+        Parking retval = knownParkings.get(id.toString());
 
         if (retval == null) {
 //            Log.d(TAG, "parking not found " + id, new Exception());
@@ -323,16 +362,19 @@ public class Parking extends DrawableOverlayItem {
     /**
      * @param availability the reported availability to set
      * @param timestamp the time stamp of the reported availability
+     * @return false if the car park already had a newer reported availability, which it keeps
      */
-    public void setAvailability(Availability availability, Long timestamp) {
-        if (this.availabilityTimestamp == null ||
-                (timestamp != null && this.availabilityTimestamp <= timestamp)) {
+    public boolean setAvailability(Availability availability, Long timestamp) {
+        boolean accepted = this.availabilityTimestamp == null ||
+                (timestamp != null && this.availabilityTimestamp <= timestamp);
+        if (accepted) {
             this.availabilityEffective = availability;
             this.availabilityReported = availability;
             this.availabilityTimestamp = timestamp;
         }
 
         checkIfOutdatedInfo();
+        return accepted;
     }
 
     /**
@@ -16,6 +16,9 @@
 
 package uk.ac.open.kmi.parking;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -59,7 +62,9 @@ import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.mem.GraphSnapshot;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.ModelFactory;
 import com.hp.hpl.jena.rdf.model.Property;
@@ -67,6 +72,7 @@ import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.shared.JenaException;
 import com.hp.hpl.jena.vocabulary.RDF;
 import com.hp.hpl.jena.vocabulary.RDFS;
 
@@ -363,19 +369,17 @@ public class ParkingDetailsActivity extends Activity implements CarparkDetailsUp
     }
 
     static boolean createDetailsEntries(Context ctxt, ViewGroup detailsLayout, Parking parking, OnClickListener clickListener, boolean showUnconfirmedProperties, boolean longVersion) {
-        Model model = parking.details;
-        Resource parkingRes = model != null ? model.getResource(parking.id.toString()) : null;
+        CarparkDetails details = parking.details;
 
         boolean gotSomething = false;
-        if (model != null) {
+        if (details != null) {
             for (PresentationOntology.Item property : presentationOntology.items) {
                 if (property.id.equals(parking.titleProperty)) {
                     continue;
                     // todo skipping this property because it was used for getting the name - what if there are multiple values in this property?
                 }
-                for (StmtIterator stmts = model.listStatements(parkingRes, property.id, (RDFNode)null); stmts.hasNext(); ) {
-                    Statement s = stmts.next();
-                    if (addDetailsEntry(ctxt, property, s.getObject(), false, detailsLayout, clickListener, longVersion)) {
+                for (Node value : details.getValues(property.id)) {
+                    if (addDetailsEntry(ctxt, property, value, false, detailsLayout, clickListener, longVersion)) {
                         gotSomething = true;
                     }
                 }
@@ -388,16 +392,9 @@ public class ParkingDetailsActivity extends Activity implements CarparkDetailsUp
                     }
                 }
                 for (PresentationOntology.Item property : presentationOntology.items) {
-                    for (StmtIterator unverifieds = model.listStatements(parkingRes, Onto.PARKING_hasUnverifiedProperties, (RDFNode)null); unverifieds.hasNext(); ) {
-                        RDFNode bag = unverifieds.next().getObject();
-                        if (!(bag instanceof Resource)) {
-                            continue;
-                        }
-                        for (StmtIterator stmts = model.listStatements((Resource)bag, property.id, (RDFNode)null); stmts.hasNext(); ) {
-                            Statement s = stmts.next();
-                            if (addDetailsEntry(ctxt, property, s.getObject(), true, detailsLayout, clickListener, longVersion)) {
-                                gotSomething = true;
-                            }
+                    for (Node value : details.getUnverifiedValues(property.id)) {
+                        if (addDetailsEntry(ctxt, property, value, true, detailsLayout, clickListener, longVersion)) {
+                            gotSomething = true;
                         }
                     }
                 }
@@ -412,8 +409,8 @@ public class ParkingDetailsActivity extends Activity implements CarparkDetailsUp
         text.append(": "); // todo this may need localization
         text.setSpan(new StyleSpan(android.graphics.Typeface.BOLD), 0, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         String value = null;
-        if (obj instanceof Literal) {
-            value = ((Literal)obj).getLexicalForm();
+        if (obj instanceof Node && ((Node)obj).isLiteral()) {
+            value = ((Node)obj).getLiteralLexicalForm();
         } else {
             value = obj.toString();
         }
@@ -595,9 +592,34 @@ public class ParkingDetailsActivity extends Activity implements CarparkDetailsUp
         if (presentationOntology != null) {
             return;
         }
+        presentationOntology = new PresentationOntology(loadPresentationOntology(ctxt.getResources()), ctxt);
+    }
+
+    /**
+     * loads the presentation ontology from its snapshot (made with GraphSnapshot, see README), or parses it if the snapshot wasn't made from this version of the ontology
+     * the items keep their properties and so this model for the life of the app, it's never changed so it's kept frozen, which is much smaller
+     */
+    private static Model loadPresentationOntology(Resources res) {
+        byte[] source = GraphSnapshot.readAll(res.openRawResource(R.raw.presentation_ontology));
+        InputStream snapshot = res.openRawResource(R.raw.presentation_ontology_snapshot);
+        try {
+            Graph graph = GraphSnapshot.read(snapshot, Ontology.PRESENTATION_ONTOLOGY, GraphSnapshot.checksum(source));
+            if (graph != null) {
+                return ModelFactory.createModelForGraph(graph);
+            }
+            Log.w(TAG, "presentation ontology snapshot is stale, parsing the ontology");
+        } catch (JenaException e) {
+            Log.w(TAG, "cannot read presentation ontology snapshot, parsing the ontology", e);
+        } finally {
+            try {
+                snapshot.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
         Model model = ModelFactory.createDefaultModel();
-        model.read(ctxt.getResources().openRawResource(R.raw.presentation_ontology), Ontology.PRESENTATION_ONTOLOGY, "TURTLE");
-        presentationOntology = new PresentationOntology(model, ctxt);
+        model.read(new ByteArrayInputStream(source), Ontology.PRESENTATION_ONTOLOGY, "TURTLE");
+        return ModelFactory.createFrozenModel(model);
     }
 
     /**
@@ -0,0 +1,114 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the car parks we know, by their ID, for every thread of the application
+ * the car parks are only weakly referenced, the map tiles and others keep them alive; entries of collected car parks are removed on the next write
+ * reads don't lock anything, and getOrCreate makes sure there's never more than one car park object registered for one ID
+ * this class is thread-safe
+ */
+class ParkingRegistry {
+    @SuppressWarnings("unused")
+    private static final String TAG = "parking registry";
+
+    private final ConcurrentHashMap<String, Entry> parkings = new ConcurrentHashMap<String, Entry>(1000, .75f, 4);
+    private final ReferenceQueue<Parking> collected = new ReferenceQueue<Parking>();
+
+    /**
+     * creates a car park, or updates the existing one, for the given ID
+     */
+    interface Factory {
+        /**
+         * @return a new car park
+         */
+        Parking create();
+
+        /**
+         * brings an existing car park up to date
+         * @param existing the car park registered with the ID
+         * @return false if the existing car park cannot be updated and must be replaced by a new one
+         */
+        boolean update(Parking existing);
+    }
+
+    /**
+     * @param id the ID of the car park
+     * @return the car park or null if none is known
+     */
+    Parking get(String id) {
+        Entry entry = this.parkings.get(id);
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * returns the car park with the given ID, updated by the factory; if there isn't one (or it cannot be updated), the factory creates a new one
+     * if more threads do this at the same time, they all end up with the same car park
+     * @param id the ID of the car park
+     * @param factory what creates or updates the car park
+     * @return the registered car park
+     */
+    Parking getOrCreate(String id, Factory factory) {
+        expungeCollected();
+        Parking created = null;
+        for (;;) {
+            Entry entry = this.parkings.get(id);
+            Parking existing = entry == null ? null : entry.get();
+            if (existing != null && factory.update(existing)) {
+                return existing;
+            }
+            if (created == null) {
+                created = factory.create();
+            }
+            Entry newEntry = new Entry(id, created, this.collected);
+            if (entry == null ? this.parkings.putIfAbsent(id, newEntry) == null : this.parkings.replace(id, entry, newEntry)) {
+                return created;
+            }
+            // another thread got there first, try again with its car park
+        }
+    }
+
+    /**
+     * @return the number of entries, including those of car parks that were collected but not yet removed
+     */
+    int size() {
+        return this.parkings.size();
+    }
+
+    private void expungeCollected() {
+        Reference<? extends Parking> ref;
+        while ((ref = this.collected.poll()) != null) {
+            Entry entry = (Entry) ref;
+            // only removes the entry if it hasn't been replaced already
+            this.parkings.remove(entry.id, entry);
+        }
+    }
+
+    private static class Entry extends WeakReference<Parking> {
+        final String id;
+
+        Entry(String id, Parking parking, ReferenceQueue<Parking> queue) {
+            super(parking, queue);
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * file helpers shared by the stores on local storage
+ * a file is replaced by writing a temporary file next to it and renaming that over it, so a process killed halfway through
+ * leaves either the old file or the new one, never a half-written one
+ */
+class AtomicFile {
+    private static final String TAG = "atomic file";
+
+    /**
+     * writes the new content of a file
+     */
+    interface Content {
+        /**
+         * @param out the stream to the temporary file, it's closed by the caller
+         */
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private AtomicFile() {}
+
+    /**
+     * replaces the content of a file, creating its directory if necessary; failures are logged
+     * @param file the file
+     * @param content what to write into it
+     * @return true if the file now has the new content, false if it still has the old one
+     */
+    static boolean write(File file, Content content) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            Log.w(TAG, "cannot create directory " + parent);
+            return false;
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            content.write(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                Log.w(TAG, "cannot replace " + file);
+                temp.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot write " + file, e);
+            close(out);
+            temp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * closes a stream, if there is one, ignoring any failure
+     */
+    static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
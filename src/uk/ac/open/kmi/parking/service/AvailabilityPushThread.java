@@ -0,0 +1,252 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import uk.ac.open.kmi.parking.Onto;
+import uk.ac.open.kmi.parking.Parking;
+import android.net.Uri;
+import android.util.Log;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.shared.JenaException;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * this thread keeps one long-polled request open to the server for the watched car parks (the ones the refresh trigger would poll),
+ * the server answers when any of them changes its availability (with only the changed car parks), or with 304 Not Modified after a while
+ * as long as the channel works, the watched car parks' next availability update is kept in the future so nobody polls them;
+ * when it doesn't (the server doesn't support it, or the network fails), the next updates fall due and the refresh trigger polls them as before
+ */
+class AvailabilityPushThread implements Runnable {
+    private static final String TAG = "availability push";
+
+    private final DetailsAndAvailabilityThread availabilityUpdater;
+
+    private Set<Uri> watched = new HashSet<Uri>();
+    private boolean watchedChanged = false;
+    private HttpURLConnection connection = null;
+
+    // the version of the server's availability data that we have for the watched car parks (an ETag), null when we need the full current availability
+    private String version = null;
+    private volatile boolean unsupported = false;
+
+    private int requestCount = 0;
+    private int changeCount = 0;
+
+    public AvailabilityPushThread(DetailsAndAvailabilityThread availabilityUpdater) {
+        this.availabilityUpdater = availabilityUpdater;
+    }
+
+    /**
+     * sets the car parks whose availability changes should be pushed to us; if it's different from what's being watched, the current request is dropped and a new one made
+     * @param parkings the IDs of the car parks, may be empty
+     */
+    public synchronized void setWatched(Set<Uri> parkings) {
+        if (this.unsupported || parkings.equals(this.watched)) {
+            return;
+        }
+        this.watched = new HashSet<Uri>(parkings);
+        this.watchedChanged = true;
+        // the first response for the new car parks has all their availability, not only the changes
+        this.version = null;
+        if (this.connection != null) {
+            // makes the blocked request fail, the thread then starts over with the new car parks
+            this.connection.disconnect();
+            this.connection = null;
+        }
+        notifyAll();
+    }
+
+    public void run() {
+        long delay = 0;
+        for (;;) {
+            try {
+                if (delay > 0) {
+                    synchronized (this) {
+                        if (!this.watchedChanged) {
+                            wait(delay);
+                        }
+                    }
+                    delay = 0;
+                }
+
+                Set<Uri> current;
+                synchronized (this) {
+                    while (this.watched.isEmpty() || this.unsupported) {
+                        wait();
+                    }
+                    current = this.watched;
+                    this.watchedChanged = false;
+                }
+
+                List<Parking> parkings = new ArrayList<Parking>(current.size());
+                for (Uri id : current) {
+                    Parking p = Parking.getParking(id);
+                    // only the car parks whose availability is on our server can be watched this way
+                    if (p != null && p.availabilityResource != null && p.availabilityResource.startsWith(Config.SERVER)) {
+                        parkings.add(p);
+                    }
+                }
+
+                if (parkings.isEmpty()) {
+                    // the car parks may not be loaded yet
+                    delay = Config.DEFAULT_AVAIL_TTL;
+                } else {
+                    delay = poll(parkings);
+                }
+            } catch (InterruptedException e) {
+//                Log.i(TAG, "thread interrupted, quitting");
+                return;
+            } catch (Exception e) {
+                Log.w(TAG, "thread almost died of exception", e);
+                // polling takes over for a while
+                delay = Config.DEFAULT_NETWORK_PROBLEM_DELAY;
+            }
+        }
+    }
+
+    /**
+     * makes one long-polling request for the given car parks and applies the changes that come back
+     * @return how long (in ms) to wait before the next request, 0 for right away; after a failure the wait is long enough for polling to take over
+     */
+    private long poll(List<Parking> parkings) {
+        HttpURLConnection conn = null;
+        try {
+            StringBuilder uri = new StringBuilder(Config.SERVER + "availchanges?wait=" + Config.AVAILABILITY_PUSH_HOLD);
+            for (Parking p : parkings) {
+                uri.append("&park=").append(URLEncoder.encode(p.id.toString(), "UTF-8"));
+            }
+
+            conn = (HttpURLConnection) new URL(uri.toString()).openConnection();
+            conn.setRequestProperty("Accept", "text/turtle,*/*;q=0.5");
+            conn.setReadTimeout(Config.AVAILABILITY_PUSH_HOLD*1000 + Config.AVAILABILITY_PUSH_SLACK);
+            synchronized (this) {
+                if (this.watchedChanged) {
+                    return 0;
+                }
+                if (this.version != null) {
+                    conn.setRequestProperty("If-None-Match", this.version);
+                }
+                this.connection = conn;
+            }
+            this.requestCount++;
+
+            int responseCode = conn.getResponseCode();
+            long time = System.currentTimeMillis();
+            // nobody needs to poll these car parks until the next response is overdue
+            long nextUpdate = time + Config.AVAILABILITY_PUSH_HOLD*1000 + Config.AVAILABILITY_PUSH_SLACK;
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_BAD_REQUEST ||
+                    responseCode == HttpURLConnection.HTTP_BAD_METHOD || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                Log.i(TAG, "server doesn't support pushing availability changes (response code " + responseCode + "), polling instead");
+                this.unsupported = true;
+                return Config.DEFAULT_NETWORK_PROBLEM_DELAY;
+            }
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                postpone(parkings, nextUpdate);
+                return 0;
+            }
+            if (responseCode / 100 != 2) {
+                Log.w(TAG, "availability changes " + uri + " returned response code " + responseCode);
+                return Config.DEFAULT_NETWORK_PROBLEM_DELAY;
+            }
+
+            Model model = ModelFactory.createDefaultModel();
+            try {
+                model.read(new BufferedInputStream(conn.getInputStream()), uri.toString(), "TURTLE");
+            } catch (JenaException e) {
+                Log.w(TAG, "cannot parse availability changes " + uri, e);
+                return Config.DEFAULT_NETWORK_PROBLEM_DELAY;
+            }
+
+            long delay = 0;
+            synchronized (this) {
+                if (!this.watchedChanged) {
+                    this.version = conn.getHeaderField("ETag");
+                    if (this.version == null) {
+                        // without a version the server would answer the next request straight away with everything again, so don't ask more often than polling would
+                        delay = Config.DEFAULT_AVAIL_TTL;
+                        nextUpdate += delay;
+                    }
+                }
+            }
+
+            for (Parking p : parkings) {
+                Resource parking = model.getResource(p.id.toString());
+                if (model.contains(parking, RDF.type, Onto.LGO_Parking)) {
+                    this.changeCount++;
+                    this.availabilityUpdater.applyAvailability(p, DetailsAndAvailabilityThread.readAvailability(model, parking, uri.toString()), nextUpdate);
+                }
+            }
+            postpone(parkings, nextUpdate);
+            return delay;
+        } catch (IOException e) {
+            synchronized (this) {
+                if (this.watchedChanged) {
+                    // we dropped the request ourselves
+                    return 0;
+                }
+            }
+//            Log.d(TAG, "io exception while waiting for availability changes: ", e);
+            return Config.DEFAULT_NETWORK_PROBLEM_DELAY;
+        } finally {
+            synchronized (this) {
+                if (this.connection == conn) {
+                    this.connection = null;
+                }
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    // the channel is keeping the availability of these car parks current
+    private static void postpone(List<Parking> parkings, long nextUpdate) {
+        for (Parking p : parkings) {
+            if (p.nextAvailUpdate < nextUpdate) {
+                p.nextAvailUpdate = nextUpdate;
+            }
+        }
+    }
+
+    /**
+     * @return how many requests the channel has made
+     */
+    public int getRequestCount() {
+        return this.requestCount;
+    }
+
+    /**
+     * @return how many car park availability changes the channel has received
+     */
+    public int getChangeCount() {
+        return this.changeCount;
+    }
+}
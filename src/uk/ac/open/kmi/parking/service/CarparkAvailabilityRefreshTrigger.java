@@ -16,7 +16,9 @@
 
 package uk.ac.open.kmi.parking.service;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import uk.ac.open.kmi.parking.Parking;
 import android.net.Uri;
@@ -30,10 +32,15 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
 
     private DetailsAndAvailabilityThread availabilityUpdater;
     private RememberedCarparks rememberedCarparks;
+    private AvailabilityPushThread pushChannel;
 
-    public CarparkAvailabilityRefreshTrigger(DetailsAndAvailabilityThread thread, RememberedCarparks rememberedCarparks) {
+    /**
+     * @param pushChannel the channel that gets told which car parks are watched, null if availability is only polled
+     */
+    public CarparkAvailabilityRefreshTrigger(DetailsAndAvailabilityThread thread, RememberedCarparks rememberedCarparks, AvailabilityPushThread pushChannel) {
         this.availabilityUpdater = thread;
         this.rememberedCarparks = rememberedCarparks;
+        this.pushChannel = pushChannel;
     }
 
     private Uri parkingCurrpark = null;
@@ -73,10 +80,14 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
     }
 
     private synchronized void refreshNextWakeTime() {
-        if (this.waitingThread == null) {
+        if (!this.running) {
             return;
         }
 
+        if (this.pushChannel != null) {
+            this.pushChannel.setWatched(listWatched());
+        }
+
         long minUpdateTime = Long.MAX_VALUE;
         minUpdateTime = Long.MAX_VALUE;
         minUpdateTime = minTime(minUpdateTime, this.parkingCurrpark, this.parkingCurrparkLoading);
@@ -94,8 +105,31 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
         }
 //        Log.v(TAG, "minupdatetime = " + minUpdateTime);
 
-        this.waitingThread.nextWake = minUpdateTime;
-        this.waitingThread.interrupt();
+        if (minUpdateTime == Long.MAX_VALUE) {
+            this.waker.cancel();
+        } else {
+            this.waker.scheduleAt(minUpdateTime);
+        }
+    }
+
+    // the car parks whose availability we want to keep current
+    private Set<Uri> listWatched() {
+        Set<Uri> watched = new HashSet<Uri>();
+        if (this.parkingCurrpark != null) {
+            watched.add(this.parkingCurrpark);
+        }
+        if (this.parkingInBubble != null) {
+            watched.add(this.parkingInBubble);
+        }
+        if (this.parkingDetailsView != null) {
+            watched.add(this.parkingDetailsView);
+        }
+        if (this.parkingsPinnedUpdating) {
+            for (Parking p : this.rememberedCarparks.listLastKnownPinnedCarparks()) {
+                watched.add(p.id);
+            }
+        }
+        return watched;
     }
 
     private long minTime(long time, Uri parking, boolean ignore) {
@@ -107,68 +141,50 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
         return p != null && time > p.nextAvailUpdate ? p.nextAvailUpdate : time;
     }
 
-    private WaitingThread waitingThread = null;
+    private boolean running = false;
 
-    public synchronized void startThread() {
-        if (this.waitingThread != null) {
-//            Log.w(TAG, "asked to start thread when it's already apparently started");
+    // wakes up when the next availability update is due
+    private final Scheduler.Task waker = Scheduler.get().newTask("availability refresh", new Runnable() {
+        public void run() {
+            synchronized (CarparkAvailabilityRefreshTrigger.this) {
+                if (CarparkAvailabilityRefreshTrigger.this.running) {
+                    triggerRefresh(System.currentTimeMillis());
+                }
+            }
+        }
+    });
+
+    public synchronized void start() {
+        if (this.running) {
+//            Log.w(TAG, "asked to start when it's already apparently started");
             return;
         }
         this.parkingInBubbleLoading = false;
         this.parkingCurrparkLoading = false;
         this.parkingDetailsViewLoading = false;
         this.availabilityUpdater.registerAvailabilityUpdateListener(this);
-        this.waitingThread = new WaitingThread();
-        this.waitingThread.start();
+        this.running = true;
         refreshNextWakeTime();
     }
 
-    public synchronized void stopThread() {
-        if (this.waitingThread == null) {
-//            Log.w(TAG, "asked to stop thread when it's already stopped");
+    public synchronized void stop() {
+        if (!this.running) {
+//            Log.w(TAG, "asked to stop when it's already stopped");
             return;
         }
-        this.waitingThread.shouldDie = true;
-        this.waitingThread.interrupt();
-        this.waitingThread = null;
-        this.availabilityUpdater.unregisterAvailabilityUpdateListener(this);
-    }
-
-    private class WaitingThread extends Thread {
-        volatile boolean shouldDie = false;
-        volatile long nextWake = Long.MAX_VALUE;
-
-        @Override
-        public void run() {
-            for (;;) {
-                try {
-                    long timeToSleep = Long.MAX_VALUE;
-                    synchronized (CarparkAvailabilityRefreshTrigger.this) {
-                        long time = System.currentTimeMillis();
-                        if (time >= this.nextWake) {
-                            CarparkAvailabilityRefreshTrigger.this.triggerRefresh(time);
-                        } else {
-                            timeToSleep = this.nextWake - time + Config.EXTRA_SLEEP_TIME; // sleeping 200ms longer than needed to try and make sure we don't wake up prematurely (timing not guaranteed by sleep)
-                        }
-                    }
-//                    Log.v(TAG, "sleeping for " + timeToSleep + "ms");
-                    Thread.sleep(timeToSleep);
-//                    Log.v(TAG, "sleeper awoke");
-                } catch (InterruptedException e) {
-                    if (this.shouldDie) {
-                        return;
-                    }
-                }
-            }
-
+        this.running = false;
+        this.waker.cancel();
+        if (this.pushChannel != null) {
+            this.pushChannel.setWatched(new HashSet<Uri>());
         }
+        this.availabilityUpdater.unregisterAvailabilityUpdateListener(this);
     }
 
     void triggerRefresh(long time) {
         if (this.parkingCurrpark != null && !this.parkingCurrparkLoading) {
             Parking p = Parking.getParking(this.parkingCurrpark);
             if (p != null && p.nextAvailUpdate <= time) {
-                this.availabilityUpdater.updateParkingAvailability(p);
+                this.availabilityUpdater.updateParkingAvailability(p, RequestPriority.FOREGROUND);
                 this.parkingCurrparkLoading = true;
 //                Log.d(TAG, "updating current carpark's availability for " + p.id);
             }
@@ -176,7 +192,7 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
         if (this.parkingInBubble != null && !this.parkingInBubbleLoading) {
             Parking p = Parking.getParking(this.parkingInBubble);
             if (p != null && p.nextAvailUpdate <= time) {
-                this.availabilityUpdater.updateParkingAvailability(p);
+                this.availabilityUpdater.updateParkingAvailability(p, RequestPriority.BUBBLE);
                 this.parkingInBubbleLoading = true;
 //                Log.d(TAG, "updating bubble carpark's availability for " + p.id);
             }
@@ -184,7 +200,7 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
         if (this.parkingDetailsView != null && !this.parkingDetailsViewLoading) {
             Parking p = Parking.getParking(this.parkingDetailsView);
             if (p != null && p.nextAvailUpdate <= time) {
-                this.availabilityUpdater.updateParkingAvailability(p);
+                this.availabilityUpdater.updateParkingAvailability(p, RequestPriority.FOREGROUND);
                 this.parkingDetailsViewLoading = true;
 //                Log.d(TAG, "updating details view carpark's availability for " + p.id);
             }
@@ -193,7 +209,7 @@ class CarparkAvailabilityRefreshTrigger implements CarparkAvailabilityUpdateList
             List<Parking> pinned = this.rememberedCarparks.listLastKnownPinnedCarparks();
             for (Parking p : pinned) {
                 if (p.nextAvailUpdate <= time) {
-                    this.availabilityUpdater.updateParkingAvailability(p);
+                    this.availabilityUpdater.updateParkingAvailability(p, RequestPriority.PINNED);
                 }
             }
             this.parkingsPinnedNextLoading = time + 10000; // todo constant somewhere?
@@ -0,0 +1,65 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * a group of car parks that are close together at some zoom level, shown on the map instead of the individual car parks when zoomed out
+ * @author Jacek Kopecky
+ *
+ */
+public class CarparkCluster {
+    /**
+     * the center of the car parks in the cluster
+     */
+    public final GeoPoint point;
+
+    /**
+     * how many car parks are in the cluster
+     */
+    public final int count;
+
+    /**
+     * how many of the car parks are available
+     */
+    public final int available;
+
+    /**
+     * how many of the car parks are full
+     */
+    public final int full;
+
+    CarparkCluster(GeoPoint point, int count, int available, int full) {
+        this.point = point;
+        this.count = count;
+        this.available = available;
+        this.full = full;
+    }
+
+    /**
+     * @return how many of the car parks have unknown availability
+     */
+    public int getUnknown() {
+        return this.count - this.available - this.full;
+    }
+
+    @Override
+    public String toString() {
+        return "cluster of " + this.count + " at " + this.point + " (" + this.available + " available, " + this.full + " full)";
+    }
+}
@@ -0,0 +1,185 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.open.kmi.parking.Parking;
+import uk.ac.open.kmi.parking.Parking.Availability;
+
+import com.google.android.maps.GeoPoint;
+
+/**
+ * groups the car parks of the cached map tiles into grid clusters for the zoom levels at which the individual car parks would be too many to show
+ * the grid cells at every zoom level divide the map tiles evenly (so a cell never spans tiles) and are around 70-90 pixels on each side;
+ * the car parks of a tile are put in the cells for all the zoom levels when the tile is added, the counts and availability mix are summed up when asked for
+ * this class is synchronized
+ */
+class CarparkClusterer {
+    @SuppressWarnings("unused")
+    private static final String TAG = "carpark clusterer";
+
+    /**
+     * the lowest zoom level with clusters, further out there would be too many tiles to load
+     */
+    static final int MIN_ZOOM = 12;
+
+    /**
+     * the highest zoom level with clusters, further in the car parks are shown individually
+     */
+    static final int MAX_ZOOM = 15;
+
+    // how many cells there are along the side of a tile, for the zoom levels from MIN_ZOOM to MAX_ZOOM
+    private static final int[] CELLS_PER_TILE = { 1, 2, 5, 10 };
+
+    // for every tile, its car parks in the cells for every zoom level; the tiles the tile cache drops are dropped here too
+    private final Map<MapTile, TileCells> tiles = new HashMap<MapTile, TileCells>();
+    private final MapTile tileTemplate = new MapTile();
+
+    /**
+     * puts the car parks of the tile in the clusters, replacing whatever the clusterer had for the tile
+     * @param tile the tile
+     */
+    public synchronized void addTile(MapTile tile) {
+        this.tiles.put(tile, new TileCells(tile));
+    }
+
+    /**
+     * checks that the clusterer has the given instance of the tile
+     * @param tile the tile
+     * @return true if the clusterer has this very tile
+     */
+    public synchronized boolean containsTile(MapTile tile) {
+        TileCells cells = this.tiles.get(tile);
+        return cells != null && cells.tile == tile;
+    }
+
+    /**
+     * @return the tiles the clusterer has
+     */
+    public synchronized List<MapTile> listTiles() {
+        return new ArrayList<MapTile>(this.tiles.keySet());
+    }
+
+    /**
+     * drops the car parks of the tile from the clusters
+     * @param tile the tile
+     */
+    public synchronized void removeTile(MapTile tile) {
+        this.tiles.remove(tile);
+    }
+
+    /**
+     * computes the clusters in the given area at the given zoom level; only the tiles the clusterer has are used
+     * @param area the area, the cells that overlap it are all returned
+     * @param zoom the zoom level, between MIN_ZOOM and MAX_ZOOM
+     * @param onlyConfirmed whether to skip unconfirmed car parks
+     * @return the non-empty clusters
+     */
+    public synchronized List<CarparkCluster> cluster(MapRectangle area, int zoom, boolean onlyConfirmed) {
+        int level = zoom - MIN_ZOOM;
+        int tileMinLatE0 = tileIndex(area.latmin);
+        int tileMinLonE0 = tileIndex(area.lonmin);
+        int tileMaxLatE0 = tileIndex(area.latmax);
+        int tileMaxLonE0 = tileIndex(area.lonmax);
+
+        List<CarparkCluster> retval = new ArrayList<CarparkCluster>();
+        for (int latE0 = tileMinLatE0; latE0 <= tileMaxLatE0; latE0++) {
+            for (int lonE0 = tileMinLonE0; lonE0 <= tileMaxLonE0; lonE0++) {
+                this.tileTemplate.late6min = latE0 * ParkingsService.TILE_SIZE;
+                this.tileTemplate.lone6min = lonE0 * ParkingsService.TILE_SIZE;
+                TileCells cells = this.tiles.get(this.tileTemplate);
+                if (cells == null) {
+                    continue;
+                }
+                for (List<Parking> cell : cells.levels.get(level).values()) {
+                    CarparkCluster cluster = summarize(cell, onlyConfirmed);
+                    if (cluster != null) {
+                        retval.add(cluster);
+                    }
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static CarparkCluster summarize(List<Parking> cell, boolean onlyConfirmed) {
+        int count = 0;
+        int available = 0;
+        int full = 0;
+        long latSum = 0;
+        long lonSum = 0;
+        for (Parking p : cell) {
+            if (onlyConfirmed && p.unconfirmed) {
+                continue;
+            }
+            count++;
+            latSum += p.point.getLatitudeE6();
+            lonSum += p.point.getLongitudeE6();
+            Availability availability = p.getEffectiveAvailability();
+            if (availability == Availability.AVAILABLE) {
+                available++;
+            } else if (availability == Availability.FULL) {
+                full++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new CarparkCluster(new GeoPoint((int) (latSum / count), (int) (lonSum / count)), count, available, full);
+    }
+
+    private static int tileIndex(int e6) {
+        int retval = e6 / ParkingsService.TILE_SIZE;
+        if (e6 < 0 && retval * ParkingsService.TILE_SIZE != e6) {
+            retval--;
+        }
+        return retval;
+    }
+
+    /**
+     * the car parks of a tile, in the cells of every zoom level
+     */
+    private static class TileCells {
+        final MapTile tile;
+        final List<Map<Integer, List<Parking>>> levels = new ArrayList<Map<Integer, List<Parking>>>(CELLS_PER_TILE.length);
+
+        TileCells(MapTile tile) {
+            this.tile = tile;
+            for (int cellsPerTile : CELLS_PER_TILE) {
+                int cellSize = ParkingsService.TILE_SIZE / cellsPerTile;
+                Map<Integer, List<Parking>> cells = new HashMap<Integer, List<Parking>>();
+                for (Parking p : tile.parkings.values()) {
+                    // the car parks are all in the tile so the cell numbers are small
+                    int i = Math.min((p.point.getLatitudeE6() - tile.late6min) / cellSize, cellsPerTile-1);
+                    int j = Math.min((p.point.getLongitudeE6() - tile.lone6min) / cellSize, cellsPerTile-1);
+                    Integer key = Integer.valueOf(Math.max(i, 0) * cellsPerTile + Math.max(j, 0));
+                    List<Parking> cell = cells.get(key);
+                    if (cell == null) {
+                        cell = new ArrayList<Parking>(4);
+                        cells.put(key, cell);
+                    }
+                    cell.add(p);
+                }
+                this.levels.add(cells);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.open.kmi.parking.Parking;
+import android.location.Location;
+
+/**
+ * a grid index of the car parks in recently updated map tiles, for finding the nearest car parks without checking the distance to every one of them
+ * the grid cells are a tenth of a tile on each side; cells are filled and cleared a whole tile at a time, and the least recently used tiles are dropped
+ * this class is synchronized
+ */
+class CarparkIndex {
+    @SuppressWarnings("unused")
+    private static final String TAG = "carpark index";
+
+    private static final int CELLS_PER_TILE = 10;
+    private static final int CELL_SIZE = ParkingsService.TILE_SIZE / CELLS_PER_TILE;
+
+    // a millionth of a degree of latitude, in meters
+    private static final double METERS_PER_E6 = 0.111195;
+    // the flat-earth approximation used for pruning must never throw away a car park that is actually near enough
+    private static final double APPROXIMATION_SLACK = 1.01;
+    // near the poles a cell is very narrow, don't search forever
+    private static final int MAX_RINGS = 50;
+
+    private final Map<Long, List<Parking>> cells = new HashMap<Long, List<Parking>>();
+    private final LinkedHashMap<MapTile, MapTile> tiles;
+
+    /**
+     * @param capacity how many tiles the index holds
+     */
+    public CarparkIndex(final int capacity) {
+        this.tiles = new LinkedHashMap<MapTile, MapTile>(capacity+1, .5f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MapTile, MapTile> eldest) {
+                if (size() > capacity) {
+                    clearTile(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * puts the car parks of the tile in the index, replacing whatever the index had for the tile's area
+     * @param tile the tile
+     */
+    public synchronized void addTile(MapTile tile) {
+        MapTile old = this.tiles.put(tile, tile);
+        if (old != null) {
+            clearTile(old);
+        }
+        for (Parking p : tile.parkings.values()) {
+            Long key = cellKey(cellIndex(p.point.getLatitudeE6()), cellIndex(p.point.getLongitudeE6()));
+            List<Parking> cell = this.cells.get(key);
+            if (cell == null) {
+                cell = new ArrayList<Parking>(4);
+                this.cells.put(key, cell);
+            }
+            cell.add(p);
+        }
+    }
+
+    /**
+     * checks that the index has the given instance of the tile, and makes it the freshest tile in the index
+     * @param tile the tile
+     * @return true if the index has this very tile
+     */
+    public synchronized boolean containsTile(MapTile tile) {
+        return this.tiles.get(tile) == tile;
+    }
+
+    private void clearTile(MapTile tile) {
+        int minLat = cellIndex(tile.late6min);
+        int minLon = cellIndex(tile.lone6min);
+        for (int i=0; i<CELLS_PER_TILE; i++) {
+            for (int j=0; j<CELLS_PER_TILE; j++) {
+                this.cells.remove(cellKey(minLat+i, minLon+j));
+            }
+        }
+    }
+
+    /**
+     * finds the car parks nearest to the given location
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     * @param k how many car parks at most
+     * @param maxDistance only car parks closer than this (in meters) are returned
+     * @param onlyConfirmed whether to skip unconfirmed car parks
+     * @return up to k car parks, the nearest first
+     */
+    public synchronized List<Parking> findNearest(double latitude, double longitude, int k, double maxDistance, boolean onlyConfirmed) {
+        List<Parking> nearest = new ArrayList<Parking>(k+1);
+        List<Float> distances = new ArrayList<Float>(k+1);
+        if (k <= 0) {
+            return nearest;
+        }
+
+        int late6 = (int) Math.floor(latitude*1e6);
+        int lone6 = (int) Math.floor(longitude*1e6);
+        int centerLat = cellIndex(late6);
+        int centerLon = cellIndex(lone6);
+
+        double lonScale = Math.cos(Math.toRadians(latitude));
+        double cellMeters = CELL_SIZE * METERS_PER_E6 * Math.min(1, lonScale);
+        float[] distresult = new float[1];
+
+        for (int r=0; r<=MAX_RINGS; r++) {
+            // anything in ring r is at least r-1 whole cells away
+            double ringDistance = (r-1) * cellMeters;
+            if (ringDistance >= maxDistance || (nearest.size() == k && ringDistance >= distances.get(k-1))) {
+                break;
+            }
+            for (int i=-r; i<=r; i++) {
+                // the whole top and bottom rows of the ring, only the two ends of the rows in between
+                int step = (i == -r || i == r) ? 1 : 2*r;
+                for (int j=-r; j<=r; j+=step) {
+                    List<Parking> cell = this.cells.get(cellKey(centerLat+i, centerLon+j));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Parking p : cell) {
+                        if (onlyConfirmed && p.unconfirmed) {
+                            continue;
+                        }
+                        double bound = nearest.size() == k ? distances.get(k-1) : maxDistance;
+                        bound *= APPROXIMATION_SLACK;
+                        double dy = (p.point.getLatitudeE6() - late6) * METERS_PER_E6;
+                        double dx = (p.point.getLongitudeE6() - lone6) * METERS_PER_E6 * lonScale;
+                        if (dx*dx + dy*dy > bound*bound) {
+                            continue;
+                        }
+                        Location.distanceBetween(latitude, longitude, p.latitude, p.longitude, distresult);
+                        float distance = distresult[0];
+                        if (distance >= maxDistance || (nearest.size() == k && distance >= distances.get(k-1))) {
+                            continue;
+                        }
+                        int pos = nearest.size();
+                        while (pos > 0 && distances.get(pos-1) > distance) {
+                            pos--;
+                        }
+                        nearest.add(pos, p);
+                        distances.add(pos, distance);
+                        if (nearest.size() > k) {
+                            nearest.remove(k);
+                            distances.remove(k);
+                        }
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static int cellIndex(int e6) {
+        int retval = e6 / CELL_SIZE;
+        if (e6 < 0 && retval * CELL_SIZE != e6) {
+            retval--;
+        }
+        return retval;
+    }
+
+    private static Long cellKey(int cellLat, int cellLon) {
+        return Long.valueOf(((long) cellLat << 32) | (cellLon & 0xffffffffL));
+    }
+}
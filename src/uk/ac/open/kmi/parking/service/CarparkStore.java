@@ -0,0 +1,449 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import uk.ac.open.kmi.parking.CarparkDetails;
+import uk.ac.open.kmi.parking.Parking;
+import uk.ac.open.kmi.parking.Parking.Availability;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.maps.GeoPoint;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+
+/**
+ * a persistent store of the last known state of pinned and recently viewed car parks, so they can be shown straight away after a cold start, even without network
+ * the store is a log file that is read sequentially once at startup; every change of a stored car park is appended to it as a new record,
+ * and the log is rewritten without the superseded records when it gets too long
+ * the store listens to details and availability updates and appends the stored car parks that changed
+ * the file is only read and written on the store's own thread, so the callers (often the UI thread) never wait for it
+ * this class is synchronized
+ */
+class CarparkStore implements CarparkDetailsUpdateListener, CarparkAvailabilityUpdateListener {
+    private static final String TAG = "carpark store";
+
+    // the log of another version is started afresh when it is loaded
+    private static final int VERSION = 1;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    // the log is rewritten when it has this many times more records than there are stored car parks (plus a few)
+    private static final int COMPACTION_RATIO = 4;
+    private static final int COMPACTION_SLACK = 16;
+
+    private final File file;
+    private final int maxRecent;
+
+    // the stored car parks, the least recently stored first; the store holds on to them so they stay in the registry of known car parks
+    private final LinkedHashMap<String, Stored> entries = new LinkedHashMap<String, Stored>();
+    // how many records there are in the log, including the superseded ones
+    private int records = 0;
+
+    // loads and writes happen here, in the order they were asked for
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param file the log file, it will be created if necessary
+     * @param maxRecent how many car parks that are not pinned are kept
+     */
+    public CarparkStore(File file, int maxRecent) {
+        this.file = file;
+        this.maxRecent = maxRecent;
+    }
+
+    /**
+     * loads the store on its own thread; the writes asked for in the meantime are done after the load
+     * @param loaded called on the store's thread when the stored car parks are known, may be null
+     */
+    public void loadInBackground(final Runnable loaded) {
+        this.writer.execute(new Runnable() {
+            public void run() {
+                load();
+                if (loaded != null) {
+                    loaded.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * reads the whole log and recreates the stored car parks; they become known car parks with the details and availability
+     * they had when they were last stored, and they are due for a refresh
+     * @return the stored car parks, the least recently stored first
+     */
+    public synchronized List<Parking> load() {
+        this.entries.clear();
+        this.records = 0;
+        boolean clean = false;
+        boolean skipped = false;
+        long length = this.file.length();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            if (in.readInt() == VERSION) {
+                long position = 4;
+                while (position < length) {
+                    int recordLength = in.readInt();
+                    long crc = in.readLong();
+                    if (recordLength < 0 || recordLength > length - position) {
+                        throw new IOException("bad record length " + recordLength);
+                    }
+                    byte[] record = new byte[recordLength];
+                    in.readFully(record);
+                    if (checksum(record) != crc) {
+                        throw new IOException("bad checksum");
+                    }
+                    try {
+                        readRecord(record);
+                        this.records++;
+                    } catch (RuntimeException e) {
+                        // a record that was written whole but can't be made into a car park, the rest of the log is still good
+                        Log.w(TAG, "bad record in " + this.file, e);
+                        skipped = true;
+                    }
+                    position += 12 + recordLength;
+                }
+                clean = !skipped;
+            }
+        } catch (EOFException e) {
+            // the process was killed while appending, the last record is incomplete
+        } catch (IOException e) {
+            if (this.file.exists()) {
+                Log.w(TAG, "cannot read " + this.file, e);
+            }
+        } finally {
+            AtomicFile.close(in);
+        }
+        if (!clean) {
+            // whatever couldn't be read must not stay in the log with the records appended from now on
+            compact();
+        }
+
+        List<Parking> retval = new ArrayList<Parking>(this.entries.size());
+        for (Stored entry : this.entries.values()) {
+            retval.add(entry.parking);
+        }
+//        Log.d(TAG, "loaded " + retval.size() + " car parks from " + this.records + " records");
+        return retval;
+    }
+
+    private void readRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte op = in.readByte();
+        String id = in.readUTF();
+        if (op == REMOVE) {
+            this.entries.remove(id);
+            return;
+        }
+        if (op != PUT) {
+            throw new IOException("unknown record type " + op);
+        }
+        boolean pinned = in.readBoolean();
+        int late6 = in.readInt();
+        int lone6 = in.readInt();
+        String title = in.readUTF();
+        boolean hasAnyTitle = in.readBoolean();
+        String titleProperty = in.readUTF();
+        String availabilityResource = in.readUTF();
+        String updateResource = in.readUTF();
+        boolean unconfirmed = in.readBoolean();
+        int availability = in.readByte();
+        Long timestamp = in.readBoolean() ? Long.valueOf(in.readLong()) : null;
+        long lastAvailUpdate = in.readLong();
+        long lastDetailsUpdate = in.readLong();
+        CarparkDetails details = in.readBoolean() ? CarparkDetails.read(in) : null;
+        if (availability < 0 || availability >= Availability.values().length) {
+            throw new IOException("unknown availability " + availability);
+        }
+
+        // the availability TTL of 0 makes it due for a refresh straight away
+        Parking p = Parking.getOrCreate(new GeoPoint(late6, lone6),
+                title,
+                Uri.parse(id),
+                availabilityResource.length() == 0 ? null : availabilityResource,
+                updateResource.length() == 0 ? null : updateResource,
+                Availability.values()[availability],
+                timestamp,
+                0,
+                titleProperty.length() == 0 ? null : ResourceFactory.createProperty(titleProperty),
+                unconfirmed);
+        if (hasAnyTitle && !p.hasAnyTitle()) {
+            // a geocoded title
+            p.setTitle(title, null);
+        }
+        p.lastAvailUpdate = lastAvailUpdate;
+        if (details != null && p.lastDetailsUpdate <= lastDetailsUpdate) {
+            p.details = details;
+            p.lastDetailsUpdate = lastDetailsUpdate;
+        }
+        this.entries.remove(id);
+        this.entries.put(id, new Stored(p, pinned));
+    }
+
+    /**
+     * stores the current state of a car park and makes it the most recently stored one; the store is written on its own thread
+     * @param p the car park
+     * @param pinned whether the car park is pinned; if it's not, it may be dropped when more car parks are stored
+     */
+    public void put(final Parking p, final boolean pinned) {
+        this.writer.execute(new Runnable() {
+            public void run() {
+                store(p, pinned);
+            }
+        });
+    }
+
+    /**
+     * like put, but a car park that is already in the store is left as it is
+     */
+    public void putIfAbsent(final Parking p, final boolean pinned) {
+        this.writer.execute(new Runnable() {
+            public void run() {
+                if (!contains(p)) {
+                    store(p, pinned);
+                }
+            }
+        });
+    }
+
+    private synchronized void store(Parking p, boolean pinned) {
+        String id = p.id.toString();
+        Stored previous = this.entries.remove(id);
+        if (previous != null && previous.pinned == pinned && !previous.isChanged(p)) {
+            // nothing new to write, only the order of the recent car parks changes, the log gets it when it is next rewritten
+            this.entries.put(id, previous);
+            return;
+        }
+        this.entries.put(id, new Stored(p, pinned));
+        append(putRecord(id, p, pinned));
+
+        // drop the oldest car parks that are not pinned
+        int recent = 0;
+        for (Stored entry : this.entries.values()) {
+            if (!entry.pinned) {
+                recent++;
+            }
+        }
+        for (Iterator<Map.Entry<String, Stored>> it = this.entries.entrySet().iterator(); recent > this.maxRecent && it.hasNext(); ) {
+            Map.Entry<String, Stored> entry = it.next();
+            if (!entry.getValue().pinned) {
+                it.remove();
+                append(removeRecord(entry.getKey()));
+                recent--;
+            }
+        }
+    }
+
+    /**
+     * @param p a car park
+     * @return true if the car park is in the store
+     */
+    public synchronized boolean contains(Parking p) {
+        return this.entries.containsKey(p.id.toString());
+    }
+
+    /**
+     * stores the new state of a car park if it is in the store, called on the event bus thread
+     */
+    public void onCarparkInformationUpdated(Parking p) {
+        update(p);
+    }
+
+    /**
+     * stores the new state of a car park if it is in the store and its availability has changed, called on the event bus thread
+     */
+    public void onCarparkAvailabilityUpdated(Parking p) {
+        update(p);
+    }
+
+    private void update(final Parking p) {
+        if (p == null) {
+            return;
+        }
+        this.writer.execute(new Runnable() {
+            public void run() {
+                storeUpdate(p);
+            }
+        });
+    }
+
+    private synchronized void storeUpdate(Parking p) {
+        String id = p.id.toString();
+        Stored entry = this.entries.get(id);
+        if (entry == null || !entry.isChanged(p)) {
+            return;
+        }
+        // an update isn't a new view of the car park, so it keeps its place among the recent ones
+        this.entries.put(id, new Stored(p, entry.pinned));
+        append(putRecord(id, p, entry.pinned));
+    }
+
+    private void append(byte[] record) {
+        if (this.records >= COMPACTION_RATIO * this.entries.size() + COMPACTION_SLACK) {
+            compact();
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            boolean created = !this.file.exists();
+            out = new FileOutputStream(this.file, true);
+            if (created) {
+                new DataOutputStream(out).writeInt(VERSION);
+            }
+            out.write(frame(record));
+            this.records++;
+        } catch (IOException e) {
+            Log.w(TAG, "cannot append to " + this.file, e);
+        } finally {
+            AtomicFile.close(out);
+        }
+    }
+
+    /**
+     * rewrites the log with a single record for every stored car park
+     */
+    private void compact() {
+        boolean written = AtomicFile.write(this.file, new AtomicFile.Content() {
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(VERSION);
+                for (Map.Entry<String, Stored> entry : CarparkStore.this.entries.entrySet()) {
+                    out.write(frame(putRecord(entry.getKey(), entry.getValue().parking, entry.getValue().pinned)));
+                }
+            }
+        });
+        if (written) {
+            this.records = this.entries.size();
+        }
+    }
+
+    private static byte[] putRecord(String id, Parking p, boolean pinned) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(PUT);
+            out.writeUTF(id);
+            out.writeBoolean(pinned);
+            out.writeInt(p.point.getLatitudeE6());
+            out.writeInt(p.point.getLongitudeE6());
+            out.writeUTF(p.getTitle() == null ? "" : p.getTitle());
+            out.writeBoolean(p.hasAnyTitle());
+            out.writeUTF(p.titleProperty == null ? "" : p.titleProperty.getURI());
+            out.writeUTF(p.availabilityResource == null ? "" : p.availabilityResource);
+            out.writeUTF(p.updateResource == null ? "" : p.updateResource);
+            out.writeBoolean(p.unconfirmed);
+            out.writeByte(p.getReportedAvailability().ordinal());
+            Long timestamp = p.getReportedAvailabilityTimestamp();
+            out.writeBoolean(timestamp != null);
+            if (timestamp != null) {
+                out.writeLong(timestamp.longValue());
+            }
+            out.writeLong(p.lastAvailUpdate);
+            out.writeLong(p.lastDetailsUpdate);
+            CarparkDetails details = p.details;
+            out.writeBoolean(details != null);
+            if (details != null) {
+                details.write(out);
+            }
+            out.close();
+        } catch (IOException e) {
+            // cannot happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] removeRecord(String id) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(REMOVE);
+            out.writeUTF(id);
+            out.close();
+        } catch (IOException e) {
+            // cannot happen with a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // a record in the log is its length, its checksum and its bytes, written in one go
+    private static byte[] frame(byte[] record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 12);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(record.length);
+        out.writeLong(checksum(record));
+        out.write(record);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static long checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return crc.getValue();
+    }
+
+    /**
+     * a stored car park with what was stored about its state, so that unchanged car parks aren't stored again
+     */
+    private static class Stored {
+        final Parking parking;
+        final boolean pinned;
+        final Availability availability;
+        final Long timestamp;
+        final CarparkDetails details;
+        final String title;
+
+        Stored(Parking p, boolean pinned) {
+            this.parking = p;
+            this.pinned = pinned;
+            this.availability = p.getReportedAvailability();
+            this.timestamp = p.getReportedAvailabilityTimestamp();
+            this.details = p.details;
+            this.title = p.getTitle();
+        }
+
+        boolean isChanged(Parking p) {
+            Long newTimestamp = p.getReportedAvailabilityTimestamp();
+            return p != this.parking ||
+                    p.getReportedAvailability() != this.availability ||
+                    (newTimestamp == null ? this.timestamp != null : !newTimestamp.equals(this.timestamp)) ||
+                    p.details != this.details ||
+                    (p.getTitle() == null ? this.title != null : !p.getTitle().equals(this.title));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * this thread computes in the background the clusters of car parks for the currently visible coordinates when the map is zoomed out too far for individual car parks
+ */
+class ClusteringPrecomputationThread implements Runnable, TileUpdateListener, TileDesirabilityChecker {
+    @SuppressWarnings("unused")
+    private static final String TAG = "clustering thread";
+
+    volatile List<CarparkCluster> currentClusters = Collections.emptyList();
+    private volatile MapRectangle currentCoveredCoordinatesE6 = null;
+    private final BlockingQueue<Event> eventQueue = new ArrayBlockingQueue<Event>(1000);
+    private final CarparkClusterer clusterer = new CarparkClusterer();
+    private TileDownloaderThread tileDownloader;
+
+    public ClusteringPrecomputationThread(TileDownloaderThread tileDownloader) {
+        this.tileDownloader = tileDownloader;
+        tileDownloader.registerTileUpdateListener(this);
+        tileDownloader.registerTileDesirabilityChecker(this);
+    }
+
+    private MapRectangle lastCoordsE6 = null;
+    private int lastZoom = 0;
+    private boolean lastOnlyConfirmed = false;
+
+    public void run() {
+        for (;;) {
+            try {
+                Event event = this.eventQueue.take();
+                // in case the events are only tile updates, we want to act on the last coordinates
+                MapRectangle coordsE6 = this.lastCoordsE6;
+                int zoom = this.lastZoom;
+                boolean forceUpdate = false;
+                do {
+                    switch (event.type) {
+                    case NEW_COORDINATES:
+                        coordsE6 = event.coordsE6;
+                        zoom = event.zoom;
+                        break;
+                    case TILE_UPDATE:
+                        for (MapTile tile : event.tiles) {
+                            this.clusterer.addTile(tile);
+                            forceUpdate |= isTileDesirable(tile);
+                        }
+                        break;
+                    case REFRESH:
+                        forceUpdate = true;
+                        break;
+                    }
+                    event = this.eventQueue.poll();
+                } while (event != null);
+
+                // the clusterer holds on to the car parks of its tiles, it must not keep them after the tile cache has dropped them
+                for (MapTile tile : this.clusterer.listTiles()) {
+                    if (!this.tileDownloader.isTileCached(tile)) {
+                        this.clusterer.removeTile(tile);
+                    }
+                }
+
+                if (coordsE6 == null) {
+                    continue;
+                }
+
+                final boolean onlyConfirmed = !ParkingsService.get(null).getShowUnconfirmedCarparks();
+                MapRectangle last = this.lastCoordsE6;
+                if (!forceUpdate && last != null && zoom == this.lastZoom && onlyConfirmed == this.lastOnlyConfirmed &&
+                        coordsE6.latmin == last.latmin && coordsE6.lonmin == last.lonmin && coordsE6.latmax == last.latmax && coordsE6.lonmax == last.lonmax) {
+                    continue;
+                }
+                this.lastCoordsE6 = coordsE6;
+                this.lastZoom = zoom;
+                this.lastOnlyConfirmed = onlyConfirmed;
+
+                // the tiles that are at least partially visible and one beyond
+                int tileMinLatE0 = coordsE6.latmin / ParkingsService.TILE_SIZE - 1; if (coordsE6.latmin < 0) tileMinLatE0--;
+                int tileMinLonE0 = coordsE6.lonmin / ParkingsService.TILE_SIZE - 1; if (coordsE6.lonmin < 0) tileMinLonE0--;
+                int tileMaxLatE0 = coordsE6.latmax / ParkingsService.TILE_SIZE + 1; if (coordsE6.latmax < 0) tileMaxLatE0--;
+                int tileMaxLonE0 = coordsE6.lonmax / ParkingsService.TILE_SIZE + 1; if (coordsE6.lonmax < 0) tileMaxLonE0--;
+
+                if (zoom < CarparkClusterer.MIN_ZOOM || zoom > CarparkClusterer.MAX_ZOOM ||
+                        (tileMaxLatE0 - tileMinLatE0 + 1) * (tileMaxLonE0 - tileMinLonE0 + 1) > Config.CLUSTER_MAX_TILES) {
+                    // nothing to cluster at this zoom level, or it would take too many tiles
+                    this.currentCoveredCoordinatesE6 = null;
+                    this.currentClusters = Collections.emptyList();
+                    continue;
+                }
+
+                this.currentCoveredCoordinatesE6 =
+                        new MapRectangle(
+                                tileMinLatE0 * ParkingsService.TILE_SIZE,
+                                tileMinLonE0 * ParkingsService.TILE_SIZE,
+                                tileMaxLatE0 * ParkingsService.TILE_SIZE,
+                                tileMaxLonE0 * ParkingsService.TILE_SIZE);
+
+                long weight = 0;
+                for (int latE0 = tileMinLatE0; latE0 <= tileMaxLatE0; latE0++) {
+                    for (int lonE0 = tileMinLonE0; lonE0 <= tileMaxLonE0; lonE0++) {
+                        MapTile tile = this.tileDownloader.getTile(latE0*ParkingsService.TILE_SIZE, lonE0*ParkingsService.TILE_SIZE);
+                        if (tile != null) {
+                            weight += tile.approximateSize();
+                            // the clusterer may not have a tile that was cached before its update was delivered
+                            if (!this.clusterer.containsTile(tile)) {
+                                this.clusterer.addTile(tile);
+                            }
+                        }
+                    }
+                }
+                if (weight > Config.CLUSTER_CACHE_SHARE) {
+                    // the view's tiles don't fit in the cache, every new supertile would push out others and they would be downloaded again and again;
+                    // the queued requests for the view's tiles are dropped as no longer desirable
+//                    Log.d(TAG, "not clustering, the view's tiles take " + weight + "B");
+                    this.currentCoveredCoordinatesE6 = null;
+                    this.currentClusters = Collections.emptyList();
+                    continue;
+                }
+
+                List<CarparkCluster> clusters = Collections.unmodifiableList(this.clusterer.cluster(this.currentCoveredCoordinatesE6, zoom, onlyConfirmed));
+                this.currentClusters = clusters;
+//                Log.d(TAG, "computed " + clusters.size() + " clusters at zoom " + zoom);
+
+                if (!clusters.isEmpty()) {
+                    this.updates.post(EventBus.SIGNAL);
+                }
+            } catch (InterruptedException e) {
+//                Log.i(TAG, "thread interrupted, quitting");
+                return;
+            } catch (Exception e) {
+//                Log.w(TAG, "thread almost died of exception", e);
+            }
+        }
+    }
+
+    public void onNewCoordinates(MapRectangle coords, int zoom) {
+        boolean added = this.eventQueue.offer(new Event(coords, zoom));
+        if (!added) {
+//            Log.e(TAG, "event queue full, cannot add new rectangle!");
+        }
+    }
+
+    public void onTilesUpdated(Collection<MapTile> tiles) {
+        boolean added = this.eventQueue.offer(new Event(tiles));
+        if (!added) {
+//            Log.e(TAG, "event queue full, cannot add new tile!");
+        }
+    }
+
+    public void onAllTileRefresh() {
+        boolean added = this.eventQueue.offer(new Event());
+        if (!added) {
+//            Log.e(TAG, "event queue full, cannot add refresh request!");
+        }
+    }
+
+    private static class Event {
+        enum Type { TILE_UPDATE, NEW_COORDINATES, REFRESH };
+        final Type type;
+        MapRectangle coordsE6;
+        int zoom;
+        Collection<MapTile> tiles;
+
+        public Event(MapRectangle coords, int zoom) {
+            this.coordsE6 = coords;
+            this.zoom = zoom;
+            this.type = Type.NEW_COORDINATES;
+        }
+
+        public Event(Collection<MapTile> tiles) {
+            this.tiles = tiles;
+            this.type = Type.TILE_UPDATE;
+        }
+
+        public Event() {
+            this.type = Type.REFRESH;
+        }
+    }
+
+    public boolean isTileDesirable(MapTile tile) {
+        MapRectangle currentCoveredE6 = this.currentCoveredCoordinatesE6;
+        if (currentCoveredE6 == null) {
+            return false;
+        } else {
+            return
+                    tile.late6min >= currentCoveredE6.latmin &&
+                    tile.late6min <= currentCoveredE6.latmax &&
+                    tile.lone6min >= currentCoveredE6.lonmin &&
+                    tile.lone6min <= currentCoveredE6.lonmax;
+        }
+    }
+
+    public boolean isTileInUse(MapTile tile) {
+        // zoomed out, the clustered area can be bigger than the whole tile cache, so it doesn't pin anything
+        return false;
+    }
+
+    private final EventBus.Channel<SortedCurrentItemsUpdateListener, Object> updates = EventBus.get().newChannel("cluster updates", 0,
+            new EventBus.Delivery<SortedCurrentItemsUpdateListener, Object>() {
+                public void deliver(SortedCurrentItemsUpdateListener listener, Collection<Object> signals) {
+                    listener.onSortedCurrentItemsUpdated();
+                }
+            });
+
+    public void registerUpdateListener(SortedCurrentItemsUpdateListener listener) {
+        this.updates.register(listener);
+    }
+    public void unregisterUpdateListener(SortedCurrentItemsUpdateListener listener) {
+        this.updates.unregister(listener);
+    }
+}
@@ -20,14 +20,82 @@ import java.util.TimeZone;
 
 class Config {
 
-    static final int EXTRA_SLEEP_TIME = 200;
     static final int DEFAULT_AVAIL_TTL = 5000;
     static final int DEFAULT_DETAILS_TTL = 30000;
     static final int DEFAULT_TILE_TTL = 60000;
 
+    // caching headers from the server can make TTLs shorter than the defaults, but never shorter than this
+    static final int MINIMUM_HTTP_TTL = 2000;
+    // how many resources' ETag/Last-Modified (and parsed details or availability, but not supertiles) are remembered for conditional requests
+    static final int HTTP_VALIDATORS_CACHE_SIZE = 200;
+
     static final int DEFAULT_NETWORK_PROBLEM_DELAY = 60000;
     static final int DEFAULT_SERVER_PROBLEM_DELAY = 600000;
     
+    // parse availetc supertiles straight from parser events instead of through a Jena model
+    static final boolean STREAMING_TILE_DECODER = true;
+
+    // ask the server for availetc supertiles in the compact binary encoding, Turtle is still understood when the server doesn't have it
+    static final boolean BINARY_TILE_FORMAT = true;
+
+    // a supertile is split in four when it has more car parks than this, and merged with its neighbours when it has fewer than this
+    static final int SUPERTILE_SPLIT_CARPARKS = 200;
+    static final int SUPERTILE_MERGE_CARPARKS = 20;
+
+    // the approximate heap (in bytes) the in-memory tile cache may use; when the heap is nearly full (less than 1/fraction free) or the system
+    // says it's low on memory, the cache sheds tiles down to the low watermark
+    static final long TILE_CACHE_BUDGET = 2*1024*1024;
+    static final long TILE_CACHE_LOW_WATERMARK = 512*1024;
+    static final int TILE_CACHE_MIN_FREE_HEAP_FRACTION = 8;
+
+    // how many tiles the nearest car park index holds, it only needs the 3x3 around the user, which are indexed again when it drops them
+    static final int NEAR_INDEX_TILES = 100;
+
+    // tile updates are delivered to listeners this long (in ms) after the first one, so the tiles of supertiles published close together come in one batch
+    static final int TILE_UPDATE_COALESCING_DELAY = 100;
+
+    // how many supertiles can be downloading at the same time
+    static final int TILE_FETCH_THREADS = 3;
+    // downloaded supertiles are also kept on local storage so the map isn't empty after the process is killed
+    static final boolean PERSISTENT_TILE_STORE = true;
+    static final long TILE_STORE_BUDGET = 2*1024*1024;
+
+    // pinned and recently viewed car parks are kept on local storage with their details and availability, so they are there right after a cold start
+    static final boolean PERSISTENT_CARPARK_STORE = true;
+    // how many recently viewed car parks that aren't pinned are kept
+    static final int RECENT_CARPARKS_STORED = 20;
+
+    // when moving, the supertiles along the way ahead are downloaded before we get there
+    static final boolean MOTION_PREFETCH = true;
+    // how far ahead (in ms of travel at the current speed, and in meters at most), and only faster than this speed (in m/s)
+    static final int PREFETCH_LOOKAHEAD = 180000;
+    static final int PREFETCH_MAX_DISTANCE = 15000;
+    static final float PREFETCH_MIN_SPEED = 3;
+    // at most this many supertiles prefetched in this period (in ms)
+    static final int PREFETCH_BUDGET = 3;
+    static final int PREFETCH_BUDGET_PERIOD = 60000;
+
+    // when zoomed out, car parks are shown in clusters, but only if the view doesn't need more than this many tiles
+    static final int CLUSTER_MAX_TILES = 400;
+    // and only if the cached tiles of the view take at most this much of the tile cache, so the rest of the view's tiles can still fit in it
+    static final long CLUSTER_CACHE_SHARE = TILE_CACHE_BUDGET / 2;
+
+    // availability updates asked for within this window (in ms) are loaded from the server together, at most this many in one request
+    static final boolean BATCH_AVAILABILITY = true;
+    static final int AVAILABILITY_BATCH_WINDOW = 100;
+    static final int AVAILABILITY_BATCH_MAX = 50;
+
+    // the availability of the watched car parks is pushed by the server over a long-polled request, polling takes over when that doesn't work
+    static final boolean AVAILABILITY_PUSH = true;
+    // how long (in s) the server may hold the request when nothing changes, and how much longer (in ms) we wait for it before giving up
+    static final int AVAILABILITY_PUSH_HOLD = 50;
+    static final int AVAILABILITY_PUSH_SLACK = 15000;
+
+    // how many requests can wait for the details and availability thread; when it's full the least urgent requests are dropped
+    static final int REQUEST_QUEUE_CAPACITY = 100;
+    // background requests that waited in the queue longer than this (in ms) are dropped instead of being loaded
+    static final int PINNED_REQUEST_MAX_AGE = 10000;
+
     static final String SERVER = "http://parking.kmi.open.ac.uk/data/";
 //    static final String SERVER = "http://10.100.22.96:8080/data/"; 
 
@@ -22,16 +22,22 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Scanner;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
+import uk.ac.open.kmi.parking.CarparkDetails;
 import uk.ac.open.kmi.parking.LoadingStatus;
 import uk.ac.open.kmi.parking.Onto;
 import uk.ac.open.kmi.parking.Parking;
@@ -60,9 +66,7 @@ class DetailsAndAvailabilityThread implements Runnable {
 //    @SuppressWarnings("unused")
     private static final String TAG = "details and availability";
 
-    private final BlockingQueue<Event> eventQueue = new ArrayBlockingQueue<Event>(100); // todo make this number configurable?
-    // todo this queue should probably be a deque and work like a LIFO stack - last queries probably have the highest priority (but Deque is Android API 9+)
-    private final Set<Event> eventPresenceSet = Collections.synchronizedSet(new HashSet<Event>(100));
+    private final EventQueue eventQueue = new EventQueue(Config.REQUEST_QUEUE_CAPACITY);
 
     private final ParkingsService parkingsService;
 
@@ -71,8 +75,6 @@ class DetailsAndAvailabilityThread implements Runnable {
     }
 
 //    private int downloadCount = 0;
-    private int maxQueueSize = 0;
-    private long maxTimeToTake = 0;
 
     // todo we may need an LRUCache of Parkings with details so that recent car parks are guaranteed to stay around -- maybe we don't because the parkings will be held elsewhere
 
@@ -80,24 +82,8 @@ class DetailsAndAvailabilityThread implements Runnable {
         boolean loading = false;
         for (;;) {
             try {
-                int queueSize = this.eventQueue.size();
-                if (queueSize > this.maxQueueSize) {
-                    this.maxQueueSize = queueSize;
-//                    Log.i(TAG, "queue size maximum increased to " + this.maxQueueSize);
-                    // todo check that this is sane over longer lives of the app, possibly lower the size of the queue
-                }
-
                 Event event = this.eventQueue.take();
-                this.eventPresenceSet.remove(event);
-
-                long time = System.currentTimeMillis();
-                long timeToTake = time - event.timeMillis;
-                if (timeToTake > this.maxTimeToTake) {
-                    this.maxTimeToTake = timeToTake;
-//                    Log.i(TAG, "queue maximum time to take up an event increased to " + this.maxTimeToTake + "ms");
-                    // todo check that this is sane over longer lives of the app, possibly lower the size of the queue
-                }
-//                Log.d(TAG, "parking update request " + event.p.id + " taken up " + timeToTake + "ms after enqueued");
+//                Log.d(TAG, "parking update request " + event.p.id + " taken up " + (System.currentTimeMillis() - event.timeMillis) + "ms after enqueued");
 
                 LoadingStatus.startedLoading();
                 loading = true;
@@ -109,7 +95,10 @@ class DetailsAndAvailabilityThread implements Runnable {
                     handleUpdateDetailsRequest(event);
                     break;
                 case UPDATE_AVAILABILITY:
-                    handleUpdateAvailabilityRequest(event);
+                    handleUpdateAvailabilityRequest(event.p);
+                    break;
+                case UPDATE_AVAILABILITY_BATCH:
+                    handleUpdateAvailabilityBatch();
                     break;
                 case SUBMIT_PROPERTY:
                     handleSubmitPropertyRequest(event);
@@ -123,6 +112,7 @@ class DetailsAndAvailabilityThread implements Runnable {
                 }
             } catch (InterruptedException e) {
 //                Log.i(TAG, "thread interrupted, quitting");
+                this.availabilityBatchStarter.cancel();
                 break;
             } catch (Exception e) {
                 Log.w(TAG, "thread almost died of exception", e);
@@ -255,11 +245,7 @@ class DetailsAndAvailabilityThread implements Runnable {
         p.nextAvailUpdate = time + Config.DEFAULT_AVAIL_TTL; // todo wait again 5s for next availability refresh - but we should take my very recent explicit update as authoritative
 //        Log.d(TAG, "parking submission for " + p.id + " finished " + (time - event.timeMillis) + "ms after request enqueued");
 
-        synchronized(this) { // for listeners access
-            for (CarparkAvailabilityUpdateListener listener : this.availabilityUpdateListeners) {
-                listener.onCarparkAvailabilityUpdated(p);
-            }
-        }
+        this.availabilityUpdates.post(p);
     }
 
     private void handleSubmitPropertyRequest(Event event) {
@@ -303,7 +289,7 @@ class DetailsAndAvailabilityThread implements Runnable {
             }
 
             // got 2xx response, parse the body like it was a details update
-            readCarparkDetails(p, p.updateResource, new BufferedInputStream(conn.getInputStream()));
+            readCarparkDetails(p, p.updateResource, new BufferedInputStream(conn.getInputStream()), System.currentTimeMillis() + Config.DEFAULT_DETAILS_TTL);
             conn.disconnect();
         } catch (IOException e) {
             Log.w(TAG, "io exception while submitting data: ", e);
@@ -324,9 +310,17 @@ class DetailsAndAvailabilityThread implements Runnable {
         String uri = p.id.toString();
 
 //        Log.d(TAG, "reading uri " + uri);
-        InputStream is = FileManager.get().open(uri);
-        if (is != null) {
-            readCarparkDetails(p, uri, is);
+        HttpLocator.Response<CarparkDetails> response = HttpLocator.get().open(uri, Config.DEFAULT_DETAILS_TTL, CarparkDetails.class);
+        if (response != null) {
+            if (response.isNotModified()) {
+                // the details haven't changed, but the parking object may be a new one from a reloaded tile
+                applyCarparkDetails(p, response.parsed, response.nextUpdate);
+            } else {
+                CarparkDetails details = readCarparkDetails(p, uri, response.body, response.nextUpdate);
+                if (details != null) {
+                    response.setParsed(details);
+                }
+            }
         } else {
             Log.e(TAG, "cannot read " + uri);
             p.nextDetailsUpdate = time + Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if the update failed, don't try to update it immediately again
@@ -356,15 +350,15 @@ class DetailsAndAvailabilityThread implements Runnable {
             if (pinfo != null) {
                 // get the point, give it and the id and the model to tiledownloaderthread
 //                Log.d(TAG, "triggering tile refresh");
-                this.parkingsService.triggerTileRefresh(new GeoPoint(pinfo.late6, pinfo.lone6), event.extraCarpark, model, event.updateListener);
+                this.parkingsService.triggerTileRefresh(new GeoPoint(pinfo.late6, pinfo.lone6), event.extraCarpark, CarparkDetails.fromModel(model, uri), event.updateListener);
             }
         } else {
             Log.e(TAG, "cannot read extra carpark from " + uri);
         }
     }
 
-    // parse and handle data about a car park, calls listeners
-    private void readCarparkDetails(Parking p, String uri, InputStream is) {
+    // parse and handle data about a car park, calls listeners; returns the parsed details or null if they aren't usable
+    private CarparkDetails readCarparkDetails(Parking p, String uri, InputStream is, long nextUpdate) {
         long time;
         Model model = ModelFactory.createDefaultModel();
         model.read(is, uri, "TURTLE");
@@ -376,7 +370,7 @@ class DetailsAndAvailabilityThread implements Runnable {
         ParkingInformation pinfo = ParkingInformation.parse(model.getResource(p.id.toString()), model);
         if (pinfo == null) {
             p.nextAvailUpdate = time + Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if the update fails, don't try to update again immediately
-            return;
+            return null;
         }
         if (p.point.getLatitudeE6() != pinfo.late6 ||
                 p.point.getLongitudeE6() != pinfo.lone6) {
@@ -393,16 +387,18 @@ class DetailsAndAvailabilityThread implements Runnable {
             geocodeCarparkTitle(p);
         }
 
-        p.details = model;
-        p.lastDetailsUpdate = time;
-        p.nextDetailsUpdate = time+Config.DEFAULT_DETAILS_TTL; // todo this should be taken from HTTP caching info
+        CarparkDetails details = CarparkDetails.fromModel(model, p.id.toString());
+        applyCarparkDetails(p, details, nextUpdate);
+        return details;
+    }
 
-        synchronized(this) { // for listeners access
-            for (CarparkDetailsUpdateListener listener : this.detailsUpdateListeners) {
-                listener.onCarparkInformationUpdated(p);
-            }
-        }
-//            Log.d(TAG, "update listeners (" + this.updateListeners.size() + ") took " + (System.currentTimeMillis() - time) + "ms");
+    // set the details of a car park, calls listeners
+    private void applyCarparkDetails(Parking p, CarparkDetails details, long nextUpdate) {
+        p.details = details;
+        p.lastDetailsUpdate = System.currentTimeMillis();
+        p.nextDetailsUpdate = nextUpdate;
+
+        this.detailsUpdates.post(p);
     }
 
     static void geocodeCarparkTitle(Parking p) {
@@ -426,8 +422,8 @@ class DetailsAndAvailabilityThread implements Runnable {
         }
     }
 
-    private void handleUpdateAvailabilityRequest(Event event) {
-        Parking p = Parking.getParking(event.p.id);
+    private void handleUpdateAvailabilityRequest(Parking requested) {
+        Parking p = Parking.getParking(requested.id);
         if (p == null) {
             Log.w(TAG, "parking forgotten before handleUpdateAvailabilityRequest");
             return;
@@ -448,95 +444,234 @@ class DetailsAndAvailabilityThread implements Runnable {
 
         // todo this should add the trusted UDSs
 //        Log.d(TAG, "reading uri " + resourceToRead);
-        InputStream is = FileManager.get().open(resourceToRead);
-        if (is != null) {
-            Model model = ModelFactory.createDefaultModel();
-            model.read(is, resourceToRead, "TURTLE");
-//            this.downloadCount++;
+        HttpLocator.Response<AvailabilityReport> response = HttpLocator.get().open(resourceToRead, Config.DEFAULT_AVAIL_TTL, AvailabilityReport.class);
+        if (response != null) {
+            AvailabilityReport report;
+            if (response.isNotModified()) {
+                report = response.parsed;
+            } else {
+                report = parseAvailability(p, resourceToRead, response.body);
+                if (report == null) {
+                    return;
+                }
+                response.setParsed(report);
+            }
 
-            time = System.currentTimeMillis();
-//            Log.d(TAG, "parking availability nr " + this.downloadCount + " read " + (time - event.timeMillis) + "ms after request enqueued");
+            applyAvailability(p, report, response.nextUpdate);
+        } else {
+            Log.e(TAG, "cannot read " + resourceToRead);
+            p.nextAvailUpdate = time + Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if the update fails, don't try to update again immediately
+        }
+    }
 
-            ResIterator parkings = model.listResourcesWithProperty(RDF.type, Onto.LGO_Parking);
-            if (!parkings.hasNext()) {
-                Log.w(TAG, "loading " + resourceToRead + " didn't return any parking");
-                p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
-                return;
+    // set the availability of a car park, calls listeners; also used for the changes pushed by the availability channel
+    void applyAvailability(Parking p, AvailabilityReport report, long nextUpdate) {
+        p.setAvailability(report.availability, report.timestamp) ;
+
+        p.lastAvailUpdate = System.currentTimeMillis();
+        p.nextAvailUpdate = nextUpdate;
+
+        this.availabilityUpdates.post(p);
+    }
+
+    /**
+     * updates the availability of all the car parks collected in pendingAvailabilityUpdates;
+     * the car parks whose availability is on our server are loaded with a single request, the rest one by one
+     */
+    private void handleUpdateAvailabilityBatch() {
+        Map<Uri, Long> pending;
+        synchronized(this.pendingAvailabilityUpdates) {
+            pending = new LinkedHashMap<Uri, Long>(this.pendingAvailabilityUpdates);
+            this.pendingAvailabilityUpdates.clear();
+            this.availabilityBatchPriority = null;
+        }
+
+        long time = System.currentTimeMillis();
+        List<Parking> batch = new ArrayList<Parking>(pending.size());
+        List<Parking> single = new ArrayList<Parking>();
+        for (Map.Entry<Uri, Long> entry : pending.entrySet()) {
+            if (time > entry.getValue().longValue()) {
+                // the request waited too long, whoever made it will ask again
+                continue;
             }
-            Resource parking = parkings.next();
-            if (parkings.hasNext()) {
-                Log.w(TAG, "loading " + resourceToRead + " returned multiple parkings");
-                p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
-                return;
+            Parking p = Parking.getParking(entry.getKey());
+            if (p == null || time < p.nextAvailUpdate) {
+                continue;
             }
-            if (!p.id.toString().equals(parking.getURI())) {
-                Log.w(TAG, "loading " + resourceToRead + " returned information about parking different from the expected " + p.id);
-                p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
-                return;
+            if (!this.availabilityBatchUnsupported && p.availabilityResource != null && p.availabilityResource.startsWith(Config.SERVER)) {
+                batch.add(p);
+            } else {
+                single.add(p);
             }
+        }
 
-            StmtIterator availabilities = model.listStatements(parking, Onto.PARKING_binaryAvailability, (RDFNode)null);
-            Statement avail = null;
-            if (availabilities.hasNext()) {
-                avail = availabilities.next();
-            } else {
-                Log.w(TAG, "loading " + resourceToRead + " didn't return any binary availaiblity");
+        if (batch.size() == 1) {
+            single.addAll(batch);
+        } else {
+            for (int i=0; i<batch.size(); i+=Config.AVAILABILITY_BATCH_MAX) {
+                single.addAll(loadAvailabilityBatch(batch.subList(i, Math.min(i+Config.AVAILABILITY_BATCH_MAX, batch.size()))));
             }
+        }
+
+        for (Parking p : single) {
+            handleUpdateAvailabilityRequest(p);
+        }
+    }
+
+    /**
+     * loads the availability of the given car parks with a single request
+     * @return the car parks that need to be loaded one by one, because the server didn't return them or it doesn't support batches
+     */
+    private List<Parking> loadAvailabilityBatch(List<Parking> parkings) {
+        long time = System.currentTimeMillis();
+        HttpURLConnection conn = null;
+        try {
+            StringBuilder uri = new StringBuilder(Config.SERVER + "availbatch");
+            char separator = '?';
+            for (Parking p : parkings) {
+                uri.append(separator).append("park=").append(URLEncoder.encode(p.id.toString(), "UTF-8"));
+                separator = '&';
+            }
+//            Log.d(TAG, "reading batch uri " + uri);
+
+            conn = (HttpURLConnection) new URL(uri.toString()).openConnection();
+            conn.setRequestProperty("Accept", "text/turtle,*/*;q=0.5");
+            int responseCode = conn.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_BAD_REQUEST ||
+                    responseCode == HttpURLConnection.HTTP_BAD_METHOD || responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                Log.i(TAG, "server doesn't support availability batches (response code " + responseCode + "), loading availability one by one");
+                this.availabilityBatchUnsupported = true;
+                return parkings;
+            }
+            if (responseCode / 100 != 2) {
+                Log.w(TAG, "loading availability batch " + uri + " returned response code " + responseCode);
+                for (Parking p : parkings) {
+                    p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server has problems, don't try again for a while
+                }
+                return Collections.emptyList();
+            }
+            long nextUpdate = HttpLocator.nextUpdate(conn, time, Config.DEFAULT_AVAIL_TTL);
+
+            Model model = ModelFactory.createDefaultModel();
+            model.read(new BufferedInputStream(conn.getInputStream()), uri.toString(), "TURTLE");
+
+            List<Parking> missing = new ArrayList<Parking>();
+            for (Parking p : parkings) {
+                Resource parking = model.getResource(p.id.toString());
+                if (!model.contains(parking, RDF.type, Onto.LGO_Parking)) {
+                    missing.add(p);
+                    continue;
+                }
+                applyAvailability(p, readAvailability(model, parking, uri.toString()), nextUpdate);
+            }
+            return missing;
+        } catch (IOException e) {
+            Log.w(TAG, "io exception while loading availability batch: ", e);
+            for (Parking p : parkings) {
+                p.nextAvailUpdate = time + Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if the update fails, don't try to update again immediately
+            }
+            return Collections.emptyList();
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    // parse the availability of a car park, returns null (and delays the next update) if the server returned garbage
+    private static AvailabilityReport parseAvailability(Parking p, String resourceToRead, InputStream is) {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(is, resourceToRead, "TURTLE");
+//        this.downloadCount++;
+
+        long time = System.currentTimeMillis();
+//        Log.d(TAG, "parking availability nr " + this.downloadCount + " read " + (time - event.timeMillis) + "ms after request enqueued");
+
+        ResIterator parkings = model.listResourcesWithProperty(RDF.type, Onto.LGO_Parking);
+        if (!parkings.hasNext()) {
+            Log.w(TAG, "loading " + resourceToRead + " didn't return any parking");
+            p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
+            return null;
+        }
+        Resource parking = parkings.next();
+        if (parkings.hasNext()) {
+            Log.w(TAG, "loading " + resourceToRead + " returned multiple parkings");
+            p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
+            return null;
+        }
+        if (!p.id.toString().equals(parking.getURI())) {
+            Log.w(TAG, "loading " + resourceToRead + " returned information about parking different from the expected " + p.id);
+            p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
+            return null;
+        }
+
+        return readAvailability(model, parking, resourceToRead);
+    }
+
+    // read the availability of the given car park from a model
+    static AvailabilityReport readAvailability(Model model, Resource parking, String resourceToRead) {
+        StmtIterator availabilities = model.listStatements(parking, Onto.PARKING_binaryAvailability, (RDFNode)null);
+        Statement avail = null;
+        if (availabilities.hasNext()) {
+            avail = availabilities.next();
+        } else {
+            Log.w(TAG, "loading " + resourceToRead + " didn't return any binary availaiblity");
+        }
 //            if (availabilities.hasNext()) {
 //                Log.w(TAG, "loading " + resourceToRead + " returned multiple binary availabilities");
 //                p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
-//                return;
+//                return null;
 //            }
 
-            StmtIterator availabilityTimestamps = model.listStatements(parking, Onto.PARKING_binaryAvailabilityTimestamp, (RDFNode)null);
-            Statement availTimestamp = null;
-            if (availabilityTimestamps.hasNext()) {
-                availTimestamp = availabilityTimestamps.next();
-            } else {
-                Log.w(TAG, "loading " + resourceToRead + " didn't return any binary availaiblity timestamp");
-            }
+        StmtIterator availabilityTimestamps = model.listStatements(parking, Onto.PARKING_binaryAvailabilityTimestamp, (RDFNode)null);
+        Statement availTimestamp = null;
+        if (availabilityTimestamps.hasNext()) {
+            availTimestamp = availabilityTimestamps.next();
+        } else {
+            Log.w(TAG, "loading " + resourceToRead + " didn't return any binary availaiblity timestamp");
+        }
 //            if (availabilityTimestamps.hasNext()) {
 //                Log.w(TAG, "loading " + resourceToRead + " returned multiple binary availability timestamps");
 //                p.nextAvailUpdate = time + Config.DEFAULT_SERVER_PROBLEM_DELAY; // if the server returns garbage, don't try again for a while
-//                return;
+//                return null;
 //            }
 
-            Availability newAvailability;
-            Long newAvailabilityTimestamp = null;
-            if (avail != null) {
-                newAvailability = avail.getBoolean() ? Availability.AVAILABLE : Availability.FULL;
-            } else {
-                newAvailability = Availability.UNKNOWN;
-            }
-            if (availTimestamp != null) {
-                Object val = availTimestamp.getLiteral().getValue();
-                if (val instanceof XSDDateTime) {
-                    XSDDateTime dtval = (XSDDateTime) val;
-                    Calendar cal = dtval.asCalendar();
-                    cal.setTimeZone(Config.UTC);
-                    newAvailabilityTimestamp = cal.getTimeInMillis();
-                }
+        Availability newAvailability;
+        Long newAvailabilityTimestamp = null;
+        if (avail != null) {
+            newAvailability = avail.getBoolean() ? Availability.AVAILABLE : Availability.FULL;
+        } else {
+            newAvailability = Availability.UNKNOWN;
+        }
+        if (availTimestamp != null) {
+            Object val = availTimestamp.getLiteral().getValue();
+            if (val instanceof XSDDateTime) {
+                XSDDateTime dtval = (XSDDateTime) val;
+                Calendar cal = dtval.asCalendar();
+                cal.setTimeZone(Config.UTC);
+                newAvailabilityTimestamp = cal.getTimeInMillis();
             }
+        }
+        return new AvailabilityReport(newAvailability, newAvailabilityTimestamp);
+    }
 
-            p.setAvailability(newAvailability, newAvailabilityTimestamp) ;
-
-            p.lastAvailUpdate = time;
-            p.nextAvailUpdate = time+Config.DEFAULT_AVAIL_TTL; // todo take this from caching metadata
+    /**
+     * what an availability resource says about its car park, remembered for conditional requests
+     */
+    static class AvailabilityReport {
+        final Availability availability;
+        final Long timestamp;
 
-            synchronized(this) { // for listeners access
-                for (CarparkAvailabilityUpdateListener listener : this.availabilityUpdateListeners) {
-                    listener.onCarparkAvailabilityUpdated(p);
-                }
-            }
-        } else {
-            Log.e(TAG, "jena cannot read " + resourceToRead);
-            p.nextAvailUpdate = time + Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if the update fails, don't try to update again immediately
+        AvailabilityReport(Availability availability, Long timestamp) {
+            this.availability = availability;
+            this.timestamp = timestamp;
         }
     }
 
     private static class Event {
-        public enum Type { UPDATE_DETAILS, SUBMIT_AVAILABILITY, UPDATE_AVAILABILITY, SUBMIT_PROPERTY, SUBMIT_CARPARK, LOAD_EXTRA }
+        public enum Type { UPDATE_DETAILS, SUBMIT_AVAILABILITY, UPDATE_AVAILABILITY, UPDATE_AVAILABILITY_BATCH, SUBMIT_PROPERTY, SUBMIT_CARPARK, LOAD_EXTRA }
         Type type;
+        RequestPriority priority;
         public Parking p;
         public long timeMillis;
         public boolean binaryAvailability;
@@ -556,25 +691,36 @@ class DetailsAndAvailabilityThread implements Runnable {
             retval.addparkPoint = point;
             retval.updateListener = listener;
             retval.type = Type.SUBMIT_CARPARK;
+            retval.priority = RequestPriority.USER;
             return retval;
         }
 
-        public static Event createDetailsUpdateEvent(Parking p) {
+        public static Event createDetailsUpdateEvent(Parking p, RequestPriority priority) {
             Event retval = new Event();
             retval.p = p;
             retval.type = Type.UPDATE_DETAILS;
+            retval.priority = priority;
             return retval;
         }
 
-        public static Event createAvailabilityUpdateEvent(Parking p) {
+        public static Event createAvailabilityUpdateEvent(Parking p, RequestPriority priority) {
             Event retval = new Event();
             retval.p = p;
             retval.type = Type.UPDATE_AVAILABILITY;
+            retval.priority = priority;
+            return retval;
+        }
+
+        public static Event createAvailabilityBatchEvent(RequestPriority priority) {
+            Event retval = new Event();
+            retval.type = Type.UPDATE_AVAILABILITY_BATCH;
+            retval.priority = priority;
             return retval;
         }
 
         public static Event createSubmitAvailabilityEvent(Parking p, boolean availability, long timestamp) {
             Event retval = new Event();
+            retval.priority = RequestPriority.USER;
             retval.p = p;
             retval.binaryAvailability = availability;
             retval.binaryAvailabilityTimestamp = timestamp;
@@ -588,6 +734,7 @@ class DetailsAndAvailabilityThread implements Runnable {
             retval.property = prop;
             retval.propertyValue = value;
             retval.type = Type.SUBMIT_PROPERTY;
+            retval.priority = RequestPriority.USER;
             return retval;
         }
 
@@ -596,6 +743,7 @@ class DetailsAndAvailabilityThread implements Runnable {
             retval.extraCarpark = id;
             retval.updateListener = listener;
             retval.type = Type.LOAD_EXTRA;
+            retval.priority = RequestPriority.USER;
             return retval;
         }
 
@@ -603,8 +751,12 @@ class DetailsAndAvailabilityThread implements Runnable {
         public int hashCode() {
             if (this.p != null) {
                 return this.p.hashCode();
+            } else if (this.extraCarpark != null) {
+                return this.extraCarpark.hashCode();
+            } else if (this.addparkPoint != null) {
+                return this.addparkPoint.hashCode();
             } else {
-                return super.hashCode();
+                return this.type.hashCode();
             }
         }
         @Override
@@ -613,20 +765,227 @@ class DetailsAndAvailabilityThread implements Runnable {
                 return false;
             }
             Event e = (Event) o;
-            return this.type == e.type && this.binaryAvailability == e.binaryAvailability && (this.p == null ? e.p == null : this.p.equals(e.p));
+            return this.type == e.type && this.binaryAvailability == e.binaryAvailability && (this.p == null ? e.p == null : this.p.equals(e.p)) &&
+                    (this.extraCarpark == null ? e.extraCarpark == null : this.extraCarpark.equals(e.extraCarpark)) &&
+                    (this.addparkPoint == null ? e.addparkPoint == null : this.addparkPoint.equals(e.addparkPoint));
+        }
+    }
+
+    /**
+     * a blocking queue of events with a FIFO for every priority class, the most urgent class is always served first
+     * an event equal to one already in the queue is not added again, but it can move the queued one into a more urgent class
+     * when the queue is full, the oldest event of the least urgent class is dropped to make space
+     * background events that waited past their deadline are dropped when they are taken
+     * this class is synchronized
+     */
+    private static class EventQueue {
+        private static final RequestPriority[] PRIORITIES = RequestPriority.values();
+
+        private final int capacity;
+        private final List<LinkedList<Event>> queues = new ArrayList<LinkedList<Event>>(PRIORITIES.length);
+        private final Map<Event, Event> present = new HashMap<Event, Event>();
+        private int size = 0;
+
+        // statistics for every priority class
+        private final long[] takenCount = new long[PRIORITIES.length];
+        private final long[] totalWait = new long[PRIORITIES.length];
+        private final long[] maxWait = new long[PRIORITIES.length];
+        private final long[] expiredCount = new long[PRIORITIES.length];
+        private final long[] droppedCount = new long[PRIORITIES.length];
+
+        EventQueue(int capacity) {
+            this.capacity = capacity;
+            for (int i=0; i<PRIORITIES.length; i++) {
+                this.queues.add(new LinkedList<Event>());
+            }
+        }
+
+        synchronized void offer(Event event) {
+            Event queued = this.present.get(event);
+            if (queued != null) {
+                if (event.priority.compareTo(queued.priority) < 0) {
+                    // the same request is now more urgent, it keeps its place in the new class by the time it was first made
+                    removeQueued(queued);
+                    queued.priority = event.priority;
+                    insert(queued);
+                }
+                return;
+            }
+
+            if (this.size >= this.capacity) {
+                int least = PRIORITIES.length - 1;
+                while (this.queues.get(least).isEmpty()) {
+                    least--;
+                }
+                if (least < event.priority.ordinal()) {
+                    Log.e(TAG, "event queue full, dropping new " + event.priority + " entry!");
+                    this.droppedCount[event.priority.ordinal()]++;
+                    return;
+                }
+                Log.e(TAG, "event queue full, removing old " + PRIORITIES[least] + " entry!");
+                Event old = this.queues.get(least).removeFirst();
+                this.present.remove(old);
+                this.size--;
+                this.droppedCount[least]++;
+            }
+
+            insert(event);
+            this.present.put(event, event);
+            this.size++;
+            notifyAll();
+        }
+
+        // the events in a class are ordered by the time they were made
+        private void insert(Event event) {
+            ListIterator<Event> it = this.queues.get(event.priority.ordinal()).listIterator(this.queues.get(event.priority.ordinal()).size());
+            while (it.hasPrevious()) {
+                if (it.previous().timeMillis <= event.timeMillis) {
+                    it.next();
+                    break;
+                }
+            }
+            it.add(event);
+        }
+
+        private void removeQueued(Event event) {
+            for (Iterator<Event> it = this.queues.get(event.priority.ordinal()).iterator(); it.hasNext(); ) {
+                if (it.next() == event) {
+                    it.remove();
+                    return;
+                }
+            }
+        }
+
+        synchronized boolean contains(Event event) {
+            return this.present.containsKey(event);
+        }
+
+        synchronized Event take() throws InterruptedException {
+            for (;;) {
+                while (this.size == 0) {
+                    wait();
+                }
+                int priority = 0;
+                while (this.queues.get(priority).isEmpty()) {
+                    priority++;
+                }
+                Event event = this.queues.get(priority).removeFirst();
+                this.present.remove(event);
+                this.size--;
+
+                long time = System.currentTimeMillis();
+                if (time > event.priority.deadline(event.timeMillis)) {
+//                    Log.d(TAG, "dropping expired " + event.priority + " event " + event.type);
+                    this.expiredCount[priority]++;
+                    continue;
+                }
+                long wait = time - event.timeMillis;
+                this.takenCount[priority]++;
+                this.totalWait[priority] += wait;
+                if (wait > this.maxWait[priority]) {
+                    this.maxWait[priority] = wait;
+                }
+                return event;
+            }
+        }
+
+        synchronized long getAverageWait(RequestPriority priority) {
+            int i = priority.ordinal();
+            return this.takenCount[i] == 0 ? 0 : this.totalWait[i] / this.takenCount[i];
+        }
+
+        synchronized long getMaxWait(RequestPriority priority) {
+            return this.maxWait[priority.ordinal()];
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder("event queue with " + this.size + " events");
+            for (int i=0; i<PRIORITIES.length; i++) {
+                sb.append("; " + PRIORITIES[i] + ": " + this.takenCount[i] + " taken, wait average " + getAverageWait(PRIORITIES[i]) + "ms, maximum " + this.maxWait[i] + "ms, " +
+                        this.expiredCount[i] + " expired, " + this.droppedCount[i] + " dropped");
+            }
+            return sb.toString();
         }
     }
 
-    public void updateParkingDetails(Parking p) {
-        enqueueEvent(Event.createDetailsUpdateEvent(p));
+    /**
+     * @param priority the priority class
+     * @return the average time (in ms) that the requests of the given class waited in the queue
+     */
+    public long getAverageQueueWait(RequestPriority priority) {
+        return this.eventQueue.getAverageWait(priority);
+    }
+
+    /**
+     * @param priority the priority class
+     * @return the longest time (in ms) that a request of the given class waited in the queue
+     */
+    public long getMaxQueueWait(RequestPriority priority) {
+        return this.eventQueue.getMaxWait(priority);
+    }
+
+    /**
+     * @return a summary of the queue statistics, for debugging
+     */
+    public String getQueueStatistics() {
+        return this.eventQueue.toString();
+    }
+
+    public void updateParkingDetails(Parking p, RequestPriority priority) {
+        enqueueEvent(Event.createDetailsUpdateEvent(p, priority));
     }
 
     public void submitCarpark(GeoPoint point, CarparkDetailsUpdateListener listener) {
         enqueueEvent(Event.createSubmitCarparkEvent(point, listener));
     }
 
-    public void updateParkingAvailability(Parking p) {
-        enqueueEvent(Event.createAvailabilityUpdateEvent(p));
+    // car parks whose availability should be updated in the next batch, in the order they were asked for, with the deadlines of the requests
+    private final Map<Uri, Long> pendingAvailabilityUpdates = new LinkedHashMap<Uri, Long>();
+    // the priority of the batch being collected or queued, null if there is none
+    private RequestPriority availabilityBatchPriority = null;
+    // the batch event is only queued when the batch window closes, to give the other due refreshes a moment to join the batch
+    private final Scheduler.Task availabilityBatchStarter = Scheduler.get().newTask("availability batch", new Runnable() {
+        public void run() {
+            synchronized(DetailsAndAvailabilityThread.this.pendingAvailabilityUpdates) {
+                if (DetailsAndAvailabilityThread.this.availabilityBatchPriority != null) {
+                    enqueueEvent(Event.createAvailabilityBatchEvent(DetailsAndAvailabilityThread.this.availabilityBatchPriority));
+                }
+            }
+        }
+    });
+    // only for looking up the batch event in the queue, batch events are equal whatever their priority; it's never queued itself
+    private static final Event AVAILABILITY_BATCH_KEY = Event.createAvailabilityBatchEvent(null);
+    private volatile boolean availabilityBatchUnsupported = false;
+
+    public void updateParkingAvailability(Parking p, RequestPriority priority) {
+        if (!Config.BATCH_AVAILABILITY || this.availabilityBatchUnsupported) {
+            enqueueEvent(Event.createAvailabilityUpdateEvent(p, priority));
+            return;
+        }
+        // requests that come within the batch window are collected and loaded together
+        synchronized(this.pendingAvailabilityUpdates) {
+            long deadline = priority.deadline(System.currentTimeMillis());
+            Long previous = this.pendingAvailabilityUpdates.get(p.id);
+            if (previous == null || previous.longValue() < deadline) {
+                this.pendingAvailabilityUpdates.put(p.id, deadline);
+            }
+            boolean collecting = this.availabilityBatchStarter.isScheduled();
+            // the queue drops a batch event that expires or that gets pushed out when the queue is full, then a new one is needed
+            if (this.availabilityBatchPriority != null && !collecting && !this.eventQueue.contains(AVAILABILITY_BATCH_KEY)) {
+                this.availabilityBatchPriority = null;
+            }
+            if (this.availabilityBatchPriority == null) {
+                this.availabilityBatchPriority = priority;
+                this.availabilityBatchStarter.scheduleAt(System.currentTimeMillis() + Config.AVAILABILITY_BATCH_WINDOW);
+            } else if (priority.compareTo(this.availabilityBatchPriority) < 0) {
+                // the batch is as urgent as its most urgent car park; enqueueing it again moves the queued batch into the more urgent class
+                this.availabilityBatchPriority = priority;
+                if (!collecting) {
+                    enqueueEvent(Event.createAvailabilityBatchEvent(priority));
+                }
+            }
+        }
     }
 
     public void submitAvailability(Parking p, boolean binaryAvailability, long timestamp) {
@@ -642,34 +1001,42 @@ class DetailsAndAvailabilityThread implements Runnable {
     }
 
     private void enqueueEvent(Event request) {
-        if (!this.eventPresenceSet.contains(request)) {
-            this.eventPresenceSet.add(request);
-            // todo only enqueue if the thread is running, otherwise loudly ignore?
-            while (!this.eventQueue.offer(request)) {
-                Log.e(TAG, "event queue full, removing old entry!");
-                Event old = this.eventQueue.poll();
-                this.eventPresenceSet.remove(old);
-            }
-//            Log.v(TAG, "added event " + request.p);
-        }
+        // todo only enqueue if the thread is running, otherwise loudly ignore?
+        this.eventQueue.offer(request);
+//        Log.v(TAG, "added event " + request.p);
     }
 
-    private final Set<CarparkDetailsUpdateListener> detailsUpdateListeners = new HashSet<CarparkDetailsUpdateListener>();
+    // several updates of the same car park waiting for delivery are delivered once
+    private final EventBus.Channel<CarparkDetailsUpdateListener, Parking> detailsUpdates = EventBus.get().newChannel("details updates", 0,
+            new EventBus.Delivery<CarparkDetailsUpdateListener, Parking>() {
+                public void deliver(CarparkDetailsUpdateListener listener, Collection<Parking> parkings) {
+                    for (Parking p : parkings) {
+                        listener.onCarparkInformationUpdated(p);
+                    }
+                }
+            });
 
-    public synchronized void registerDetailsUpdateListener(CarparkDetailsUpdateListener listener) {
-        this.detailsUpdateListeners.add(listener);
+    public void registerDetailsUpdateListener(CarparkDetailsUpdateListener listener) {
+        this.detailsUpdates.register(listener);
     }
-    public synchronized void unregisterDetailsUpdateListener(CarparkDetailsUpdateListener listener) {
-        this.detailsUpdateListeners.remove(listener);
+    public void unregisterDetailsUpdateListener(CarparkDetailsUpdateListener listener) {
+        this.detailsUpdates.unregister(listener);
     }
 
-    private final Set<CarparkAvailabilityUpdateListener> availabilityUpdateListeners = new HashSet<CarparkAvailabilityUpdateListener>();
+    private final EventBus.Channel<CarparkAvailabilityUpdateListener, Parking> availabilityUpdates = EventBus.get().newChannel("availability updates", 0,
+            new EventBus.Delivery<CarparkAvailabilityUpdateListener, Parking>() {
+                public void deliver(CarparkAvailabilityUpdateListener listener, Collection<Parking> parkings) {
+                    for (Parking p : parkings) {
+                        listener.onCarparkAvailabilityUpdated(p);
+                    }
+                }
+            });
 
-    public synchronized void registerAvailabilityUpdateListener(CarparkAvailabilityUpdateListener listener) {
-        this.availabilityUpdateListeners.add(listener);
+    public void registerAvailabilityUpdateListener(CarparkAvailabilityUpdateListener listener) {
+        this.availabilityUpdates.register(listener);
     }
-    public synchronized void unregisterAvailabilityUpdateListener(CarparkAvailabilityUpdateListener listener) {
-        this.availabilityUpdateListeners.remove(listener);
+    public void unregisterAvailabilityUpdateListener(CarparkAvailabilityUpdateListener listener) {
+        this.availabilityUpdates.unregister(listener);
     }
 
 }
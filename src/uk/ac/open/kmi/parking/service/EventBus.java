@@ -0,0 +1,236 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * a single thread that tells the listeners of all the service threads about updates, so that no service thread calls listeners itself
+ * while holding its own lock, and a slow listener doesn't hold up tile downloading or anything else
+ * updates are posted to channels; the updates that pile up in a channel before they are delivered are coalesced into one batch,
+ * and equal updates (e.g. the same tile twice) are only delivered once, the one posted last
+ * this class is synchronized
+ */
+class EventBus {
+    private static final String TAG = "event bus";
+
+    private static final EventBus instance = new EventBus();
+
+    /**
+     * @return the shared event bus
+     */
+    static EventBus get() {
+        return instance;
+    }
+
+    /**
+     * the update for channels whose updates don't carry anything, any number of them is delivered as one
+     */
+    static final Object SIGNAL = new Object();
+
+    private final ScheduledExecutorService executor;
+    private final List<Channel<?, ?>> channels = new CopyOnWriteArrayList<Channel<?, ?>>();
+
+    private EventBus() {
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "event bus");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * delivers a batch of updates to one listener
+     * @param <L> the type of the listeners
+     * @param <E> the type of the updates
+     */
+    interface Delivery<L, E> {
+        /**
+         * @param listener the listener
+         * @param updates the coalesced updates, in the order they were first posted; the collection cannot be changed
+         */
+        void deliver(L listener, Collection<E> updates);
+    }
+
+    /**
+     * creates a channel of updates
+     * @param name the name of the channel, for debugging
+     * @param delay how long (in ms) to wait after the first update of a batch before delivering it, so that a burst of updates ends up in one batch
+     * @param delivery how updates are given to the listeners
+     * @return the channel
+     */
+    <L, E> Channel<L, E> newChannel(String name, long delay, Delivery<L, E> delivery) {
+        Channel<L, E> channel = new Channel<L, E>(name, delay, delivery);
+        this.channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * a set of listeners and the updates waiting to be delivered to them
+     * @param <L> the type of the listeners
+     * @param <E> the type of the updates
+     */
+    class Channel<L, E> {
+        private final String name;
+        private final long delay;
+        private final Delivery<L, E> delivery;
+        private final CopyOnWriteArraySet<L> listeners = new CopyOnWriteArraySet<L>();
+
+        // the batch waiting for delivery, null when no delivery is scheduled; every update maps to the last equal update posted
+        private LinkedHashMap<E, E> pending = null;
+        private long pendingSince = 0;
+
+        private long postedCount = 0;
+        private long deliveredCount = 0;
+        private long batchCount = 0;
+        private long totalLatency = 0;
+        private long maxLatency = 0;
+
+        private Channel(String name, long delay, Delivery<L, E> delivery) {
+            this.name = name;
+            this.delay = delay;
+            this.delivery = delivery;
+        }
+
+        void register(L listener) {
+            this.listeners.add(listener);
+        }
+
+        void unregister(L listener) {
+            this.listeners.remove(listener);
+        }
+
+        /**
+         * posts an update, it will be delivered on the event bus thread
+         * @param update the update
+         */
+        void post(E update) {
+            post(Collections.singleton(update));
+        }
+
+        /**
+         * posts a number of updates, they will be delivered together on the event bus thread
+         * @param updates the updates
+         */
+        synchronized void post(Collection<? extends E> updates) {
+            if (updates.isEmpty()) {
+                return;
+            }
+            this.postedCount += updates.size();
+            if (this.pending == null) {
+                this.pending = new LinkedHashMap<E, E>();
+                this.pendingSince = System.currentTimeMillis();
+                EventBus.this.executor.schedule(new Runnable() {
+                    public void run() {
+                        dispatch();
+                    }
+                }, this.delay, TimeUnit.MILLISECONDS);
+            }
+            for (E update : updates) {
+                this.pending.put(update, update);
+            }
+        }
+
+        private void dispatch() {
+            Collection<E> batch;
+            long since;
+            synchronized (this) {
+                batch = Collections.unmodifiableCollection(this.pending.values());
+                since = this.pendingSince;
+                this.pending = null;
+            }
+            // the listeners are called without any lock held
+            for (L listener : this.listeners) {
+                try {
+                    this.delivery.deliver(listener, batch);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "listener on channel " + this.name + " failed", e);
+                }
+            }
+            long latency = System.currentTimeMillis() - since;
+            synchronized (this) {
+                this.deliveredCount += batch.size();
+                this.batchCount++;
+                this.totalLatency += latency;
+                if (latency > this.maxLatency) {
+                    this.maxLatency = latency;
+                }
+            }
+//            Log.v(TAG, this.toString());
+        }
+
+        /**
+         * @return how many updates were posted for each update delivered; 1 means nothing was coalesced
+         */
+        synchronized double getCoalescingRatio() {
+            return this.deliveredCount == 0 ? 1 : (double) this.postedCount / this.deliveredCount;
+        }
+
+        /**
+         * @return how many updates were posted for each batch delivered
+         */
+        synchronized double getBatchingRatio() {
+            return this.batchCount == 0 ? 1 : (double) this.postedCount / this.batchCount;
+        }
+
+        /**
+         * @return the average time (in ms) from the first update of a batch until all the listeners had it
+         */
+        synchronized long getAverageLatency() {
+            return this.batchCount == 0 ? 0 : this.totalLatency / this.batchCount;
+        }
+
+        /**
+         * @return the longest time (in ms) from the first update of a batch until all the listeners had it
+         */
+        synchronized long getMaxLatency() {
+            return this.maxLatency;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "channel " + this.name + ": " + this.postedCount + " updates posted, " + this.deliveredCount + " delivered in " + this.batchCount + " batches, " +
+                    "latency average " + getAverageLatency() + "ms, maximum " + this.maxLatency + "ms";
+        }
+    }
+
+    /**
+     * @return a description of all the channels with their metrics
+     */
+    @Override
+    public String toString() {
+        List<String> descriptions = new ArrayList<String>(this.channels.size());
+        for (Channel<?, ?> channel : this.channels) {
+            descriptions.add(channel.toString());
+        }
+        return "event bus: " + descriptions;
+    }
+}
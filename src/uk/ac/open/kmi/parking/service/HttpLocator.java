@@ -0,0 +1,248 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import android.util.Log;
+
+/**
+ * opens server resources over HTTP like Jena's LocatorURL does for FileManager.open(), but it remembers the validators (ETag, Last-Modified) of every response
+ * whose parsed result the caller gives back, so that the next request for the same URI is conditional; on 304 Not Modified the caller gets the old parsed result
+ * and doesn't need to parse anything; a caller that keeps the data itself (like the tile thread with its tile store) gives back only the validators
+ * the validators are remembered for a URI together with the kind of result parsed from it, so a URI read as two different kinds never gets the wrong result
+ * it also tells the caller when the data should next be refreshed, from Cache-Control: max-age or Expires
+ * this class is synchronized, it's shared by the tile and details threads
+ */
+class HttpLocator {
+    private static final String TAG = "http locator";
+
+    private static final String ACCEPT = "text/turtle,*/*;q=0.5";
+
+    private static final HttpLocator instance = new HttpLocator(Config.HTTP_VALIDATORS_CACHE_SIZE);
+
+    /**
+     * @return the shared locator
+     */
+    static HttpLocator get() {
+        return instance;
+    }
+
+    private final LinkedHashMap<String, Validators> validators;
+
+    private HttpLocator(final int capacity) {
+        this.validators = new LinkedHashMap<String, Validators>(capacity+1, .5f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Validators> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * opens the given resource, conditionally if we have its earlier parsed result
+     * @param uri the HTTP URI of the resource
+     * @param defaultTTL the time-to-live (in ms) of the data if the server doesn't say anything about caching
+     * @param kind the kind of result the caller parses from the resource
+     * @return the response, or null if the resource cannot be read
+     */
+    public <T> Response<T> open(String uri, long defaultTTL, Class<T> kind) {
+        return open(uri, defaultTTL, ACCEPT, kind);
+    }
+
+    /**
+     * opens the given resource, conditionally if we have its earlier parsed result
+     * @param uri the HTTP URI of the resource
+     * @param defaultTTL the time-to-live (in ms) of the data if the server doesn't say anything about caching
+     * @param accept the Accept header for the request, the caller must handle all the media types it lists
+     * @param kind the kind of result the caller parses from the resource
+     * @return the response, or null if the resource cannot be read
+     */
+    public <T> Response<T> open(String uri, long defaultTTL, String accept, Class<T> kind) {
+        String key = key(uri, kind);
+        Validators known;
+        synchronized (this) {
+            known = this.validators.get(key);
+        }
+
+        try {
+            URLConnection urlconn = new URL(uri).openConnection();
+            if (!(urlconn instanceof HttpURLConnection)) {
+                Log.w(TAG, "not an HTTP resource: " + uri);
+                return null;
+            }
+            HttpURLConnection conn = (HttpURLConnection) urlconn;
+            conn.setRequestProperty("Accept", accept);
+            conn.setRequestProperty("Accept-Charset", "utf-8,*");
+            if (known != null) {
+                if (known.etag != null) {
+                    conn.setRequestProperty("If-None-Match", known.etag);
+                }
+                if (known.lastModified != null) {
+                    conn.setRequestProperty("If-Modified-Since", known.lastModified);
+                }
+            }
+            conn.setDoInput(true);
+            conn.setDoOutput(false);
+            conn.connect();
+
+            int responseCode = conn.getResponseCode();
+            long nextUpdate = nextUpdate(conn, System.currentTimeMillis(), defaultTTL);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && known != null) {
+//                Log.d(TAG, "not modified: " + uri);
+                conn.disconnect();
+                return new Response<T>(key, null, kind.cast(known.parsed), nextUpdate, known.etag, known.lastModified);
+            }
+            if (responseCode / 100 != 2) {
+//                Log.d(TAG, "response code " + responseCode + " for " + uri);
+                conn.disconnect();
+                return null;
+            }
+            InputStream in = new BufferedInputStream(conn.getInputStream());
+            return new Response<T>(key, in, null, nextUpdate, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+        } catch (IOException e) {
+//            Log.d(TAG, "cannot read " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * computes the time of the next update from the caching headers of the response
+     */
+    static long nextUpdate(HttpURLConnection conn, long time, long defaultTTL) {
+        long ttl = defaultTTL;
+        boolean fromCacheControl = false;
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    ttl = 0;
+                    fromCacheControl = true;
+                } else if (directive.startsWith("max-age=")) {
+                    try {
+                        ttl = Long.parseLong(directive.substring(8).trim()) * 1000;
+                        fromCacheControl = true;
+                    } catch (NumberFormatException e) {
+                        // ignore a broken max-age
+                    }
+                }
+            }
+        }
+        if (!fromCacheControl) {
+            long expires = conn.getExpiration();
+            if (expires != 0) {
+                // Expires is on the server's clock, so take it relative to the server's Date if we have it
+                long date = conn.getDate();
+                ttl = expires - (date != 0 ? date : time);
+            }
+        }
+        // whatever the server says, we don't poll it more often than this
+        if (ttl < Config.MINIMUM_HTTP_TTL) {
+            ttl = Config.MINIMUM_HTTP_TTL;
+        }
+        return time + ttl;
+    }
+
+    /**
+     * forgets the validators of the given resource, so the next request for it is unconditional
+     * @param uri the HTTP URI of the resource
+     * @param kind the kind of result the caller parses from the resource
+     */
+    public synchronized void forget(String uri, Class<?> kind) {
+        this.validators.remove(key(uri, kind));
+    }
+
+    private static String key(String uri, Class<?> kind) {
+        return kind.getName() + ' ' + uri;
+    }
+
+    private synchronized void remember(String key, Validators v) {
+        this.validators.put(key, v);
+    }
+
+    private static class Validators {
+        final String etag;
+        final String lastModified;
+        final Object parsed;
+
+        Validators(String etag, String lastModified, Object parsed) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.parsed = parsed;
+        }
+    }
+
+    /**
+     * the result of opening a resource: either a new body to be parsed, or the earlier parsed result if the resource was not modified
+     */
+    class Response<T> {
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+
+        /**
+         * the body of the response, null if the resource was not modified
+         */
+        final InputStream body;
+
+        /**
+         * the result parsed from the last full response, only set if the resource was not modified and the caller gave back its result
+         */
+        final T parsed;
+
+        /**
+         * the system time (in ms) when the data should next be refreshed
+         */
+        final long nextUpdate;
+
+        Response(String key, InputStream body, T parsed, long nextUpdate, String etag, String lastModified) {
+            this.key = key;
+            this.body = body;
+            this.parsed = parsed;
+            this.nextUpdate = nextUpdate;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return true if the resource wasn't modified since the last full response and the caller should use the parsed field
+         */
+        boolean isNotModified() {
+            return this.body == null;
+        }
+
+        /**
+         * remembers what the caller parsed from the body so it can be reused if the next request comes back 304 Not Modified
+         * @param result the parsed result, must not be changed by the caller later; null if the caller keeps the data itself and only wants conditional requests
+         */
+        void setParsed(T result) {
+            if (this.etag != null || this.lastModified != null) {
+                remember(this.key, new Validators(this.etag, this.lastModified, result));
+            }
+        }
+    }
+}
@@ -16,11 +16,13 @@
 
 package uk.ac.open.kmi.parking.service;
 
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 
 /**
- * this class implements an Least Recently Used cache of objects of type T
- * currently uses fixed size, todo see if needs to be more dynamic, maybe connected to java garbage collection
+ * this class implements a Least Recently Used cache of objects of type T, limited by the approximate number of bytes the objects retain
+ * when the cache is over its budget, the least recently used objects are dropped, except for the pinned ones
+ * when the runtime is short on memory (or when told so by trim()), the cache sheds objects down to a lower watermark
  * this queue is NOT synchronized in any way
  *
  * @param <T> type of object in the queue
@@ -28,27 +30,68 @@ import java.util.LinkedHashMap;
 class LRUCache <T> {
     @SuppressWarnings("unused")
     private static final String TAG = "LRUCache";
-    private final int size;
-    private LinkedHashMap<T,T> objects;
 
-    public LRUCache(int capacity) {
-        this.size = capacity;
-        this.objects = new LinkedHashMap<T,T>(this.size+1, .5f, true) {
-            private static final long serialVersionUID = 1L;
+    /**
+     * estimates the memory retained by the objects in the cache
+     */
+    interface Weigher<T> {
+        /**
+         * @param object an object in the cache
+         * @return approximately how many bytes the object retains
+         */
+        long weigh(T object);
+    }
 
-            @Override
-            protected boolean removeEldestEntry(Entry<T, T> eldest) {
-                return size() > LRUCache.this.size;
-            }
-        };
+    /**
+     * tells the cache which objects must not be dropped
+     */
+    interface Pinning<T> {
+        /**
+         * @param object an object in the cache
+         * @return true if the object is in use and must stay in the cache
+         */
+        boolean isPinned(T object);
     }
 
+    private final long budget;
+    private final long lowWatermark;
+    private final Weigher<T> weigher;
+    private final Pinning<T> pinning;
+
+    // the objects with their weights as they were when they were added
+    private final LinkedHashMap<T, Entry<T>> objects;
+    private long weight = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
     /**
-     * adds an object at the end of the queue
+     * @param budget the approximate number of bytes the cache may retain
+     * @param lowWatermark the approximate number of bytes the cache sheds down to under memory pressure
+     * @param weigher estimates the memory retained by the objects
+     * @param pinning tells which objects must not be dropped, may be null
+     */
+    public LRUCache(long budget, long lowWatermark, Weigher<T> weigher, Pinning<T> pinning) {
+        this.budget = budget;
+        this.lowWatermark = lowWatermark;
+        this.weigher = weigher;
+        this.pinning = pinning;
+        this.objects = new LinkedHashMap<T, Entry<T>>(64, .75f, true);
+    }
+
+    /**
+     * adds an object at the end of the queue, or re-weighs it if it's already there
      * @param object the object to be added
      */
     public void add(T object) {
-        this.objects.put(object, object);
+        Entry<T> entry = new Entry<T>(object, this.weigher.weigh(object));
+        Entry<T> old = this.objects.put(object, entry);
+        if (old != null) {
+            this.weight -= old.weight;
+        }
+        this.weight += entry.weight;
+        shrinkTo(isMemoryLow() ? this.lowWatermark : this.budget);
 //        printOutStats();
     }
 
@@ -58,11 +101,92 @@ class LRUCache <T> {
      * @return the actual object that was in the cache, or null if it wasn't
      */
     public T get(T template) {
-        return this.objects.get(template);
+        Entry<T> entry = this.objects.get(template);
+        if (entry == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.object;
     }
 
     public boolean peek(T template) {
         return this.objects.containsKey(template);
     }
 
+    /**
+     * sheds the least recently used unpinned objects down to the low watermark, to be called when memory is short
+     */
+    public void trim() {
+        shrinkTo(this.lowWatermark);
+    }
+
+    private void shrinkTo(long target) {
+        for (Iterator<Entry<T>> it = this.objects.values().iterator(); this.weight > target && it.hasNext(); ) {
+            Entry<T> entry = it.next();
+            if (this.pinning != null && this.pinning.isPinned(entry.object)) {
+                continue;
+            }
+            it.remove();
+            this.weight -= entry.weight;
+            this.evictions++;
+        }
+    }
+
+    // the heap is nearly full when less than a fraction of the maximum heap size is left even after growing the heap
+    private static boolean isMemoryLow() {
+        Runtime runtime = Runtime.getRuntime();
+        long free = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+        return free < runtime.maxMemory() / Config.TILE_CACHE_MIN_FREE_HEAP_FRACTION;
+    }
+
+    /**
+     * @return the approximate number of bytes retained by the objects in the cache
+     */
+    public long getWeight() {
+        return this.weight;
+    }
+
+    /**
+     * @return how many objects are in the cache
+     */
+    public int size() {
+        return this.objects.size();
+    }
+
+    /**
+     * @return how many times get() found the object
+     */
+    public long getHitCount() {
+        return this.hits;
+    }
+
+    /**
+     * @return how many times get() didn't find the object
+     */
+    public long getMissCount() {
+        return this.misses;
+    }
+
+    /**
+     * @return how many objects were dropped to keep within the budget
+     */
+    public long getEvictionCount() {
+        return this.evictions;
+    }
+
+    @Override
+    public String toString() {
+        return "LRUCache: " + this.objects.size() + " objects, " + this.weight + "B of " + this.budget + "B, " + this.hits + " hits, " + this.misses + " misses, " + this.evictions + " evictions";
+    }
+
+    private static class Entry<T> {
+        final T object;
+        final long weight;
+
+        Entry(T object, long weight) {
+            this.object = object;
+            this.weight = weight;
+        }
+    }
 }
@@ -18,6 +18,7 @@ package uk.ac.open.kmi.parking.service;
 
 import java.util.HashMap;
 
+import uk.ac.open.kmi.parking.CarparkDetails;
 import uk.ac.open.kmi.parking.Parking;
 
 class MapTile {
@@ -38,6 +39,35 @@ class MapTile {
     public long lastUpdate = 0;
     public long nextUpdate = 0;
 
+    // rough sizes for estimating the retained heap: the tile with its empty map, and a car park with its map entry, point, Uri and availability
+    private static final int TILE_BYTES = 96;
+    private static final int CARPARK_BYTES = 320;
+    // a string is an object and a char array, plus two bytes per character
+    private static final int STRING_BYTES = 40;
+    // a statement in the compact details is two array slots, most of the nodes are shared with other car parks
+    private static final int DETAILS_STATEMENT_BYTES = 24;
+
+    /**
+     * @return approximately how many bytes of heap the tile and its car parks retain
+     */
+    public long approximateSize() {
+        long retval = TILE_BYTES;
+        if (this.parkings != null) {
+            for (Parking p : this.parkings.values()) {
+                retval += CARPARK_BYTES + stringSize(p.id.toString()) + stringSize(p.getTitle()) + stringSize(p.availabilityResource) + stringSize(p.updateResource);
+                CarparkDetails details = p.details;
+                if (details != null) {
+                    retval += details.size() * DETAILS_STATEMENT_BYTES;
+                }
+            }
+        }
+        return retval;
+    }
+
+    private static int stringSize(String s) {
+        return s == null ? 0 : STRING_BYTES + 2*s.length();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || !(o instanceof MapTile)) {
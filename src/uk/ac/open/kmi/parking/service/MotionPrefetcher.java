@@ -0,0 +1,99 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.LinkedList;
+
+import android.location.Location;
+
+/**
+ * asks the tile downloader for the tiles along the way ahead of the user, so that when driving, the near car parks are already there when the car gets to them
+ * the way ahead is projected in a straight line from the speed and bearing of the location fixes (or from the last two fixes if they don't have them)
+ * the prefetches are limited by a budget so a long drive doesn't flood the network
+ * this class is not synchronized, it's only used by the near-precompute thread
+ */
+class MotionPrefetcher {
+    @SuppressWarnings("unused")
+    private static final String TAG = "motion prefetcher";
+
+    // a degree of latitude, in meters
+    private static final double METERS_PER_DEGREE = 111195;
+
+    private final TileDownloaderThread tileDownloader;
+    private Location lastFix = null;
+    // when the prefetches within the budget period happened, the oldest first
+    private final LinkedList<Long> recentPrefetches = new LinkedList<Long>();
+
+    public MotionPrefetcher(TileDownloaderThread tileDownloader) {
+        this.tileDownloader = tileDownloader;
+    }
+
+    /**
+     * projects the way ahead from the new location fix and prefetches the tiles around it
+     * @param fix the new location
+     */
+    public void onNewCoordinates(Location fix) {
+        Location previous = this.lastFix;
+        this.lastFix = fix;
+
+        float speed;
+        float bearing;
+        if (fix.hasSpeed() && fix.hasBearing()) {
+            speed = fix.getSpeed();
+            bearing = fix.getBearing();
+        } else if (previous != null && fix.getTime() > previous.getTime()) {
+            speed = previous.distanceTo(fix) * 1000f / (fix.getTime() - previous.getTime());
+            bearing = previous.bearingTo(fix);
+        } else {
+            return;
+        }
+        if (speed < Config.PREFETCH_MIN_SPEED) {
+            return;
+        }
+
+        long time = fix.getTime();
+        while (!this.recentPrefetches.isEmpty() && this.recentPrefetches.getFirst() <= time - Config.PREFETCH_BUDGET_PERIOD) {
+            this.recentPrefetches.removeFirst();
+        }
+
+        double distance = Math.min(speed * Config.PREFETCH_LOOKAHEAD / 1000d, Config.PREFETCH_MAX_DISTANCE);
+        double latPerMeter = Math.cos(Math.toRadians(bearing)) / METERS_PER_DEGREE;
+        double lonPerMeter = Math.sin(Math.toRadians(bearing)) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(fix.getLatitude())));
+
+        // every half a tile along the way, the same 3x3 tiles that the near-precompute thread will want when we get there
+        double step = ParkingsService.TILE_SIZE / 1e6 * METERS_PER_DEGREE / 2;
+        for (double d = step; d <= distance; d += step) {
+            int late6 = (int) Math.floor((fix.getLatitude() + d*latPerMeter)*1e6);
+            int lone6 = (int) Math.floor((fix.getLongitude() + d*lonPerMeter)*1e6);
+            int tileLatE0 = late6 / ParkingsService.TILE_SIZE; if (late6 < 0) tileLatE0--;
+            int tileLonE0 = lone6 / ParkingsService.TILE_SIZE; if (lone6 < 0) tileLonE0--;
+
+            for (int latE0 = tileLatE0-1; latE0 <= tileLatE0+1; latE0++) {
+                for (int lonE0 = tileLonE0-1; lonE0 <= tileLonE0+1; lonE0++) {
+                    if (this.recentPrefetches.size() >= Config.PREFETCH_BUDGET) {
+//                        Log.d(TAG, "prefetch budget used up");
+                        return;
+                    }
+                    if (this.tileDownloader.prefetchTile(latE0*ParkingsService.TILE_SIZE, lonE0*ParkingsService.TILE_SIZE)) {
+//                        Log.d(TAG, "prefetching tile " + latE0 + "," + lonE0 + " " + (int) d + "m ahead");
+                        this.recentPrefetches.addLast(time);
+                    }
+                }
+            }
+        }
+    }
+}
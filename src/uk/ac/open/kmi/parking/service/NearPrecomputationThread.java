@@ -19,9 +19,7 @@ package uk.ac.open.kmi.parking.service;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
@@ -30,16 +28,16 @@ import android.location.Location;
 
 /**
  * this thread computes in the background the car parks that are near the current location of the user
- * todo nearest tiles don't seem to stay in LRUCache - can be solved by periodically doing get() on LRUCache with the near tiles
  */
 class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesirabilityChecker {
     @SuppressWarnings("unused")
     private static final String TAG = "near-precompute thread";
-    private Collection<Parking> nearCurrentItems = Collections.emptyList();
+    private final CarparkIndex index = new CarparkIndex(Config.NEAR_INDEX_TILES);
     volatile Parking currentNearestCarpark = null;
     private volatile MapRectangle currentCoveredCoordinatesE6 = null;
     private final BlockingQueue<Event> eventQueue = new ArrayBlockingQueue<Event>(1000); // todo make this number configurable? also the number of updatedTiles below
     private TileDownloaderThread tileDownloader;
+    private final MotionPrefetcher prefetcher;
 
     private static double maximumNearestDistance = 0;
 
@@ -49,6 +47,7 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
 
     public NearPrecomputationThread(TileDownloaderThread tileDownloader) {
         this.tileDownloader = tileDownloader;
+        this.prefetcher = new MotionPrefetcher(tileDownloader);
         tileDownloader.registerTileUpdateListener(this);
         tileDownloader.registerTileDesirabilityChecker(this);
     }
@@ -74,6 +73,7 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
                 }
 
                 boolean forceUpdate = false;
+                boolean newCoords = false;
 
                 Event event = this.eventQueue.take();
                 // in case the events are only tile updates, we want to act on the last coordinates
@@ -82,9 +82,13 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
                     switch (event.type) {
                     case NEW_COORDINATES:
                         coords = event.coords;
+                        newCoords = true;
                         break;
                     case TILE_UPDATE:
-                        this.updatedTiles.add(event.tile);
+                        for (MapTile tile : event.tiles) {
+                            this.index.addTile(tile);
+                        }
+                        this.updatedTiles.addAll(event.tiles);
                         break;
                     case REFRESH:
                         forceUpdate = true;
@@ -97,7 +101,12 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
                     continue;
                 }
 
+                if (newCoords && Config.MOTION_PREFETCH) {
+                    this.prefetcher.onNewCoordinates(coords);
+                }
+
                 forceUpdate |= this.lastCoords == null;
+                boolean tilesUpdated = false;
                 if (!forceUpdate) {
                     for (MapTile tile : this.updatedTiles) {
                         int tileLatE0 = tile.late6min / ParkingsService.TILE_SIZE;
@@ -107,17 +116,18 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
                                 tileLatE0 <= this.lastTileMaxLatE0 &&
                                 tileLonE0 <= this.lastTileMaxLonE0) {
                             forceUpdate = true;
+                            tilesUpdated = true;
                             break;
                         }
                     }
                 }
                 this.updatedTiles.clear();
 
-                // for now we simply combines the parks in the 3x3 tiles centered on the coordinates
+                // for now we simply request the 3x3 tiles centered on the coordinates, the car parks in them are found through the index
                 // there is a buffer zone in which the current-precomputed is still acceptable
                 // it can be optimized to 1-to-4 (depending on where in its tile the point is)
 
-
+                boolean moved = forceUpdate || !coords.equals(this.lastCoords);
                 this.lastCoords = coords;
 
                 // the tiles that are at least partially visible
@@ -157,38 +167,33 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
                                     tileMinLonE0 * ParkingsService.TILE_SIZE,
                                     tileMaxLatE0 * ParkingsService.TILE_SIZE,
                                     tileMaxLonE0 * ParkingsService.TILE_SIZE);
-
-                    List<Parking> retval = new ArrayList<Parking>(200);
-//                    int count=0; int total=0;
-                    // todo this should go from the center, not from the corner
-                    for (int latE0 = tileMinLatE0; latE0 <= tileMaxLatE0; latE0++) {
-                        for (int lonE0 = tileMinLonE0; lonE0 <= tileMaxLonE0; lonE0++) {
-                            MapTile tile = this.tileDownloader.getTile(latE0*ParkingsService.TILE_SIZE, lonE0*ParkingsService.TILE_SIZE);
-//                            total++;
-                            if (tile != null) {
-                                retval.addAll(tile.parkings.values());
-//                                count++;
-                            }
-                        }
-                    }
-
-                    this.nearCurrentItems = retval;
-//                    Log.d(TAG, "recomputed (with " + count + " out of " + total + " tiles, " + retval.size() + " parkings) for " + coords);
+//                    Log.d(TAG, "recomputed for " + coords);
                 } else {
                     // otherwise no need to do anything
 //                        Log.i(TAG, "no recomputation for " + event);
                 }
 
-                // recompute the nearest one here
-                Parking newNearest = findNearestCarPark(coords); // todo this may not be necessary if the coordinates haven't changed and the tiles haven't changed
+                // the index may have dropped some of the covered tiles that are still cached (e.g. for a big supertile the user browsed to),
+                // even when we haven't moved out of the covered area
+                for (int latE0 = this.lastTileMinLatE0; latE0 <= this.lastTileMaxLatE0; latE0++) {
+                    for (int lonE0 = this.lastTileMinLonE0; lonE0 <= this.lastTileMaxLonE0; lonE0++) {
+                        MapTile tile = this.tileDownloader.getTile(latE0*ParkingsService.TILE_SIZE, lonE0*ParkingsService.TILE_SIZE);
+                        if (tile != null && !this.index.containsTile(tile)) {
+                            this.index.addTile(tile);
+                            tilesUpdated = true;
+                        }
+                    }
+                }
+
+                // recompute the nearest one here, unless nothing has changed
+                if (!moved && !tilesUpdated) {
+                    continue;
+                }
+                Parking newNearest = findNearestCarPark(coords);
                 if (this.currentNearestCarpark != newNearest) {
                     this.currentNearestCarpark = newNearest;
                     // let listeners know about this change
-                    synchronized(this) {
-                        for (NearbyCarparkUpdateListener listener : this.updateListeners) {
-                            listener.onNearbyCarparkUpdated();
-                        }
-                    }
+                    this.updates.post(EventBus.SIGNAL);
                 }
 //                Log.d(TAG, "found new nearest " + newNearest + " for " + coords);
             } catch (InterruptedException e) {
@@ -207,8 +212,8 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
         }
     }
 
-    public void onTileUpdated(MapTile tile) {
-        boolean added = this.eventQueue.offer(new Event(tile));
+    public void onTilesUpdated(Collection<MapTile> tiles) {
+        boolean added = this.eventQueue.offer(new Event(tiles));
         if (!added) {
 //            Log.e(TAG, "event queue full, cannot add new tile!");
         }
@@ -222,41 +227,41 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
     }
 
     public Parking findNearestCarPark(Location location) {
-        Parking currentCarpark = null;
-        if (location != null) {
-            float[] distresult = new float[1];
-
-            final boolean onlyConfirmed = !ParkingsService.get(null).getShowUnconfirmedCarparks();
+        List<Parking> nearest = findNearestCarParks(location, 1);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
 
-            Collection<Parking> parkings = this.nearCurrentItems;
-            double distance = maximumNearestDistance;
-            for (Parking parking : parkings) {
-                if (onlyConfirmed && parking.unconfirmed) {
-                    continue;
-                }
-                Location.distanceBetween(location.getLatitude(), location.getLongitude(), parking.latitude, parking.longitude, distresult);
-                if (distresult[0] < distance) {
-                    distance = distresult[0];
-                    currentCarpark = parking;
-                }
-            }
+    /**
+     * finds the car parks nearest to the given location, within the "near" distance
+     * @param location the location
+     * @param k how many car parks at most
+     * @return up to k car parks, the nearest first
+     */
+    public List<Parking> findNearestCarParks(Location location, int k) {
+        if (location == null) {
+            return Collections.emptyList();
+        }
+        final boolean onlyConfirmed = !ParkingsService.get(null).getShowUnconfirmedCarparks();
+        double distance;
+        synchronized (NearPrecomputationThread.class) {
+            distance = maximumNearestDistance;
         }
-        return currentCarpark;
+        return this.index.findNearest(location.getLatitude(), location.getLongitude(), k, distance, onlyConfirmed);
     }
 
     private static class Event {
         enum Type { TILE_UPDATE, NEW_COORDINATES, REFRESH };
         final Type type;
         Location coords;
-        MapTile tile;
+        Collection<MapTile> tiles;
 
         public Event(Location coords) {
             this.coords = coords;
             this.type = Type.NEW_COORDINATES;
         }
 
-        public Event(MapTile tile) {
-            this.tile = tile;
+        public Event(Collection<MapTile> tiles) {
+            this.tiles = tiles;
             this.type = Type.TILE_UPDATE;
         }
 
@@ -278,12 +283,26 @@ class NearPrecomputationThread implements Runnable, TileUpdateListener, TileDesi
         }
     }
 
-    private final Set<NearbyCarparkUpdateListener> updateListeners = new HashSet<NearbyCarparkUpdateListener>();
+    public boolean isTileInUse(MapTile tile) {
+        MapRectangle currentCoveredE6 = this.currentCoveredCoordinatesE6;
+        return currentCoveredE6 != null &&
+                tile.late6min >= currentCoveredE6.latmin &&
+                tile.late6min <= currentCoveredE6.latmax &&
+                tile.lone6min >= currentCoveredE6.lonmin &&
+                tile.lone6min <= currentCoveredE6.lonmax;
+    }
+
+    private final EventBus.Channel<NearbyCarparkUpdateListener, Object> updates = EventBus.get().newChannel("nearest car park updates", 0,
+            new EventBus.Delivery<NearbyCarparkUpdateListener, Object>() {
+                public void deliver(NearbyCarparkUpdateListener listener, Collection<Object> signals) {
+                    listener.onNearbyCarparkUpdated();
+                }
+            });
 
-    public synchronized void registerUpdateListener(NearbyCarparkUpdateListener listener) {
-        this.updateListeners.add(listener);
+    public void registerUpdateListener(NearbyCarparkUpdateListener listener) {
+        this.updates.register(listener);
     }
-    public synchronized void unregisterUpdateListener(NearbyCarparkUpdateListener listener) {
-        this.updateListeners.remove(listener);
+    public void unregisterUpdateListener(NearbyCarparkUpdateListener listener) {
+        this.updates.unregister(listener);
     }
 }
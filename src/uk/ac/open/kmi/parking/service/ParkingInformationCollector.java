@@ -0,0 +1,206 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.open.kmi.parking.Onto;
+import uk.ac.open.kmi.parking.Parking.Availability;
+import uk.ac.open.kmi.parking.service.TileDownloaderThread.ParkingInformation;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDateTime;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.n3.turtle.ParserTurtle;
+import com.hp.hpl.jena.n3.turtle.TurtleEventHandler;
+import com.hp.hpl.jena.vocabulary.RDF;
+import com.hp.hpl.jena.vocabulary.RDFS;
+import com.hp.hpl.jena.vocabulary.XSD;
+
+/**
+ * fills ParkingInformation records straight from Turtle parser events, without building a Jena model first
+ * it only understands the properties that ParkingInformation.parse looks at, everything else is dropped as it streams by
+ * this class is NOT synchronized in any way, use one instance per document
+ */
+class ParkingInformationCollector implements TurtleEventHandler {
+    @SuppressWarnings("unused")
+    private static final String TAG = "parking info collector";
+
+    private static final Node TYPE = RDF.type.asNode();
+    private static final Node LABEL = RDFS.label.asNode();
+    private static final Node PARKING = Onto.LGO_Parking.asNode();
+    private static final Node UNVERIFIED_INSTANCE = Onto.PARKING_UnverifiedInstance.asNode();
+    private static final Node LAT = Onto.GEOPOS_lat.asNode();
+    private static final Node LONG = Onto.GEOPOS_long.asNode();
+    private static final Node BINARY_AVAILABILITY = Onto.PARKING_binaryAvailability.asNode();
+    private static final Node BINARY_AVAILABILITY_TIMESTAMP = Onto.PARKING_binaryAvailabilityTimestamp.asNode();
+    private static final Node AVAILABILITY_RESOURCE = Onto.PARKING_availabilityResource.asNode();
+    private static final Node UPDATE_RESOURCE = Onto.PARKING_updateResource.asNode();
+    private static final Node HAS_UNVERIFIED_PROPERTIES = Onto.PARKING_hasUnverifiedProperties.asNode();
+
+    // every subject gets a record because we can't know up front which ones will turn out to be car parks
+    // (the rdf:type triple may come last); the bags of unverified properties only ever use the title field
+    private final Map<Node, Record> subjects = new HashMap<Node, Record>(400);
+
+    /**
+     * parses the given Turtle document
+     * @param is the stream with the document
+     * @param uri the base URI of the document
+     * @return the car parks found in the document, in no particular order
+     */
+    public static List<ParkingInformation> parse(InputStream is, String uri) {
+        ParkingInformationCollector collector = new ParkingInformationCollector();
+        new ParserTurtle().parse(collector, uri, is);
+        return collector.getParkings();
+    }
+
+    public void triple(int line, int col, Triple triple) {
+        Node s = triple.getSubject();
+        Node p = triple.getPredicate();
+        Node o = triple.getObject();
+
+        Record r = this.subjects.get(s);
+        if (r == null) {
+            r = new Record();
+            this.subjects.put(s, r);
+        }
+        ParkingInformation pinfo = r.pinfo;
+
+        try {
+            if (p.equals(LAT)) {
+                pinfo.lat = literalDouble(o);
+            } else if (p.equals(LONG)) {
+                pinfo.lon = literalDouble(o);
+            } else if (p.equals(LABEL)) {
+                if (o.isLiteral()) {
+                    pinfo.title = o.getLiteralLexicalForm();
+                    pinfo.titleProperty = RDFS.label;
+                }
+            } else if (p.equals(BINARY_AVAILABILITY)) {
+                pinfo.availability = literalBoolean(o) ? Availability.AVAILABLE : Availability.FULL;
+                if (pinfo.timestamp == null) {
+                    pinfo.timestamp = Long.MIN_VALUE;
+                }
+            } else if (p.equals(BINARY_AVAILABILITY_TIMESTAMP)) {
+                if (o.isLiteral() && XSD.dateTime.hasURI(o.getLiteralDatatypeURI())) {
+                    Object val = o.getLiteralValue();
+                    if (val instanceof XSDDateTime) {
+                        XSDDateTime dtval = (XSDDateTime) val;
+                        Calendar cal = dtval.asCalendar();
+                        cal.setTimeZone(Config.UTC);
+                        pinfo.timestamp = cal.getTimeInMillis();
+                    }
+                }
+            } else if (p.equals(AVAILABILITY_RESOURCE)) {
+                if (o.isURI()) {
+                    pinfo.availabilityResource = o.getURI();
+                }
+            } else if (p.equals(UPDATE_RESOURCE)) {
+                if (o.isURI()) {
+                    pinfo.updateResource = o.getURI();
+                }
+            } else if (p.equals(HAS_UNVERIFIED_PROPERTIES)) {
+                if (!o.isLiteral()) {
+                    if (r.unverifiedProperties == null) {
+                        r.unverifiedProperties = new ArrayList<Node>(2);
+                    }
+                    r.unverifiedProperties.add(o);
+                }
+            } else if (p.equals(TYPE)) {
+                if (o.equals(PARKING)) {
+                    r.isParking = true;
+                } else if (o.equals(UNVERIFIED_INSTANCE)) {
+                    pinfo.unconfirmed = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            // malformed value, skipped; todo error logging/handling
+//            Log.w(TAG, "bad value at " + line + ":" + col + " in " + triple, e);
+        }
+    }
+
+    private static double literalDouble(Node o) {
+        if (o.getLiteralDatatype() == null) {
+            return Double.parseDouble(o.getLiteralLexicalForm());
+        }
+        return ((Number) o.getLiteralValue()).doubleValue();
+    }
+
+    private static boolean literalBoolean(Node o) {
+        Object value = o.getLiteralValue();
+        if (o.getLiteralDatatype() == null) {
+            return "true".equals(value);
+        }
+        return ((Boolean) value).booleanValue();
+    }
+
+    /**
+     * @return the complete car park information records collected so far
+     */
+    List<ParkingInformation> getParkings() {
+        List<ParkingInformation> retval = new ArrayList<ParkingInformation>(this.subjects.size());
+        for (Map.Entry<Node, Record> entry : this.subjects.entrySet()) {
+            Record r = entry.getValue();
+            if (!r.isParking || !entry.getKey().isURI()) {
+                continue;
+            }
+            ParkingInformation pinfo = r.pinfo;
+            pinfo.id = entry.getKey().getURI();
+
+            if (pinfo.title == null && r.unverifiedProperties != null) {
+                // try to find an unconfirmed title
+                for (Node bag : r.unverifiedProperties) {
+                    Record bagRecord = this.subjects.get(bag);
+                    // todo assuming only RDFS.label for an unconfirmed name property, same as ParkingInformation.parse
+                    if (bagRecord != null && bagRecord.pinfo.title != null && bagRecord.pinfo.title.trim().length() != 0) {
+                        pinfo.title = bagRecord.pinfo.title;
+                        pinfo.titleProperty = RDFS.label;
+                        break;
+                    }
+                }
+            }
+
+            if (pinfo.complete()) {
+                retval.add(pinfo);
+            }
+        }
+        return retval;
+    }
+
+    public void prefix(int line, int col, String prefix, String iri) {
+        // prefixes are not needed, the parser resolves them
+    }
+
+    public void startFormula(int line, int col) {
+        // formulae are not valid Turtle, the parser won't give them to us
+    }
+
+    public void endFormula(int line, int col) {
+        // formulae are not valid Turtle, the parser won't give them to us
+    }
+
+    private static class Record {
+        final ParkingInformation pinfo = new ParkingInformation();
+        boolean isParking = false;
+        List<Node> unverifiedProperties = null;
+    }
+}
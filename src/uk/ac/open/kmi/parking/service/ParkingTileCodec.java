@@ -0,0 +1,215 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.ac.open.kmi.parking.Parking.Availability;
+import uk.ac.open.kmi.parking.service.TileDownloaderThread.ParkingInformation;
+
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+/**
+ * a compact binary encoding of the availetc data of a supertile, with only the fields of ParkingInformation
+ * the format is the magic bytes and a version, the number of car parks as a varint, and then for every car park:
+ *   a flags byte (availability, what's present, unconfirmed),
+ *   latitude and longitude in microdegrees, as zigzag varint differences from the previous car park,
+ *   the availability timestamp (if present) in ms, as a zigzag varint difference from the previous timestamp,
+ *   the ID, title, availability resource and update resource (if present), each as a varint of the number of chars
+ *   it shares with the same field of the previous car park, then the length and UTF-8 bytes of the rest
+ * the decoder only creates the strings of these fields, and the magic bytes tell it apart from Turtle in stored data
+ * the server's side, ParkingTileEncoder, is kept in server/src so it isn't part of the app
+ */
+class ParkingTileCodec {
+    @SuppressWarnings("unused")
+    private static final String TAG = "parking tile codec";
+
+    /**
+     * the media type of the encoding, for the Accept header
+     */
+    static final String MEDIA_TYPE = "application/x-parkjam-tile";
+
+    static final byte[] MAGIC = { (byte) 0x89, 'P', 'K', 'T' };
+    static final int VERSION = 1;
+
+    static final int AVAILABILITY_MASK = 0x03;
+    static final int AVAILABLE = 1;
+    static final int FULL = 2;
+    static final int HAS_TIMESTAMP = 0x04;
+    static final int UNCONFIRMED = 0x08;
+    static final int HAS_TITLE = 0x10;
+    static final int HAS_AVAILABILITY_RESOURCE = 0x20;
+    static final int HAS_UPDATE_RESOURCE = 0x40;
+
+    // flags, latitude, longitude and the ID's shared and rest lengths take at least a byte each
+    private static final int MIN_CARPARK_SIZE = 5;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * @param data the data of a supertile
+     * @return true if the data is in this encoding, false if it should be Turtle
+     */
+    static boolean isEncoded(byte[] data) {
+        if (data.length < MAGIC.length) {
+            return false;
+        }
+        for (int i=0; i<MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * decodes the car parks of a supertile
+     * @param data the encoded data
+     * @return the car parks, completed like those from Turtle
+     * @throws IOException if the data is truncated, malformed or of an unknown version
+     */
+    static List<ParkingInformation> decode(byte[] data) throws IOException {
+        if (!isEncoded(data)) {
+            throw new IOException("not an encoded parking tile");
+        }
+        Reader in = new Reader(data, MAGIC.length);
+        int version = in.readVarint();
+        if (version != VERSION) {
+            throw new IOException("unknown parking tile encoding version " + version);
+        }
+        int count = in.readVarint();
+        // a corrupt count must not make us allocate a huge list
+        if (count < 0 || count > in.remaining() / MIN_CARPARK_SIZE) {
+            throw new IOException("bad car park count " + count + " in parking tile");
+        }
+        List<ParkingInformation> retval = new ArrayList<ParkingInformation>(count);
+
+        int late6 = 0, lone6 = 0;
+        long timestamp = 0;
+        String id = "", title = "", availabilityResource = "", updateResource = "";
+        for (int i=0; i<count; i++) {
+            ParkingInformation p = new ParkingInformation();
+            int flags = in.readByte();
+            late6 += in.readSignedVarint();
+            lone6 += in.readSignedVarint();
+            switch (flags & AVAILABILITY_MASK) {
+            case AVAILABLE:
+                p.availability = Availability.AVAILABLE;
+                break;
+            case FULL:
+                p.availability = Availability.FULL;
+                break;
+            default:
+                p.availability = Availability.UNKNOWN;
+            }
+            if ((flags & HAS_TIMESTAMP) != 0) {
+                timestamp += in.readSignedVarintLong();
+                p.timestamp = timestamp;
+            } else if (p.availability != Availability.UNKNOWN) {
+                // same as when Turtle has availability without a timestamp
+                p.timestamp = Long.MIN_VALUE;
+            }
+            p.unconfirmed = (flags & UNCONFIRMED) != 0;
+
+            id = in.readString(id);
+            p.id = id;
+            if ((flags & HAS_TITLE) != 0) {
+                title = in.readString(title);
+                p.title = title;
+                p.titleProperty = RDFS.label;
+            }
+            if ((flags & HAS_AVAILABILITY_RESOURCE) != 0) {
+                availabilityResource = in.readString(availabilityResource);
+                p.availabilityResource = availabilityResource;
+            }
+            if ((flags & HAS_UPDATE_RESOURCE) != 0) {
+                updateResource = in.readString(updateResource);
+                p.updateResource = updateResource;
+            }
+
+            p.lat = late6 / 1e6;
+            p.lon = lone6 / 1e6;
+            if (p.complete()) {
+                // the exact microdegrees, not rounded through the doubles
+                p.late6 = late6;
+                p.lone6 = lone6;
+                retval.add(p);
+            }
+        }
+        return retval;
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        int remaining() {
+            return this.data.length - this.pos;
+        }
+
+        int readByte() throws IOException {
+            if (this.pos >= this.data.length) {
+                throw new IOException("truncated parking tile");
+            }
+            return this.data[this.pos++] & 0xff;
+        }
+
+        long readVarintLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint in parking tile");
+        }
+
+        int readVarint() throws IOException {
+            return (int) readVarintLong();
+        }
+
+        long readSignedVarintLong() throws IOException {
+            long value = readVarintLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        int readSignedVarint() throws IOException {
+            return (int) readSignedVarintLong();
+        }
+
+        String readString(String previous) throws IOException {
+            int shared = readVarint();
+            int length = readVarint();
+            if (shared < 0 || shared > previous.length() || length < 0 || length > remaining()) {
+                throw new IOException("malformed string in parking tile");
+            }
+            String rest = new String(this.data, this.pos, length, UTF8);
+            this.pos += length;
+            return shared == 0 ? rest : previous.substring(0, shared).concat(rest);
+        }
+    }
+}
@@ -16,9 +16,11 @@
 
 package uk.ac.open.kmi.parking.service;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.List;
 
+import uk.ac.open.kmi.parking.CarparkDetails;
 import uk.ac.open.kmi.parking.DrawableOverlayItem;
 import uk.ac.open.kmi.parking.Parking;
 import uk.ac.open.kmi.parking.Parking.Availability;
@@ -30,7 +32,6 @@ import android.net.Uri;
 import android.util.Log;
 
 import com.google.android.maps.GeoPoint;
-import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Property;
 
 /**
@@ -48,11 +49,18 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
      */
     public static final int TILE_SIZE = 30000;
 
+    /**
+     * the lowest zoom level at which car parks are shown (in clusters)
+     */
+    public static final int CLUSTER_MIN_ZOOM = CarparkClusterer.MIN_ZOOM;
+
     private SortingPrecomputationThread sortingPrecomputer;
+    private ClusteringPrecomputationThread clusteringPrecomputer;
     private NearPrecomputationThread nearPrecomputer;
     private TileDownloaderThread tileDownloader;
     private DetailsAndAvailabilityThread detailsAndAvailabilityDownloader;
     private CarparkAvailabilityRefreshTrigger carparkAvailabilityRefreshTrigger;
+    private AvailabilityPushThread availabilityPusher;
 
     /**
      * holder for a geocoder, should be set up at the beginning of an activity and set to null at the end of it so we don't hold references to the activity
@@ -62,9 +70,11 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
     final RememberedCarparks rememberedCarparks;
 
     private Thread sortingPrecomputationThread = null;
+    private Thread clusteringPrecomputationThread = null;
     private Thread nearPrecomputationThread = null;
     private Thread tileDownloaderThread = null;
     private Thread detailsAndAvailabilityThread = null;
+    private Thread availabilityPushThread = null;
 
     private boolean threadsStopped = true;
 
@@ -121,15 +131,23 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
         if (ctxt == null) {
             throw new NullPointerException("creating parkings service without a context not allowed");
         }
-        this.rememberedCarparks = new RememberedCarparks(ctxt);
+        CarparkStore carparkStore = Config.PERSISTENT_CARPARK_STORE ? new CarparkStore(new File(ctxt.getFilesDir(), "carparks"), Config.RECENT_CARPARKS_STORED) : null;
+        this.rememberedCarparks = new RememberedCarparks(ctxt, carparkStore);
 
-        this.tileDownloader = new TileDownloaderThread(this.rememberedCarparks);
+        this.tileDownloader = new TileDownloaderThread(this.rememberedCarparks,
+                Config.PERSISTENT_TILE_STORE ? new TileStore(new File(ctxt.getCacheDir(), "tiles"), Config.TILE_STORE_BUDGET) : null);
         this.detailsAndAvailabilityDownloader = new DetailsAndAvailabilityThread(this);
         this.sortingPrecomputer = new SortingPrecomputationThread(this.tileDownloader);
+        this.clusteringPrecomputer = new ClusteringPrecomputationThread(this.tileDownloader);
         this.nearPrecomputer = new NearPrecomputationThread(this.tileDownloader);
-        this.carparkAvailabilityRefreshTrigger = new CarparkAvailabilityRefreshTrigger(this.detailsAndAvailabilityDownloader, this.rememberedCarparks);
+        this.availabilityPusher = Config.AVAILABILITY_PUSH ? new AvailabilityPushThread(this.detailsAndAvailabilityDownloader) : null;
+        this.carparkAvailabilityRefreshTrigger = new CarparkAvailabilityRefreshTrigger(this.detailsAndAvailabilityDownloader, this.rememberedCarparks, this.availabilityPusher);
 
         this.nearPrecomputer.registerUpdateListener(this);
+        if (carparkStore != null) {
+            this.detailsAndAvailabilityDownloader.registerDetailsUpdateListener(carparkStore);
+            this.detailsAndAvailabilityDownloader.registerAvailabilityUpdateListener(carparkStore);
+        }
 
         NearPrecomputationThread.setNearestDistance(ctxt.getResources().getInteger(R.integer.near_car_park_meters));
 
@@ -175,19 +193,49 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
     }
 
     /**
-     * register a listener for updates of the current sorted items collection
+     * returns (quickly) the current precomputed drawable overlay items that are in the given area, without going through all of them
+     * @param latmin the southern edge of the area, in microdegrees
+     * @param lonmin the western edge of the area, in microdegrees
+     * @param latmax the northern edge of the area, in microdegrees
+     * @param lonmax the eastern edge of the area, in microdegrees
+     * @return a collection of drawable overlay items, sorted north-to-south like the whole current collection
+     */
+    public Collection<DrawableOverlayItem> getSortedCurrentItems(int latmin, int lonmin, int latmax, int lonmax) {
+        return this.sortingPrecomputer.sortedCurrentItems.findIn(latmin, lonmin, latmax, lonmax);
+    }
+
+    /**
+     * returns (quickly) the precomputed clusters of car parks for the given map, for when it's zoomed out too far to show individual car parks
+     * @param mapCenter center of the map
+     * @param longitudeSpan width of the map
+     * @param latitudeSpan height of the map
+     * @param zoom the zoom level of the map
+     * @return a list of clusters, empty if the zoom level doesn't have clusters
+     */
+    public List<CarparkCluster> getCurrentClusters(GeoPoint mapCenter, int longitudeSpan, int latitudeSpan, int zoom) {
+        if (!this.threadsStopped) {
+            // forward the location to the clustering precomputation thread
+            this.clusteringPrecomputer.onNewCoordinates(new MapRectangle(mapCenter.getLatitudeE6()-latitudeSpan/2, mapCenter.getLongitudeE6()-longitudeSpan/2, mapCenter.getLatitudeE6()+latitudeSpan/2, mapCenter.getLongitudeE6()+longitudeSpan/2), zoom);
+        }
+        return this.clusteringPrecomputer.currentClusters;
+    }
+
+    /**
+     * register a listener for updates of the current sorted items collection (and of the current clusters)
      * @param listener the listener
      */
     public synchronized void registerSortedCurrentItemsUpdateListener(SortedCurrentItemsUpdateListener listener) {
         this.sortingPrecomputer.registerUpdateListener(listener);
+        this.clusteringPrecomputer.registerUpdateListener(listener);
     }
 
     /**
-     * unregister a listener for updates of the current sorted items collection
+     * unregister a listener for updates of the current sorted items collection (and of the current clusters)
      * @param listener the listener
      */
     public synchronized void unregisterSortedCurrentItemsUpdateListener(SortedCurrentItemsUpdateListener listener) {
         this.sortingPrecomputer.unregisterUpdateListener(listener);
+        this.clusteringPrecomputer.unregisterUpdateListener(listener);
     }
 
     /**
@@ -244,9 +292,9 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
     public void startService() {
 //        Log.d(TAG, "starting threads");
         synchronized(this) {
-            if (this.delayedProcessKiller != null) {
-                this.delayedProcessKiller.interrupt();
-                this.delayedProcessKiller = null;
+            if (this.threadsStopping) {
+                this.threadStopper.cancel();
+                this.threadsStopping = false;
 //                Log.d(TAG, "cancelling stopping of threads");
                 return;
             }
@@ -259,6 +307,7 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
         this.tileDownloaderThread = new Thread(this.tileDownloader);
         this.detailsAndAvailabilityThread = new Thread(this.detailsAndAvailabilityDownloader);
         this.sortingPrecomputationThread = new Thread(this.sortingPrecomputer);
+        this.clusteringPrecomputationThread = new Thread(this.clusteringPrecomputer);
         this.nearPrecomputationThread = new Thread(this.nearPrecomputer);
 
 //            this.tileDownloaderThread.setDaemon(true);
@@ -268,15 +317,48 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
         this.tileDownloaderThread.start();
         this.detailsAndAvailabilityThread.start();
         this.sortingPrecomputationThread.start();
+        this.clusteringPrecomputationThread.start();
         this.nearPrecomputationThread.start();
-        this.carparkAvailabilityRefreshTrigger.startThread();
+        if (this.availabilityPusher != null) {
+            this.availabilityPushThread = new Thread(this.availabilityPusher);
+            this.availabilityPushThread.start();
+        }
+        this.carparkAvailabilityRefreshTrigger.start();
 
         this.tileDownloader.refreshAllListeners();
 
         this.threadsStopped = false;
     }
 
-    private Thread delayedProcessKiller;
+    // the threads are only stopped a second after stopService, in case the service is started again straight away (e.g. when the screen is rotated)
+    private boolean threadsStopping = false;
+    private final Scheduler.Task threadStopper = Scheduler.get().newTask("delayed stop", new Runnable() {
+        public void run() {
+            // the task could have been cancelled just as it was starting to run - then threadsStopping is false (guarded by synchronization)
+            synchronized (ParkingsService.this) {
+                if (ParkingsService.this.threadsStopping) {
+                    ParkingsService.this.tileDownloaderThread.interrupt();
+                    ParkingsService.this.tileDownloaderThread = null;
+                    ParkingsService.this.detailsAndAvailabilityThread.interrupt();
+                    ParkingsService.this.detailsAndAvailabilityThread = null;
+                    ParkingsService.this.sortingPrecomputationThread.interrupt();
+                    ParkingsService.this.sortingPrecomputationThread = null;
+                    ParkingsService.this.clusteringPrecomputationThread.interrupt();
+                    ParkingsService.this.clusteringPrecomputationThread = null;
+                    ParkingsService.this.nearPrecomputationThread.interrupt();
+                    ParkingsService.this.nearPrecomputationThread = null;
+                    ParkingsService.this.carparkAvailabilityRefreshTrigger.stop();
+                    if (ParkingsService.this.availabilityPushThread != null) {
+                        ParkingsService.this.availabilityPushThread.interrupt();
+                        ParkingsService.this.availabilityPushThread = null;
+                    }
+
+                    ParkingsService.this.threadsStopped = true;
+                    ParkingsService.this.threadsStopping = false;
+                }
+            }
+        }
+    });
 
     /**
      * this stops the service with all its background activities
@@ -289,40 +371,21 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
 //            Log.e(TAG, "stopService called while the threads are stopped");
         } else {
             synchronized (this) {
-                if (this.delayedProcessKiller == null) {
-                    this.delayedProcessKiller = new Thread() {
-                        @Override
-                        public void run() {
-                            try {
-                                Thread.sleep(1000);
-                                // it's possible we miss the interrupt right after sleep ends but before we would do the interrupts - but then the delayedProcessKiller will be null (guarded by synchronization)
-                                synchronized (ParkingsService.this) {
-                                    if (ParkingsService.this.delayedProcessKiller != null) {
-                                        ParkingsService.this.tileDownloaderThread.interrupt();
-                                        ParkingsService.this.tileDownloaderThread = null;
-                                        ParkingsService.this.detailsAndAvailabilityThread.interrupt();
-                                        ParkingsService.this.detailsAndAvailabilityThread = null;
-                                        ParkingsService.this.sortingPrecomputationThread.interrupt();
-                                        ParkingsService.this.sortingPrecomputationThread = null;
-                                        ParkingsService.this.nearPrecomputationThread.interrupt();
-                                        ParkingsService.this.nearPrecomputationThread = null;
-                                        ParkingsService.this.carparkAvailabilityRefreshTrigger.stopThread();
-
-                                        ParkingsService.this.threadsStopped = true;
-                                        ParkingsService.this.delayedProcessKiller = null;
-                                    }
-                                }
-                            } catch (InterruptedException e) {
-//                                Log.d(TAG, "threads not stopped after all");
-                            }
-                        }
-                    };
-                    this.delayedProcessKiller.start();
+                if (!this.threadsStopping) {
+                    this.threadsStopping = true;
+                    this.threadStopper.scheduleAt(System.currentTimeMillis() + 1000);
                 }
             }
         }
     }
 
+    /**
+     * drops cached data that can be loaded again, to be called when the system is low on memory
+     */
+    public void onLowMemory() {
+        this.tileDownloader.trimCache();
+    }
+
     /**
      * returns the current car park (either the nearest one or the watched one)
      * @return the current car park
@@ -343,7 +406,17 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
     public void setCurrentExplicitCarpark(Parking currentParking) {
         this.currentParkingId = currentParking == null ? null : currentParking.id;
         this.carparkAvailabilityRefreshTrigger.updateBubble(this.currentParkingId);
-        updateParkingDetails(currentParking);
+        updateParkingDetails(currentParking, RequestPriority.BUBBLE);
+    }
+
+    /**
+     * finds the car parks nearest to the given location, e.g. to offer alternatives to the nearest one
+     * @param location the location
+     * @param count how many car parks at most
+     * @return up to count car parks within the "near" distance, the nearest first
+     */
+    public List<Parking> getNearestCarparks(Location location, int count) {
+        return this.nearPrecomputer.findNearestCarParks(location, count);
     }
 
     /**
@@ -378,8 +451,12 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
      * @param p the parking
      */
     public void updateParkingDetails(Parking p) {
+        updateParkingDetails(p, RequestPriority.FOREGROUND);
+    }
+
+    private void updateParkingDetails(Parking p, RequestPriority priority) {
         if (p!=null) {
-            this.detailsAndAvailabilityDownloader.updateParkingDetails(p);
+            this.detailsAndAvailabilityDownloader.updateParkingDetails(p, priority);
         }
     }
 
@@ -417,6 +494,9 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
      */
     public void updateParkingAvailabilityDetailsView(Parking p) {
         this.carparkAvailabilityRefreshTrigger.updateDetailsView(p == null ? null : p.id);
+        if (p != null) {
+            this.rememberedCarparks.rememberViewedCarpark(p);
+        }
     }
 
     /**
@@ -430,7 +510,7 @@ public class ParkingsService implements NearbyCarparkUpdateListener {
         this.tileDownloader.refreshTile(point, null, null, null);
     }
 
-    void triggerTileRefresh(GeoPoint point, Uri id, Model data, CarparkDetailsUpdateListener listener) {
+    void triggerTileRefresh(GeoPoint point, Uri id, CarparkDetails data, CarparkDetailsUpdateListener listener) {
         this.tileDownloader.refreshTile(point, id, data, listener);
     }
 
@@ -36,6 +36,7 @@ import com.google.android.maps.GeoPoint;
 /**
  * this class takes care of storing car parks that are pinned or added by the user (until indexed by the server).
  * added car parks are not persistently stored at the moment, they should be visible within an hour at most anyway
+ * the last known state of pinned and recently viewed car parks is kept in a car park store, so they are known right after a cold start
  */
 class RememberedCarparks {
 
@@ -48,7 +49,13 @@ class RememberedCarparks {
     private Map<String, ParkingLite> addedCarparks = new HashMap<String, ParkingLite>();
     private List<Uri> pinnedCarparks = new LinkedList<Uri>();
 
-    public RememberedCarparks(Context ctxt) {
+    private final CarparkStore store;
+
+    /**
+     * @param ctxt for loading the pinned car parks, not held
+     * @param store the store of the last known state of pinned and recently viewed car parks, may be null
+     */
+    public RememberedCarparks(Context ctxt, CarparkStore store) {
         // load from storage; don't hold ctxt; in storage, only hold id and point, not listener
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctxt);
         int pinnedCarparkCount = prefs.getInt(PREFERENCE_PINNED_CARPARKS_COUNT, 0);
@@ -61,6 +68,16 @@ class RememberedCarparks {
             }
         }
 
+        // the stored car parks become known car parks, the store holds on to them
+        this.store = store;
+        if (store != null) {
+            store.loadInBackground(new Runnable() {
+                public void run() {
+                    // the pinned car parks listed before the load may have missed the stored ones
+                    RememberedCarparks.this.lastKnownPinnedCarparks = null;
+                }
+            });
+        }
     }
 
     public void rememberPinnedCarpark(Parking p, Context ctxt) {
@@ -68,6 +85,9 @@ class RememberedCarparks {
             this.pinnedCarparks.add(0, p.id);
         }
         saveToStorage(ctxt);
+        if (this.store != null) {
+            this.store.put(p, true);
+        }
     }
 
     public boolean isPinnedCarpark(Parking p) {
@@ -77,9 +97,23 @@ class RememberedCarparks {
     public void removePinnedCarpark(Parking p, Context ctxt) {
         this.pinnedCarparks.remove(p.id);
         saveToStorage(ctxt);
+        if (this.store != null) {
+            // it stays among the recently viewed car parks
+            this.store.put(p, false);
+        }
+    }
+
+    /**
+     * stores the current state of a car park the user is looking at, so it's known after a restart
+     * @param p the car park
+     */
+    public void rememberViewedCarpark(Parking p) {
+        if (this.store != null) {
+            this.store.put(p, isPinnedCarpark(p));
+        }
     }
 
-    private List<Parking> lastKnownPinnedCarparks = null;
+    private volatile List<Parking> lastKnownPinnedCarparks = null;
 
     public List<Parking> listKnownPinnedCarparks() {
         List<Parking> retval = new ArrayList<Parking>(this.pinnedCarparks.size());
@@ -87,6 +121,10 @@ class RememberedCarparks {
             Parking p = Parking.getParking(uri);
             if (p != null) {
                 retval.add(p);
+                // car parks pinned before there was a store get stored when they are first known
+                if (this.store != null) {
+                    this.store.putIfAbsent(p, true);
+                }
             }
         }
         this.lastKnownPinnedCarparks = retval;
@@ -94,10 +132,11 @@ class RememberedCarparks {
     }
 
     List<Parking> listLastKnownPinnedCarparks() {
-        if (this.lastKnownPinnedCarparks == null) {
+        List<Parking> retval = this.lastKnownPinnedCarparks;
+        if (retval == null) {
             return listKnownPinnedCarparks();
         } else {
-            return this.lastKnownPinnedCarparks;
+            return retval;
         }
     }
 
@@ -0,0 +1,58 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+/**
+ * the priority classes of the requests handled by the details and availability thread, the most urgent first
+ * requests in the same class are handled in the order they came
+ */
+enum RequestPriority {
+    /**
+     * what the user submitted or explicitly asked for; never dropped
+     */
+    USER(0),
+
+    /**
+     * the car parks the user is looking at: the one in the details view and the nearest one
+     */
+    FOREGROUND(0),
+
+    /**
+     * the car park in the bubble on the map
+     */
+    BUBBLE(0),
+
+    /**
+     * background refreshes of the pinned car parks
+     */
+    PINNED(Config.PINNED_REQUEST_MAX_AGE);
+
+    // the foreground classes never expire because the availability refresh trigger waits for their results
+    private final long maxAge;
+
+    private RequestPriority(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param enqueued when the request was made
+     * @return the time after which the request is no longer worth handling, or Long.MAX_VALUE if never
+     */
+    long deadline(long enqueued) {
+        return this.maxAge == 0 ? Long.MAX_VALUE : enqueued + this.maxAge;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * a single thread shared by everything in the service that needs to do something at a given time, instead of every such thing sleeping in its own thread
+ * the tasks should be short, they all run one after another on the same thread
+ * this class is synchronized
+ */
+class Scheduler {
+    private static final String TAG = "scheduler";
+
+    private static final Scheduler instance = new Scheduler();
+
+    /**
+     * @return the shared scheduler
+     */
+    static Scheduler get() {
+        return instance;
+    }
+
+    private final ScheduledExecutorService executor;
+
+    private Scheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * creates a task that can then be scheduled, rescheduled and cancelled any number of times
+     * @param name the name of the task, for debugging
+     * @param action what the task does
+     * @return the task, not scheduled yet
+     */
+    Task newTask(String name, Runnable action) {
+        return new Task(name, action);
+    }
+
+    /**
+     * a deadline task; at most one run of the task is scheduled at any time
+     * the task also keeps track of how late its runs were
+     */
+    class Task {
+        private final String name;
+        private final Runnable action;
+
+        // every scheduling gets a new generation, runs of older generations were cancelled or rescheduled and don't do anything
+        private long generation = 0;
+        private ScheduledFuture<?> future = null;
+        private long deadline = 0;
+
+        private long runCount = 0;
+        private long totalLateness = 0;
+        private long maxLateness = 0;
+
+        private Task(String name, Runnable action) {
+            this.name = name;
+            this.action = action;
+        }
+
+        /**
+         * schedules the task to run at the given time, replacing the previous deadline if the task was already scheduled
+         * @param time the system time (in ms) when the task should run; if it's in the past, the task runs as soon as possible
+         */
+        synchronized void scheduleAt(long time) {
+            cancel();
+            this.deadline = time;
+            schedule(this.generation);
+        }
+
+        /**
+         * cancels the task if it's scheduled; it's safe to cancel a task that isn't scheduled
+         */
+        synchronized void cancel() {
+            this.generation++;
+            if (this.future != null) {
+                this.future.cancel(false);
+                this.future = null;
+            }
+        }
+
+        /**
+         * @return true if the task is waiting for its deadline
+         */
+        synchronized boolean isScheduled() {
+            return this.future != null;
+        }
+
+        private void schedule(final long gen) {
+            long delay = this.deadline - System.currentTimeMillis();
+            this.future = Scheduler.this.executor.schedule(new Runnable() {
+                public void run() {
+                    Task.this.run(gen);
+                }
+            }, delay > 0 ? delay : 0, TimeUnit.MILLISECONDS);
+        }
+
+        private void run(long gen) {
+            synchronized (this) {
+                if (gen != this.generation) {
+                    return;
+                }
+                long lateness = System.currentTimeMillis() - this.deadline;
+                if (lateness < 0) {
+                    // the executor's clock isn't the wall clock, don't run early
+                    schedule(gen);
+                    return;
+                }
+                this.future = null;
+                this.runCount++;
+                this.totalLateness += lateness;
+                if (lateness > this.maxLateness) {
+                    this.maxLateness = lateness;
+                }
+            }
+//            Log.v(TAG, this.toString());
+            try {
+                this.action.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "task " + this.name + " failed", e);
+            }
+        }
+
+        /**
+         * @return how many times the task has run
+         */
+        synchronized long getRunCount() {
+            return this.runCount;
+        }
+
+        /**
+         * @return the longest time (in ms) that the task ran after its deadline
+         */
+        synchronized long getMaxLateness() {
+            return this.maxLateness;
+        }
+
+        /**
+         * @return the average time (in ms) that the task ran after its deadline
+         */
+        synchronized long getAverageLateness() {
+            return this.runCount == 0 ? 0 : this.totalLateness / this.runCount;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "task " + this.name + ": " + this.runCount + " runs, lateness average " + getAverageLateness() + "ms, maximum " + this.maxLateness + "ms";
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+import uk.ac.open.kmi.parking.DrawableOverlayItem;
+
+/**
+ * an immutable snapshot of the sorted current items with a uniform grid index over their coordinates, so that a tap doesn't need to check all the items
+ * the grid doesn't depend on the screen: its cells are chosen so there's about one item per cell, but they are never smaller than MIN_CELL_SIZE
+ */
+class SortedItems extends AbstractList<DrawableOverlayItem> implements RandomAccess {
+    @SuppressWarnings("unused")
+    private static final String TAG = "sorted items";
+
+    // a hundredth of a tile, about 30m
+    private static final int MIN_CELL_SIZE = ParkingsService.TILE_SIZE / 100;
+
+    static final SortedItems EMPTY = new SortedItems(new ArrayList<DrawableOverlayItem>(0));
+
+    private final DrawableOverlayItem[] items;
+
+    // the grid: the positions of the items in cell i are cellItems[cellStart[i]] to cellItems[cellStart[i+1]-1], in ascending order
+    private final int latmin, lonmin;
+    private final int cellSize;
+    private final int rows, columns;
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    /**
+     * @param sortedItems the items, already sorted
+     */
+    SortedItems(Collection<? extends DrawableOverlayItem> sortedItems) {
+        this.items = sortedItems.toArray(new DrawableOverlayItem[sortedItems.size()]);
+
+        int minLat = Integer.MAX_VALUE, minLon = Integer.MAX_VALUE, maxLat = Integer.MIN_VALUE, maxLon = Integer.MIN_VALUE;
+        for (DrawableOverlayItem item : this.items) {
+            minLat = Math.min(minLat, item.point.getLatitudeE6());
+            minLon = Math.min(minLon, item.point.getLongitudeE6());
+            maxLat = Math.max(maxLat, item.point.getLatitudeE6());
+            maxLon = Math.max(maxLon, item.point.getLongitudeE6());
+        }
+        if (this.items.length == 0) {
+            minLat = minLon = maxLat = maxLon = 0;
+        }
+        this.latmin = minLat;
+        this.lonmin = minLon;
+
+        double area = ((double) maxLat - minLat + 1) * ((double) maxLon - minLon + 1);
+        this.cellSize = Math.max(MIN_CELL_SIZE, (int) Math.sqrt(area / Math.max(1, this.items.length)));
+        this.rows = (int) (((long) maxLat - minLat) / this.cellSize) + 1;
+        this.columns = (int) (((long) maxLon - minLon) / this.cellSize) + 1;
+
+        // counting sort of the item positions into the cells
+        this.cellStart = new int[this.rows * this.columns + 1];
+        int[] itemCell = new int[this.items.length];
+        for (int i=0; i<this.items.length; i++) {
+            itemCell[i] = cell(this.items[i].point.getLatitudeE6(), this.items[i].point.getLongitudeE6());
+            this.cellStart[itemCell[i]+1]++;
+        }
+        for (int c=0; c<this.rows * this.columns; c++) {
+            this.cellStart[c+1] += this.cellStart[c];
+        }
+        this.cellItems = new int[this.items.length];
+        int[] fill = new int[this.rows * this.columns];
+        for (int i=0; i<this.items.length; i++) {
+            this.cellItems[this.cellStart[itemCell[i]] + fill[itemCell[i]]++] = i;
+        }
+    }
+
+    private int cell(int late6, int lone6) {
+        return (int) (((long) late6 - this.latmin) / this.cellSize) * this.columns + (int) (((long) lone6 - this.lonmin) / this.cellSize);
+    }
+
+    /**
+     * finds the items in the given area
+     * @return the items, in the same order as they are in this list
+     */
+    List<DrawableOverlayItem> findIn(int latmin, int lonmin, int latmax, int lonmax) {
+        int rowMin = (int) Math.max(0, ((long) latmin - this.latmin) / this.cellSize);
+        int colMin = (int) Math.max(0, ((long) lonmin - this.lonmin) / this.cellSize);
+        int rowMax = (int) Math.min(this.rows - 1, ((long) latmax - this.latmin) / this.cellSize);
+        int colMax = (int) Math.min(this.columns - 1, ((long) lonmax - this.lonmin) / this.cellSize);
+        if (latmax < this.latmin || lonmax < this.lonmin || rowMin > rowMax || colMin > colMax) {
+            return new ArrayList<DrawableOverlayItem>(0);
+        }
+
+        int[] found = new int[16];
+        int count = 0;
+        for (int row = rowMin; row <= rowMax; row++) {
+            for (int col = colMin; col <= colMax; col++) {
+                int c = row * this.columns + col;
+                for (int k = this.cellStart[c]; k < this.cellStart[c+1]; k++) {
+                    DrawableOverlayItem item = this.items[this.cellItems[k]];
+                    int late6 = item.point.getLatitudeE6();
+                    int lone6 = item.point.getLongitudeE6();
+                    if (late6 < latmin || late6 > latmax || lone6 < lonmin || lone6 > lonmax) {
+                        continue;
+                    }
+                    if (count == found.length) {
+                        found = Arrays.copyOf(found, count * 2);
+                    }
+                    found[count++] = this.cellItems[k];
+                }
+            }
+        }
+        // the cells mix up the order
+        Arrays.sort(found, 0, count);
+        List<DrawableOverlayItem> retval = new ArrayList<DrawableOverlayItem>(count);
+        for (int i=0; i<count; i++) {
+            retval.add(this.items[found[i]]);
+        }
+        return retval;
+    }
+
+    @Override
+    public DrawableOverlayItem get(int location) {
+        return this.items[location];
+    }
+
+    @Override
+    public int size() {
+        return this.items.length;
+    }
+}
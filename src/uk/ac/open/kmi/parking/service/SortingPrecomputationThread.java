@@ -18,9 +18,11 @@ package uk.ac.open.kmi.parking.service;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -35,7 +37,7 @@ import uk.ac.open.kmi.parking.Parking;
 class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileDesirabilityChecker {
     @SuppressWarnings("unused")
     private static final String TAG = "sorting thread";
-    volatile Collection<DrawableOverlayItem> sortedCurrentItems = Collections.emptyList(); // HardwiredParkingList.listParkings();
+    volatile SortedItems sortedCurrentItems = SortedItems.EMPTY; // HardwiredParkingList.listParkings();
     private volatile MapRectangle currentCoveredCoordinatesE6 = null;
     private final BlockingQueue<Event> eventQueue = new ArrayBlockingQueue<Event>(1000); // todo make this number configurable? also the number of updatedTiles below
     private TileDownloaderThread tileDownloader;
@@ -53,13 +55,26 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
     private int lastTileMaxLonE0 = Integer.MAX_VALUE;
     private MapRectangle lastCoordsE6 = null;
 
-    private final List<MapTile> updatedTiles = new ArrayList<MapTile>(1000);
+    private final Set<MapTile> updatedTiles = new HashSet<MapTile>(1000);
     private int maxQueueSize = 0;
 
+    // the sorted items are kept between recomputations, only the car parks of the tiles that changed or scrolled in or out are removed and added
+    private final TreeSet<DrawableOverlayItem> sortedItems = new TreeSet<DrawableOverlayItem>(new DrawableOverlayItem.Comparator());
+    // the car parks each covered tile put in sortedItems
+    private final Map<MapTile, TileItems> coveredTiles = new HashMap<MapTile, TileItems>();
+    private boolean lastOnlyConfirmed = false;
+    private final MapTile tileTemplate = new MapTile();
+
+    // triggers a recomputation when the first of the covered tiles expires
+    private final Scheduler.Task refresher = Scheduler.get().newTask("sorting refresh", new Runnable() {
+        public void run() {
+            onTimeToRefresh();
+        }
+    });
+
     public void run() {
         //            long nextReportTime = System.currentTimeMillis()+999;
         //            long callCount=0;
-        Thread refresher = null;
         long refresherTargetTime = 0;
 
         for (;;) {
@@ -88,7 +103,7 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
                         coordsE6 = event.coordsE6;
                         break;
                     case TILE_UPDATE:
-                        this.updatedTiles.add(event.tile);
+                        this.updatedTiles.addAll(event.tiles);
                         break;
                     case REFRESH:
                         forceUpdate = true;
@@ -118,12 +133,11 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
                         }
                     }
                 }
-                this.updatedTiles.clear();
 
                 // we simply combine (and sort) the parks in the visible tiles and one beyond (at least 9 total)
                 // there is a buffer zone in which the current-precomputed is still acceptable
 
-                // the thread doesn't have to worry about combining/downloading too much - it will never be called if the map is zoomed too far out
+                // the thread doesn't have to worry about combining/downloading too much - it will never be called if the map is zoomed too far out (the clustering thread shows clusters then)
 
                 this.lastCoordsE6 = coordsE6;
                 // new limits, the tiles that are at least partially visible
@@ -165,79 +179,96 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
                     //                        Log.d(TAG, "coords " + coordsE6 + " lead to covered coordinates " + this.currentCoveredCoordinatesE6);
 
                     final boolean onlyConfirmed = !ParkingsService.get(null).getShowUnconfirmedCarparks();
+                    if (onlyConfirmed != this.lastOnlyConfirmed) {
+                        // every tile's contribution changes
+                        this.sortedItems.clear();
+                        this.coveredTiles.clear();
+                        this.lastOnlyConfirmed = onlyConfirmed;
+                    }
+
+                    boolean changed = false;
+
+                    // forget the tiles that are no longer covered
+                    for (Iterator<TileItems> it = this.coveredTiles.values().iterator(); it.hasNext(); ) {
+                        TileItems items = it.next();
+                        if (items.tile.late6min < tileMinLatE0 * ParkingsService.TILE_SIZE ||
+                                items.tile.late6min > tileMaxLatE0 * ParkingsService.TILE_SIZE ||
+                                items.tile.lone6min < tileMinLonE0 * ParkingsService.TILE_SIZE ||
+                                items.tile.lone6min > tileMaxLonE0 * ParkingsService.TILE_SIZE) {
+                            removeItems(items);
+                            it.remove();
+                            changed = true;
+                        }
+                    }
 
-                    TreeSet<DrawableOverlayItem> retval = new TreeSet<DrawableOverlayItem>(new DrawableOverlayItem.Comparator());
                     //                        int count=0; int total=0;
                     long minNextUpdateTime = Long.MAX_VALUE;
-                    // todo this should go from the center, not from the corner
                     for (int latE0 = tileMinLatE0; latE0 <= tileMaxLatE0; latE0++) {
                         for (int lonE0 = tileMinLonE0; lonE0 <= tileMaxLonE0; lonE0++) {
                             MapTile tile = this.tileDownloader.getTile(latE0*ParkingsService.TILE_SIZE, lonE0*ParkingsService.TILE_SIZE);
                             //                                total++;
+                            if (tile != null && tile.nextUpdate < minNextUpdateTime) {
+                                minNextUpdateTime = tile.nextUpdate;
+                            }
+
+                            this.tileTemplate.late6min = latE0*ParkingsService.TILE_SIZE;
+                            this.tileTemplate.lone6min = lonE0*ParkingsService.TILE_SIZE;
+                            TileItems old = this.coveredTiles.get(this.tileTemplate);
+                            if (old != null && old.tile == tile && !this.updatedTiles.contains(tile)) {
+                                // this tile's car parks are already sorted in
+                                continue;
+                            }
+                            if (old != null) {
+                                removeItems(old);
+                                this.coveredTiles.remove(this.tileTemplate);
+                            }
                             if (tile != null) {
-                                if (tile.nextUpdate < minNextUpdateTime) {
-                                    minNextUpdateTime = tile.nextUpdate;
-                                }
+                                List<Parking> parkings = new ArrayList<Parking>(tile.parkings.size());
                                 for (Parking parking : tile.parkings.values()) {
                                     if (onlyConfirmed && parking.unconfirmed) {
                                         continue;
                                     }
-                                    retval.add(parking);
+                                    parkings.add(parking);
                                 }
+                                this.sortedItems.addAll(parkings);
+                                this.coveredTiles.put(tile, new TileItems(tile, parkings));
                                 //                                    count++;
                             }
+                            changed = true;
                         }
                     }
 
-                    // drop old refresher
-                    if (refresher != null && minNextUpdateTime != refresherTargetTime) {
-                        refresher.interrupt();
-                        refresher = null;
-                        refresherTargetTime = 0;
-                    }
-
-                    if (minNextUpdateTime < Long.MAX_VALUE && minNextUpdateTime != refresherTargetTime) {
+                    // reschedule the refresher if the earliest tile expiry changed
+                    if (minNextUpdateTime != refresherTargetTime) {
                         refresherTargetTime = minNextUpdateTime;
-                        final long sleepTime = minNextUpdateTime - System.currentTimeMillis();
-                        //                            Log.d(TAG, "next refresh time in " + sleepTime + "ms");
-                        if (sleepTime <= 0) {
-                            //                                Log.w(TAG, "next refresh hopefully in progress");
+                        //                            Log.d(TAG, "next refresh time in " + (minNextUpdateTime - System.currentTimeMillis()) + "ms");
+                        if (minNextUpdateTime < Long.MAX_VALUE && minNextUpdateTime > System.currentTimeMillis()) {
+                            this.refresher.scheduleAt(minNextUpdateTime);
                         } else {
-                            refresher = new Thread(new Runnable() {
-                                public void run() {
-                                    try {
-                                        Thread.sleep(sleepTime+Config.EXTRA_SLEEP_TIME); // todo +200 so that even if sleep is shorter (it's not guaranteed to be precise) it's likely not to underrun the time
-                                        SortingPrecomputationThread.this.onTimeToRefresh();
-                                    } catch (InterruptedException e) {
-                                        // refresh cancelled, that's OK
-                                    }
-                                }
-                            });
-                            refresher.start();
+                            //                                Log.w(TAG, "next refresh hopefully in progress");
+                            this.refresher.cancel();
                         }
                     }
 
-                    this.sortedCurrentItems = retval;
+                    // the listeners get an immutable snapshot because the sorted items will change under them; the snapshot carries its own index for tapping
+                    SortedItems retval = this.sortedCurrentItems;
+                    if (changed) {
+                        retval = new SortedItems(this.sortedItems);
+                        this.sortedCurrentItems = retval;
+                    }
                     // let listeners know about this change, but only if there's anything to display - we don't expect removing items
                     if (!retval.isEmpty()) {
-                        synchronized(this) {
-                            for (SortedCurrentItemsUpdateListener listener : this.updateListeners) {
-                                listener.onSortedCurrentItemsUpdated();
-                            }
-                        }
+                        this.updates.post(EventBus.SIGNAL);
                     }
-                    //                        Log.d(TAG, "recomputed (with " + count + " out of " + total + " tiles, " + retval.size() + " parkings) in " + (System.currentTimeMillis()-startTime) + "ms");
+                    //                        Log.d(TAG, "recomputed (with " + count + " out of " + total + " tiles re-sorted, " + retval.size() + " parkings) in " + (System.currentTimeMillis()-startTime) + "ms");
                 } else {
                     // otherwise no need to do anything
                     //                        Log.i(TAG, "no recomputation for " + eventE6);
                 }
+                this.updatedTiles.clear();
             } catch (InterruptedException e) {
                 //                    Log.i(TAG, "thread interrupted, quitting");
-                if (refresher != null) {
-                    refresher.interrupt();
-                    refresher = null;
-                    refresherTargetTime = 0;
-                }
+                this.refresher.cancel();
                 return;
             } catch (Exception e) {
                 //                    Log.w(TAG, "thread almost died of exception", e);
@@ -245,6 +276,25 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
         }
     }
 
+    private void removeItems(TileItems items) {
+        for (Parking parking : items.parkings) {
+            this.sortedItems.remove(parking);
+        }
+    }
+
+    /**
+     * the car parks that a tile put in the sorted items
+     */
+    private static class TileItems {
+        final MapTile tile;
+        final List<Parking> parkings;
+
+        TileItems(MapTile tile, List<Parking> parkings) {
+            this.tile = tile;
+            this.parkings = parkings;
+        }
+    }
+
     public void onNewCoordinates(MapRectangle coords) {
         boolean added = this.eventQueue.offer(new Event(coords));
         if (!added) {
@@ -260,8 +310,8 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
         }
     }
 
-    public void onTileUpdated(MapTile tile) {
-        boolean added = this.eventQueue.offer(new Event(tile));
+    public void onTilesUpdated(Collection<MapTile> tiles) {
+        boolean added = this.eventQueue.offer(new Event(tiles));
         if (!added) {
             //                Log.e(TAG, "event queue full, cannot add new tile!");
         }
@@ -275,15 +325,15 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
         enum Type { TILE_UPDATE, NEW_COORDINATES, REFRESH };
         final Type type;
         MapRectangle coordsE6;
-        MapTile tile;
+        Collection<MapTile> tiles;
 
         public Event(MapRectangle coords) {
             this.coordsE6 = coords;
             this.type = Type.NEW_COORDINATES;
         }
 
-        public Event(MapTile tile) {
-            this.tile = tile;
+        public Event(Collection<MapTile> tiles) {
+            this.tiles = tiles;
             this.type = Type.TILE_UPDATE;
         }
 
@@ -305,12 +355,26 @@ class SortingPrecomputationThread implements Runnable, TileUpdateListener, TileD
         }
     }
 
-    private final Set<SortedCurrentItemsUpdateListener> updateListeners = new HashSet<SortedCurrentItemsUpdateListener>();
+    public boolean isTileInUse(MapTile tile) {
+        MapRectangle currentCoveredE6 = this.currentCoveredCoordinatesE6;
+        return currentCoveredE6 != null &&
+                tile.late6min >= currentCoveredE6.latmin &&
+                tile.late6min <= currentCoveredE6.latmax &&
+                tile.lone6min >= currentCoveredE6.lonmin &&
+                tile.lone6min <= currentCoveredE6.lonmax;
+    }
+
+    private final EventBus.Channel<SortedCurrentItemsUpdateListener, Object> updates = EventBus.get().newChannel("sorted items updates", 0,
+            new EventBus.Delivery<SortedCurrentItemsUpdateListener, Object>() {
+                public void deliver(SortedCurrentItemsUpdateListener listener, Collection<Object> signals) {
+                    listener.onSortedCurrentItemsUpdated();
+                }
+            });
 
-    public synchronized void registerUpdateListener(SortedCurrentItemsUpdateListener listener) {
-        this.updateListeners.add(listener);
+    public void registerUpdateListener(SortedCurrentItemsUpdateListener listener) {
+        this.updates.register(listener);
     }
-    public synchronized void unregisterUpdateListener(SortedCurrentItemsUpdateListener listener) {
-        this.updateListeners.remove(listener);
+    public void unregisterUpdateListener(SortedCurrentItemsUpdateListener listener) {
+        this.updates.unregister(listener);
     }
 }
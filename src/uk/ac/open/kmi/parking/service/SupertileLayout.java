@@ -0,0 +1,137 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * decides how big a supertile (the area downloaded with one request) is, depending on how many car parks are around
+ * the supertiles are the nodes of a quadtree over blocks of ROOT_FACTOR x ROOT_FACTOR tiles, a supertile is split in four when its response
+ * had too many car parks, and merged with its three siblings when it had very few; until we know anything, supertiles are DEFAULT_FACTOR tiles wide
+ * the tiles themselves always stay the same, only the requests change
+ * this class is synchronized
+ */
+class SupertileLayout {
+    @SuppressWarnings("unused")
+    private static final String TAG = "supertile layout";
+
+    // the supertile sizes, in tiles, are ROOT_FACTOR at level 0 and half of that at every next level
+    static final int ROOT_FACTOR = 20;
+    static final int MAX_LEVEL = 2;
+    private static final int DEFAULT_LEVEL = 1;
+    static final int DEFAULT_FACTOR = ROOT_FACTOR >> DEFAULT_LEVEL;
+
+    // which quadtree nodes we know to be split (true) or not (false), the others are split above the default level
+    private final Map<Long, Boolean> split = new HashMap<Long, Boolean>();
+
+    /**
+     * @param tile a tile
+     * @return the size (in tiles) of the supertile that should be downloaded for the tile
+     */
+    synchronized int factorFor(MapTile tile) {
+        int level = 0;
+        while (level < MAX_LEVEL && isSplit(level, tile.late6min, tile.lone6min)) {
+            level++;
+        }
+        return ROOT_FACTOR >> level;
+    }
+
+    private boolean isSplit(int level, int late6, int lone6) {
+        Boolean known = this.split.get(key(level, late6, lone6));
+        return known == null ? level < DEFAULT_LEVEL : known.booleanValue();
+    }
+
+    /**
+     * learns from a downloaded supertile how big the supertiles in its area should be
+     * @param supertile the supertile, only its late6min and lone6min are used
+     * @param factor the size of the supertile in tiles
+     * @param carparks how many car parks the supertile had
+     */
+    synchronized void learn(MapTile supertile, int factor, int carparks) {
+        int level = levelOf(factor);
+        if (level < 0) {
+            return;
+        }
+        if (carparks > Config.SUPERTILE_SPLIT_CARPARKS && level < MAX_LEVEL) {
+            this.split.put(key(level, supertile.late6min, supertile.lone6min), Boolean.TRUE);
+        } else if (carparks < Config.SUPERTILE_MERGE_CARPARKS && level > 0) {
+            // the neighbours are likely to be as empty; if the merged supertile turns out too full, it gets split again,
+            // and then it stays split, otherwise the edges of towns would keep flipping between the two sizes
+            Long parent = key(level-1, supertile.late6min, supertile.lone6min);
+            if (!Boolean.TRUE.equals(this.split.get(parent))) {
+                this.split.put(parent, Boolean.FALSE);
+            }
+        }
+    }
+
+    /**
+     * learns the layout from a supertile that was downloaded before a restart: the nodes above it were split and it wasn't
+     * @param supertile the supertile, only its late6min and lone6min are used
+     * @param factor the size of the supertile in tiles
+     */
+    synchronized void restore(MapTile supertile, int factor) {
+        int level = levelOf(factor);
+        if (level < 0) {
+            return;
+        }
+        for (int above = 0; above < level; above++) {
+            this.split.put(key(above, supertile.late6min, supertile.lone6min), Boolean.TRUE);
+        }
+        if (level < MAX_LEVEL) {
+            this.split.put(key(level, supertile.late6min, supertile.lone6min), Boolean.FALSE);
+        }
+    }
+
+    private static int levelOf(int factor) {
+        for (int level = 0; level <= MAX_LEVEL; level++) {
+            if (ROOT_FACTOR >> level == factor) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param tile a tile
+     * @param factor the size of the supertile in tiles
+     * @return the supertile of the given size that contains the tile, only its late6min and lone6min are set
+     */
+    static MapTile supertileOf(MapTile tile, int factor) {
+        int size = factor * ParkingsService.TILE_SIZE;
+        MapTile supertile = new MapTile();
+        supertile.late6min = floorDiv(tile.late6min, size) * size;
+        supertile.lone6min = floorDiv(tile.lone6min, size) * size;
+        return supertile;
+    }
+
+    // the quadtree node of the given level that contains the point
+    private static Long key(int level, int late6, int lone6) {
+        int size = (ROOT_FACTOR >> level) * ParkingsService.TILE_SIZE;
+        int i = floorDiv(late6, size);
+        int j = floorDiv(lone6, size);
+        return Long.valueOf(((long) level << 48) | ((long) (i & 0xffffff) << 24) | (j & 0xffffff));
+    }
+
+    private static int floorDiv(int a, int b) {
+        int retval = a / b;
+        if (a < 0 && retval * b != a) {
+            retval--;
+        }
+        return retval;
+    }
+}
@@ -20,4 +20,10 @@ interface TileDesirabilityChecker {
     
     public boolean isTileDesirable(MapTile tile);
 
+    /**
+     * @param tile a tile
+     * @return true if the tile is covered by what is computed at the moment and must not be dropped from the cache
+     */
+    public boolean isTileInUse(MapTile tile);
+
 }
@@ -16,6 +16,9 @@
 
 package uk.ac.open.kmi.parking.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -24,10 +27,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import uk.ac.open.kmi.parking.CarparkDetails;
 import uk.ac.open.kmi.parking.LoadingStatus;
 import uk.ac.open.kmi.parking.Onto;
 import uk.ac.open.kmi.parking.Parking;
@@ -47,7 +55,6 @@ import com.hp.hpl.jena.rdf.model.ResIterator;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
-import com.hp.hpl.jena.util.FileManager;
 import com.hp.hpl.jena.vocabulary.RDF;
 import com.hp.hpl.jena.vocabulary.RDFS;
 import com.hp.hpl.jena.vocabulary.XSD;
@@ -58,12 +65,27 @@ class TileDownloaderThread implements Runnable {
 
     private final BlockingQueue<Event> eventQueue = new ArrayBlockingQueue<Event>(1000); // todo make this number configurable?
     private final Set<Event> eventPresenceSet = Collections.synchronizedSet(new HashSet<Event>(1000));
+    // prefetches are kept apart from eventPresenceSet, where they'd hide the request for their corner tile
+    private final Set<MapTile> supertilesToPrefetch = new HashSet<MapTile>();
 
-    private static final int SUPERTILE_FACTOR = 10;
-    private static final int SUPERTILE_SIZE = ParkingsService.TILE_SIZE * SUPERTILE_FACTOR;
+    // how big the supertiles are depends on how many car parks are in them
+    private final SupertileLayout layout = new SupertileLayout();
 
-    // ten supertiles in the cache - up to four around the current location, six in browsing the map
-    private final LRUCache<MapTile> cache = new LRUCache<MapTile>(10*SUPERTILE_FACTOR*SUPERTILE_FACTOR);
+    // the binary encoding is preferred, Turtle is the fallback
+    private static final String TILE_ACCEPT = Config.BINARY_TILE_FORMAT ? ParkingTileCodec.MEDIA_TYPE + ",text/turtle;q=0.9,*/*;q=0.5" : "text/turtle,*/*;q=0.5";
+
+    // the tiles the sorting and nearest car park computations currently cover are never dropped from the cache
+    private final LRUCache<MapTile> cache = new LRUCache<MapTile>(Config.TILE_CACHE_BUDGET, Config.TILE_CACHE_LOW_WATERMARK,
+            new LRUCache.Weigher<MapTile>() {
+                public long weigh(MapTile tile) {
+                    return tile.approximateSize();
+                }
+            },
+            new LRUCache.Pinning<MapTile>() {
+                public boolean isPinned(MapTile tile) {
+                    return isTileInUse(tile);
+                }
+            });
 
 //    private int downloadCount = 0;
     private int maxQueueSize = 0;
@@ -71,16 +93,38 @@ class TileDownloaderThread implements Runnable {
 
     private final RememberedCarparks rememberedCarparks;
 
-    public TileDownloaderThread(RememberedCarparks rc) {
+    // the persistent second-level cache of supertiles, may be null
+    private final TileStore store;
+
+    public TileDownloaderThread(RememberedCarparks rc, TileStore store) {
         this.rememberedCarparks = rc;
+        this.store = store;
     }
 
-    private boolean loading = false;
-
     volatile boolean loadedSomeCarparks = false;
 
+    // the download pipeline: a pool of fetchers, then a single parser, then a single publisher that keeps the cache and tells the listeners, so the listeners see whole supertiles in a consistent order
+    // these only exist while run() is running
+    private volatile ExecutorService fetchers = null;
+    // prefetches have their own fetcher so they never hold up the tiles that are needed now
+    private volatile ExecutorService prefetcher = null;
+    private volatile ExecutorService parser = null;
+    private volatile ExecutorService publisher = null;
+
+    // supertiles currently somewhere in the pipeline, so we don't download any of them twice at the same time
+    private final Set<MapTile> supertilesInFlight = new HashSet<MapTile>();
+
+    // events with an extra car park for supertiles that were in flight when they were taken up, they go round the queue again once their supertile is done
+    private final Map<MapTile, List<Event>> eventsWaitingForSupertile = new HashMap<MapTile, List<Event>>();
+
+    // prefetches that wait for the prefetcher, a tile that is needed now takes its supertile over to a fetcher
+    private final Map<MapTile, SupertileFetch> prefetchesWaiting = new HashMap<MapTile, SupertileFetch>();
+
     public void run() {
-        this.loading = false;
+        this.fetchers = Executors.newFixedThreadPool(Config.TILE_FETCH_THREADS);
+        this.prefetcher = Executors.newSingleThreadExecutor();
+        this.parser = Executors.newSingleThreadExecutor();
+        this.publisher = Executors.newSingleThreadExecutor();
         for (;;) {
             try {
                 int queueSize = this.eventQueue.size();
@@ -91,13 +135,9 @@ class TileDownloaderThread implements Runnable {
                     // todo do the same thing wherever I have an event queue
                 }
 
-                if (this.eventQueue.isEmpty() && this.loading) {
-                    LoadingStatus.stoppedLoading();
-                    this.loading = false;
-                }
                 Event event = this.eventQueue.take();
 
-                this.eventPresenceSet.remove(event);
+                forgetQueued(event);
 
                 long time = System.currentTimeMillis();
 
@@ -126,105 +166,424 @@ class TileDownloaderThread implements Runnable {
 //                Log.d(TAG, "tile request " + tile + " taken up " + timeToTake + "ms after enqueued");
 
                 // check desirability if the refresh is not otherwise necessary
-                if (event.type != Type.REFRESH_REMEMBERED) {
-                    boolean undesirable = true;
-                    synchronized(this) {
-                        for (TileDesirabilityChecker checker : this.tileDesirabilityCheckers) {
-                            if (checker.isTileDesirable(tile)) {
-                                undesirable = false;
-                                break; // tile desirable for at least one party, that'll do
-                            }
-                        }
-                    }
-                    if (undesirable) {
-    //                    Log.d(TAG, "tile no longer desirable: " + tile);
-                        continue;
-                    }
+                if (event.type == Type.LOAD_TILE && !isTileDesirable(tile)) {
+//                    Log.d(TAG, "tile no longer desirable: " + tile);
+                    continue;
                 }
 
-                if (!this.loading) {
-                    LoadingStatus.startedLoading();
-                    this.loading = true;
-                }
-
-                MapTile supertile = new MapTile();
-                supertile.late6min = tile.late6min - (tile.late6min >= 0 ? tile.late6min % SUPERTILE_SIZE : (tile.late6min+1) % SUPERTILE_SIZE + SUPERTILE_SIZE-1);
-                supertile.lone6min = tile.lone6min - (tile.lone6min >= 0 ? tile.lone6min % SUPERTILE_SIZE : (tile.lone6min+1) % SUPERTILE_SIZE + SUPERTILE_SIZE-1);
+                int factor = this.layout.factorFor(tile);
+                MapTile supertile = SupertileLayout.supertileOf(tile, factor);
 
-//                Log.d(TAG, "tile " + tile + " makes supertile " + supertile);
+//                Log.d(TAG, "tile " + tile + " makes supertile " + supertile + " factor " + factor);
 
-                MapTile[][] newtiles = new MapTile[SUPERTILE_FACTOR][SUPERTILE_FACTOR];
                 if (justRefresh) {
                     // put in newtiles the one that we're refreshing in its rightful position
+                    MapTile[][] newtiles = new MapTile[factor][factor];
                     int i = (tile.late6min - supertile.late6min) / ParkingsService.TILE_SIZE;
                     int j = (tile.lone6min - supertile.lone6min) / ParkingsService.TILE_SIZE;
-                    if (i < 0 || j < 0 || i >= SUPERTILE_FACTOR || j >= SUPERTILE_FACTOR) {
-                        Log.e(TAG, "supertile doesn't contain the tile we're refreshing: tile " + tile + " supertile + " + supertile + " factor " + SUPERTILE_FACTOR);
+                    if (i < 0 || j < 0 || i >= factor || j >= factor) {
+                        Log.e(TAG, "supertile doesn't contain the tile we're refreshing: tile " + tile + " supertile + " + supertile + " factor " + factor);
                     } else {
                         newtiles[i][j] = tile;
                     }
+                    LoadingStatus.startedLoading();
+                    new SupertilePublication(event, supertile, factor, newtiles, false).submit(this.publisher);
                 } else {
-                    String uri = Config.SERVER + "availetc?late6min=" + supertile.late6min +
-                            "&lone6min=" + supertile.lone6min +
-                            "&late6max=" + (supertile.late6min+SUPERTILE_SIZE) +
-                            "&lone6max=" + (supertile.lone6min+SUPERTILE_SIZE);
-                    InputStream is = FileManager.get().open(uri);
-                    if (is != null) {
-                        Model model = ModelFactory.createDefaultModel();
-                        model.read(is, uri, "TURTLE");
-//                        this.downloadCount++;
-
-                        time = System.currentTimeMillis();
-//                        Log.d(TAG, "supertile " + this.downloadCount + " read " + (time - event.timeMillis) + "ms after request enqueued");
-
-                        for (int i=0; i<SUPERTILE_FACTOR; i++) {
-                            for (int j=0; j<SUPERTILE_FACTOR; j++) {
-                                MapTile newtile = new MapTile();
-                                newtile.lastUpdate = time;
-                                newtile.nextUpdate = time + Config.DEFAULT_TILE_TTL; // todo this should come from HTTP caching info
-                                newtile.late6min = supertile.late6min + i*ParkingsService.TILE_SIZE;
-                                newtile.lone6min = supertile.lone6min + j*ParkingsService.TILE_SIZE;
-                                newtile.parkings = new HashMap<String, Parking>(200);
-                                newtiles[i][j] = newtile;
-//                                Log.v(TAG, "added new tile " + newtile);
+                    SupertileFetch fetch = new SupertileFetch(event, supertile, factor);
+                    synchronized(this) {
+                        SupertileFetch prefetch;
+                        if (this.supertilesInFlight.add(supertile)) {
+                            if (event.type == Type.PREFETCH) {
+                                this.prefetchesWaiting.put(supertile, fetch);
+                            }
+                        } else if (event.type == Type.LOAD_TILE && (prefetch = this.prefetchesWaiting.remove(supertile)) != null) {
+                            // the prefetcher hasn't started on it yet, so the tile doesn't wait behind the other prefetches
+//                            Log.d(TAG, "taking over prefetch of supertile " + supertile);
+                            prefetch.takenOver = true;
+                        } else {
+//                            Log.d(TAG, "supertile already being downloaded: " + supertile);
+                            if (event.extraCarpark != null) {
+                                // the extra car park still needs its data set and its listener told, that happens when the event comes round again
+                                List<Event> waiting = this.eventsWaitingForSupertile.get(supertile);
+                                if (waiting == null) {
+                                    waiting = new ArrayList<Event>(2);
+                                    this.eventsWaitingForSupertile.put(supertile, waiting);
+                                }
+                                waiting.add(event);
                             }
+                            continue;
                         }
+                    }
+                    LoadingStatus.startedLoading();
+                    fetch.submit(event.type == Type.PREFETCH ? this.prefetcher : this.fetchers);
+                }
+            } catch (InterruptedException e) {
+//                Log.i(TAG, "thread interrupted, quitting");
+                break;
+            } catch (Exception e) {
+//                Log.w(TAG, "thread almost died of exception", e);
+            }
+        }
+        abandonAll(this.fetchers.shutdownNow());
+        abandonAll(this.prefetcher.shutdownNow());
+        abandonAll(this.parser.shutdownNow());
+        abandonAll(this.publisher.shutdownNow());
+    }
 
-                        for (ResIterator parkings = model.listResourcesWithProperty(RDF.type, Onto.LGO_Parking); parkings.hasNext(); ) {
-                            Resource parking = parkings.next();
-                            ParkingInformation pinfo = ParkingInformation.parse(parking, model);
-                            if (pinfo == null) {
-                                continue;
-                            }
-                            Parking newparking = pinfo.createParking();
-                            int i = (pinfo.late6-supertile.late6min)/ParkingsService.TILE_SIZE;
-                            if (pinfo.late6<supertile.late6min) i--;
-                            int j = (pinfo.lone6-supertile.lone6min)/ParkingsService.TILE_SIZE;
-                            if (pinfo.lone6<supertile.lone6min) j--;
-                            if (i<0 || i >=SUPERTILE_FACTOR || j<0 || j >= SUPERTILE_FACTOR) {
-//                                Log.w(TAG, "parking from server is not in supertile: " + pinfo.id);
-                                continue;
-                            }
-//                            Log.v(TAG, "added parking in tile " + i + "," + j);
-                            newtiles[i][j].parkings.put(pinfo.id, newparking);
+    private boolean isTileDesirable(MapTile tile) {
+        synchronized(this) {
+            for (TileDesirabilityChecker checker : this.tileDesirabilityCheckers) {
+                if (checker.isTileDesirable(tile)) {
+                    return true; // tile desirable for at least one party, that'll do
+                }
+            }
+        }
+        return false;
+    }
+
+    // called with the lock held, from the cache
+    private boolean isTileInUse(MapTile tile) {
+        for (TileDesirabilityChecker checker : this.tileDesirabilityCheckers) {
+            if (checker.isTileInUse(tile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * drops the least recently used tiles that aren't in use down to the cache's low watermark, to be called when the system is low on memory
+     */
+    public synchronized void trimCache() {
+        this.cache.trim();
+//        Log.d(TAG, "trimmed " + this.cache);
+    }
+
+    /**
+     * @return a description of the state of the tile cache, with its hit, miss and eviction counts
+     */
+    public synchronized String getCacheStats() {
+        return this.cache.toString();
+    }
+
+    private static void abandonAll(List<Runnable> tasks) {
+        for (Runnable task : tasks) {
+            ((SupertileTask) task).done();
+        }
+    }
+
+    /**
+     * one step of the download pipeline for a single supertile; every task either hands its work on to the next stage or calls done()
+     */
+    private abstract class SupertileTask implements Runnable {
+        final Event event;
+        final MapTile supertile;
+        // the size of the supertile in tiles
+        final int factor;
+        private final boolean inFlight;
+
+        /**
+         * @param inFlight whether the supertile was marked in supertilesInFlight for this task
+         */
+        SupertileTask(Event event, MapTile supertile, int factor, boolean inFlight) {
+            this.event = event;
+            this.supertile = supertile;
+            this.factor = factor;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * runs this task in the given stage, or finishes it straight away if the pipeline is shutting down
+         */
+        void submit(ExecutorService stage) {
+            try {
+                stage.execute(this);
+            } catch (RejectedExecutionException e) {
+                done();
+            }
+        }
+
+        /**
+         * the supertile leaves the pipeline, whether it got all the way through or not
+         */
+        void done() {
+            if (this.inFlight) {
+                List<Event> waiting;
+                synchronized(TileDownloaderThread.this) {
+                    TileDownloaderThread.this.supertilesInFlight.remove(this.supertile);
+                    waiting = TileDownloaderThread.this.eventsWaitingForSupertile.remove(this.supertile);
+                }
+                if (waiting != null) {
+                    for (Event event : waiting) {
+                        requeue(event);
+                    }
+                }
+            }
+            LoadingStatus.stoppedLoading();
+        }
+    }
+
+    /**
+     * downloads the whole response for a supertile, then hands it to the parser
+     * if the supertile isn't in memory but it is in the tile store, the stored one is parsed and published first, and only downloaded if it's stale
+     */
+    private class SupertileFetch extends SupertileTask {
+        // a prefetch that a fetcher took over before it started, the supertile in flight belongs to the fetcher then; guarded by the thread's lock
+        boolean takenOver = false;
+
+        SupertileFetch(Event event, MapTile supertile, int factor) {
+            super(event, supertile, factor, true);
+        }
+
+        @Override
+        void done() {
+            boolean takenOver;
+            synchronized(TileDownloaderThread.this) {
+                takenOver = this.takenOver;
+                // a prefetch that never ran, e.g. when the pipeline shuts down
+                if (!takenOver && TileDownloaderThread.this.prefetchesWaiting.get(this.supertile) == this) {
+                    TileDownloaderThread.this.prefetchesWaiting.remove(this.supertile);
+                }
+            }
+            if (takenOver) {
+                LoadingStatus.stoppedLoading();
+            } else {
+                super.done();
+            }
+        }
+
+        public void run() {
+            boolean handedOn = false;
+            try {
+                if (this.event.type == Type.PREFETCH) {
+                    synchronized(TileDownloaderThread.this) {
+                        if (this.takenOver) {
+                            return;
                         }
-                        this.loadedSomeCarparks = true;
+                        TileDownloaderThread.this.prefetchesWaiting.remove(this.supertile);
+                    }
+                }
 
-//                        Log.d(TAG, "parsing took " + (-time + (time=System.currentTimeMillis())) + "ms");
+                // the user may have scrolled away while this was waiting for a free fetcher
+                if (this.event.type == Type.LOAD_TILE && !isTileDesirable(this.event.tile)) {
+//                    Log.d(TAG, "tile no longer desirable: " + this.event.tile);
+                    return;
+                }
+
+                String uri = Config.SERVER + "availetc?late6min=" + this.supertile.late6min +
+                        "&lone6min=" + this.supertile.lone6min +
+                        "&late6max=" + (this.supertile.late6min+this.factor*ParkingsService.TILE_SIZE) +
+                        "&lone6max=" + (this.supertile.lone6min+this.factor*ParkingsService.TILE_SIZE);
+
+                TileStore store = TileDownloaderThread.this.store;
+                if (store != null) {
+                    boolean inMemory;
+                    synchronized(TileDownloaderThread.this) {
+                        inMemory = TileDownloaderThread.this.cache.peek(this.event.tile);
+                    }
+                    TileStore.Entry stored = inMemory ? null : store.load(this.event.tile);
+                    if (stored != null) {
+                        LoadingStatus.startedLoading();
+                        new SupertileParse(this.event, stored.supertile, stored.factor, uri, stored).submit(TileDownloaderThread.this.parser);
+                        // the layout was learned before a restart, the stored supertile tells us what it was in this area
+                        boolean relayout = stored.factor != this.factor;
+                        if (relayout) {
+                            TileDownloaderThread.this.layout.restore(stored.supertile, stored.factor);
+                        }
+                        if (stored.nextUpdate > System.currentTimeMillis()) {
+//                            Log.d(TAG, "stored supertile still fresh: " + stored.supertile);
+                            return;
+                        }
+                        if (relayout) {
+                            // the stale supertile is downloaded again in its own size when the event comes round again
+                            requeue(this.event);
+                            return;
+                        }
+                    }
+                }
+
+                HttpLocator.Response<MapTile> response = HttpLocator.get().open(uri, Config.DEFAULT_TILE_TTL, TILE_ACCEPT, MapTile.class);
+                byte[] data = null;
+                if (response != null && response.isNotModified()) {
+                    // only the validators of supertiles are remembered, the unmodified data is decoded again from the tile store
+                    TileStore.Entry same = store == null ? null : store.load(this.supertile, this.factor);
+                    if (same != null) {
+                        data = same.data;
                     } else {
-//                        Log.e(TAG, "jena cannot read " + uri);
-                        synchronized(this) {
-                            MapTile old = this.cache.get(tile);
-                            if (old != null) {
-                                old.nextUpdate = time+Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if it couldn't be read, don't try to update immediately again -- todo this should be propagated to all the tiles in this tile's supertile
-                            }
+                        HttpLocator.get().forget(uri, MapTile.class);
+                        response = HttpLocator.get().open(uri, Config.DEFAULT_TILE_TTL, TILE_ACCEPT, MapTile.class);
+                    }
+                }
+                if (response != null) {
+                    if (data == null) {
+                        data = readFully(response.body);
+                    }
+//                    Log.d(TAG, "supertile downloaded " + (System.currentTimeMillis() - this.event.timeMillis) + "ms after request enqueued");
+                    new SupertileParse(this.event, this.supertile, this.factor, uri, response, data).submit(TileDownloaderThread.this.parser);
+                    handedOn = true;
+                } else {
+//                    Log.e(TAG, "jena cannot read " + uri);
+                    long time = System.currentTimeMillis();
+                    synchronized(TileDownloaderThread.this) {
+                        MapTile old = TileDownloaderThread.this.cache.get(this.event.tile);
+                        if (old != null) {
+                            old.nextUpdate = time+Config.DEFAULT_NETWORK_PROBLEM_DELAY; // if it couldn't be read, don't try to update immediately again -- todo this should be propagated to all the tiles in this tile's supertile
                         }
                     }
                 }
+            } catch (Exception e) {
+//                Log.w(TAG, "fetching supertile " + this.supertile + " failed with exception ", e);
+            } finally {
+                if (!handedOn) {
+                    done();
+                }
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * turns the downloaded or stored data of a supertile into its tiles, then hands them to the publisher
+     * if the supertile was not modified since it was last downloaded, the data is the stored copy
+     */
+    private class SupertileParse extends SupertileTask {
+        private final String uri;
+        private final HttpLocator.Response<MapTile> response;
+        private final TileStore.Entry stored;
+        private final byte[] data;
+
+        SupertileParse(Event event, MapTile supertile, int factor, String uri, HttpLocator.Response<MapTile> response, byte[] data) {
+            super(event, supertile, factor, true);
+            this.uri = uri;
+            this.response = response;
+            this.stored = null;
+            this.data = data;
+        }
+
+        // the fetcher keeps the supertile in flight while it revalidates the stored data
+        SupertileParse(Event event, MapTile supertile, int factor, String uri, TileStore.Entry stored) {
+            super(event, supertile, factor, false);
+            this.uri = uri;
+            this.response = null;
+            this.stored = stored;
+            this.data = stored.data;
+        }
+
+        public void run() {
+            boolean handedOn = false;
+            try {
+                Collection<ParkingInformation> pinfos;
+                // the streaming decoder skips building a model of the whole supertile; the model path is kept as a fallback
+                InputStream is = new ByteArrayInputStream(this.data);
+                if (ParkingTileCodec.isEncoded(this.data)) {
+                    pinfos = ParkingTileCodec.decode(this.data);
+                } else if (Config.STREAMING_TILE_DECODER) {
+                    pinfos = ParkingInformationCollector.parse(is, this.uri);
+                } else {
+                    pinfos = parseWithModel(is, this.uri);
+                }
+//                TileDownloaderThread.this.downloadCount++;
+
+                long time = System.currentTimeMillis();
+//                Log.d(TAG, "supertile " + TileDownloaderThread.this.downloadCount + " read " + (time - this.event.timeMillis) + "ms after request enqueued");
+
+                long lastUpdate;
+                long nextUpdate;
+                if (this.stored != null) {
+                    lastUpdate = this.stored.lastUpdate;
+                    nextUpdate = this.stored.nextUpdate;
+                } else {
+                    lastUpdate = time;
+                    nextUpdate = this.response.nextUpdate;
+                    // the parsed car parks are not kept for the next 304 Not Modified, they'd be held outside the tile cache's budget,
+                    // the data is decoded again from the tile store, so without a store the requests aren't conditional;
+                    // an unmodified supertile is stored again for its new update times
+                    if (TileDownloaderThread.this.store != null) {
+                        this.response.setParsed(null);
+                        TileDownloaderThread.this.store.save(this.supertile, this.factor, this.data, lastUpdate, nextUpdate);
+                    }
+                }
+                TileDownloaderThread.this.layout.learn(this.supertile, this.factor, pinfos.size());
+
+                MapTile[][] newtiles = new MapTile[this.factor][this.factor];
+                for (int i=0; i<this.factor; i++) {
+                    for (int j=0; j<this.factor; j++) {
+                        MapTile newtile = new MapTile();
+                        newtile.lastUpdate = lastUpdate;
+                        newtile.nextUpdate = nextUpdate;
+                        newtile.late6min = this.supertile.late6min + i*ParkingsService.TILE_SIZE;
+                        newtile.lone6min = this.supertile.lone6min + j*ParkingsService.TILE_SIZE;
+                        newtile.parkings = new HashMap<String, Parking>(200);
+                        newtiles[i][j] = newtile;
+//                        Log.v(TAG, "added new tile " + newtile);
+                    }
+                }
 
-                addRememberedCarparks(supertile, newtiles, !justRefresh);
+                for (ParkingInformation pinfo : pinfos) {
+                    Parking newparking = pinfo.createParking();
+                    int i = (pinfo.late6-this.supertile.late6min)/ParkingsService.TILE_SIZE;
+                    if (pinfo.late6<this.supertile.late6min) i--;
+                    int j = (pinfo.lone6-this.supertile.lone6min)/ParkingsService.TILE_SIZE;
+                    if (pinfo.lone6<this.supertile.lone6min) j--;
+                    if (i<0 || i >=this.factor || j<0 || j >= this.factor) {
+//                        Log.w(TAG, "parking from server is not in supertile: " + pinfo.id);
+                        continue;
+                    }
+//                    Log.v(TAG, "added parking in tile " + i + "," + j);
+                    newtiles[i][j].parkings.put(pinfo.id, newparking);
+                }
+                TileDownloaderThread.this.loadedSomeCarparks = true;
+
+//                Log.d(TAG, "parsing took " + (-time + (time=System.currentTimeMillis())) + "ms");
+
+                // stale stored car parks don't count as loaded for forgetting the car parks added by the user
+                new SupertilePublication(this.event, this.supertile, this.factor, newtiles, this.stored == null).submit(TileDownloaderThread.this.publisher);
+                handedOn = true;
+            } catch (Exception e) {
+//                Log.w(TAG, "parsing supertile " + this.supertile + " failed with exception ", e);
+            } finally {
+                if (!handedOn) {
+                    done();
+                }
+            }
+        }
+    }
+
+    /**
+     * puts the new tiles of a supertile in the cache and tells the listeners; there is only one publisher so the listeners see one supertile at a time
+     */
+    private class SupertilePublication extends SupertileTask {
+        private final MapTile[][] newtiles;
+        private final boolean newlyLoaded;
+
+        /**
+         * @param newlyLoaded whether the tiles were just downloaded, rather than refreshed or loaded from the tile store
+         */
+        SupertilePublication(Event event, MapTile supertile, int factor, MapTile[][] newtiles, boolean newlyLoaded) {
+            super(event, supertile, factor, newlyLoaded);
+            this.newtiles = newtiles;
+            this.newlyLoaded = newlyLoaded;
+        }
+
+        public void run() {
+            try {
+                addRememberedCarparks(this.supertile, this.newtiles, this.newlyLoaded);
 
                 // the extra carpark that triggered this update should now be loaded
+                Event event = this.event;
                 if (event.extraCarpark != null) {
                     Parking p = Parking.getParking(event.extraCarpark);
                     if (p != null) {
@@ -237,44 +596,32 @@ class TileDownloaderThread implements Runnable {
                 }
 
                 // parsing done, handle the tiles
-                synchronized(this) { // for cache access and for listeners access
-                    for (int i=0; i<SUPERTILE_FACTOR; i++) {
-                        for (int j=0; j<SUPERTILE_FACTOR; j++) {
-                            MapTile newtile = newtiles[i][j];
-                            if (newtile != null) {
-                                this.cache.add(newtile);
-                            }
-                        }
-                    }
-                    for (int i=0; i<SUPERTILE_FACTOR; i++) {
-                        for (int j=0; j<SUPERTILE_FACTOR; j++) {
-                            MapTile newtile = newtiles[i][j];
+                List<MapTile> published = new ArrayList<MapTile>(this.factor*this.factor);
+                synchronized(TileDownloaderThread.this) { // for cache access
+                    for (int i=0; i<this.factor; i++) {
+                        for (int j=0; j<this.factor; j++) {
+                            MapTile newtile = this.newtiles[i][j];
                             if (newtile != null) {
-                                for (TileUpdateListener listener : this.tileUpdateListeners) {
-                                    listener.onTileUpdated(newtile);
-                                }
+                                TileDownloaderThread.this.cache.add(newtile);
+                                published.add(newtile);
                             }
                         }
                     }
                 }
+                // the listeners get the whole supertile in one batch
+                TileDownloaderThread.this.tileUpdates.post(published);
 //                Log.d(TAG, "caching and tile update listeners took " + (System.currentTimeMillis() - time) + "ms");
-            } catch (InterruptedException e) {
-//                Log.i(TAG, "thread interrupted, quitting");
-                break;
+//                Log.d(TAG, "supertile " + this.supertile + " published " + (System.currentTimeMillis() - this.event.timeMillis) + "ms after request enqueued");
             } catch (Exception e) {
-//                Log.w(TAG, "thread almost died of exception", e);
+//                Log.w(TAG, "publishing supertile " + this.supertile + " failed with exception ", e);
+            } finally {
+                done();
             }
         }
-        if (this.loading) {
-            LoadingStatus.stoppedLoading();
-            this.loading = false;
-        }
     }
 
-    synchronized void refreshAllListeners() {
-        for (TileUpdateListener listener : this.tileUpdateListeners) {
-            listener.onAllTileRefresh();
-        }
+    void refreshAllListeners() {
+        this.allTileRefreshes.post(EventBus.SIGNAL);
     }
 
     /**
@@ -289,7 +636,7 @@ class TileDownloaderThread implements Runnable {
             int i = (remembered.point.getLatitudeE6()-supertile.late6min)/ParkingsService.TILE_SIZE;
             if (remembered.point.getLongitudeE6()<supertile.lone6min) continue;
             int j = (remembered.point.getLongitudeE6()-supertile.lone6min)/ParkingsService.TILE_SIZE;
-            if (i >=SUPERTILE_FACTOR || j >= SUPERTILE_FACTOR) {
+            if (i >=newtiles.length || j >= newtiles.length) {
                 // this car park not in the current supertile
                 continue;
             }
@@ -332,15 +679,38 @@ class TileDownloaderThread implements Runnable {
         this.rememberedCarparks.removeAllAddedCarparks(toForget);
     }
 
+    private static List<ParkingInformation> parseWithModel(InputStream is, String uri) {
+        Model model = ModelFactory.createDefaultModel();
+        model.read(is, uri, "TURTLE");
+
+        List<ParkingInformation> retval = new ArrayList<ParkingInformation>();
+        for (ResIterator parkings = model.listResourcesWithProperty(RDF.type, Onto.LGO_Parking); parkings.hasNext(); ) {
+            ParkingInformation pinfo = ParkingInformation.parse(parkings.next(), model);
+            if (pinfo != null) {
+                retval.add(pinfo);
+            }
+        }
+        return retval;
+    }
+
     private Parking readCarpark(String uri) {
 //        Log.d(TAG, "loading new carpark from " + uri);
         // load the new car park
 
         try {
-            InputStream is = FileManager.get().open(uri);
-            if (is != null) {
-                Model model = ModelFactory.createDefaultModel();
-                model.read(is, uri, "TURTLE");
+            HttpLocator.Response<CarparkDetails> response = HttpLocator.get().open(uri, Config.DEFAULT_DETAILS_TTL, CarparkDetails.class);
+            if (response != null) {
+                Model model;
+                CarparkDetails details;
+                if (response.isNotModified()) {
+                    details = response.parsed;
+                    model = details.asModel();
+                } else {
+                    model = ModelFactory.createDefaultModel();
+                    model.read(response.body, uri, "TURTLE");
+                    details = CarparkDetails.fromModel(model, uri);
+                    response.setParsed(details);
+                }
 
                 ParkingInformation pinfo = ParkingInformation.parse(model.getResource(uri), model);
                 if (pinfo == null) {
@@ -356,9 +726,9 @@ class TileDownloaderThread implements Runnable {
                     DetailsAndAvailabilityThread.geocodeCarparkTitle(newparking);
                 }
 
-                newparking.details = model;
+                newparking.details = details;
                 newparking.lastDetailsUpdate = time;
-                newparking.nextDetailsUpdate = time+Config.DEFAULT_DETAILS_TTL; // todo this should be taken from HTTP caching info
+                newparking.nextDetailsUpdate = response.nextUpdate;
                 // todo is initial availability TTL of 5s a good value? it should be the same as the smallest value the server would return from PAVAIL
                 return newparking;
             } else {
@@ -382,6 +752,14 @@ class TileDownloaderThread implements Runnable {
      * @param lonE6 must be in multiples of TILE_SIZE
      * @return the tile, if downloaded
      */
+    /**
+     * @param tile a tile
+     * @return true if the cache has a tile of the same area, the tile doesn't become any fresher in the cache
+     */
+    public synchronized boolean isTileCached(MapTile tile) {
+        return this.cache.peek(tile);
+    }
+
     public synchronized MapTile getTile(int latE6, int lonE6) {
         this.cacheTemplate.late6min = latE6;
         this.cacheTemplate.lone6min = lonE6;
@@ -397,8 +775,7 @@ class TileDownloaderThread implements Runnable {
                 // todo only enqueue if the thread is running, otherwise loudly ignore?
                 while (!this.eventQueue.offer(request)) {
 //                    Log.e(TAG, "event queue full, removing old entry!");
-                    Event old = this.eventQueue.poll();
-                    this.eventPresenceSet.remove(old);
+                    forgetQueued(this.eventQueue.poll());
                 }
 //                Log.v(TAG, "added event " + request.tile + " from ", new Exception());
             }
@@ -406,6 +783,34 @@ class TileDownloaderThread implements Runnable {
         return retval;
     }
 
+    /**
+     * asks for the supertile that contains the given tile to be downloaded in the background, unless the tile is already cached;
+     * unlike getTile, this doesn't need the tile to be desirable and it never pushes other requests out of the queue
+     * @param latE6 must be in multiples of TILE_SIZE
+     * @param lonE6 must be in multiples of TILE_SIZE
+     * @return true if a new download was queued
+     */
+    public synchronized boolean prefetchTile(int latE6, int lonE6) {
+        this.cacheTemplate.late6min = latE6;
+        this.cacheTemplate.lone6min = lonE6;
+        if (this.cache.peek(this.cacheTemplate)) {
+            return false;
+        }
+        // all the tiles of a supertile are prefetched with a single request
+        MapTile supertile = SupertileLayout.supertileOf(this.cacheTemplate, this.layout.factorFor(this.cacheTemplate));
+        if (this.supertilesInFlight.contains(supertile) || this.supertilesToPrefetch.contains(supertile)) {
+            return false;
+        }
+        Event request = new Event(supertile, System.currentTimeMillis());
+        request.type = Type.PREFETCH;
+        if (!this.eventQueue.offer(request)) {
+            return false;
+        }
+        this.supertilesToPrefetch.add(supertile);
+//        Log.v(TAG, "added prefetch " + supertile);
+        return true;
+    }
+
     /**
      * triggers a refresh of the tile that contains the given point; this doesn't necessarily reload the tile itself (unless it's expired) but it re-checks remembered carparks
      * @param point a point somewhere whose map tile should be refreshed
@@ -413,7 +818,7 @@ class TileDownloaderThread implements Runnable {
      * @param extraData data already loaded for the extraId carpark
      * @param extraListener who should be notified when the extraId carpark is actually loaded
      */
-    public synchronized void refreshTile(GeoPoint point, Uri extraId, Model extraData, CarparkDetailsUpdateListener extraListener) {
+    public synchronized void refreshTile(GeoPoint point, Uri extraId, CarparkDetails extraData, CarparkDetailsUpdateListener extraListener) {
         // check the tile and load all remembered but unloaded car parks; forget any remembered car parks loaded in normal tile; and then tell the listener and drop the listener from remembered carparks
         int tileLatE0 = point.getLatitudeE6() / ParkingsService.TILE_SIZE; if (point.getLatitudeE6() < 0) tileLatE0--;
         int tileLonE0 = point.getLongitudeE6() / ParkingsService.TILE_SIZE; if (point.getLongitudeE6() < 0) tileLonE0--;
@@ -439,24 +844,57 @@ class TileDownloaderThread implements Runnable {
             this.eventPresenceSet.add(request);
             // todo only enqueue if the thread is running, otherwise loudly ignore?
             while (!this.eventQueue.offer(request)) {
-                Event old = this.eventQueue.poll();
-                this.eventPresenceSet.remove(old);
+                forgetQueued(this.eventQueue.poll());
+            }
+        }
+    }
+
+    /**
+     * puts an event that was already taken up back in the queue, unless an equal event is already there
+     */
+    private synchronized void requeue(Event event) {
+        if (this.eventPresenceSet.add(event)) {
+            while (!this.eventQueue.offer(event)) {
+                forgetQueued(this.eventQueue.poll());
             }
         }
     }
 
-    private final Set<TileUpdateListener> tileUpdateListeners = new HashSet<TileUpdateListener>();
+    /**
+     * an event has left the queue, so an equal one may be queued again
+     */
+    private synchronized void forgetQueued(Event event) {
+        if (event.type == Type.PREFETCH) {
+            this.supertilesToPrefetch.remove(event.tile);
+        } else {
+            this.eventPresenceSet.remove(event);
+        }
+    }
+
+    private final EventBus.Channel<TileUpdateListener, MapTile> tileUpdates = EventBus.get().newChannel("tile updates", Config.TILE_UPDATE_COALESCING_DELAY,
+            new EventBus.Delivery<TileUpdateListener, MapTile>() {
+                public void deliver(TileUpdateListener listener, Collection<MapTile> tiles) {
+                    listener.onTilesUpdated(tiles);
+                }
+            });
+    private final EventBus.Channel<TileUpdateListener, Object> allTileRefreshes = EventBus.get().newChannel("all tile refreshes", 0,
+            new EventBus.Delivery<TileUpdateListener, Object>() {
+                public void deliver(TileUpdateListener listener, Collection<Object> signals) {
+                    listener.onAllTileRefresh();
+                }
+            });
     private final Set<TileDesirabilityChecker> tileDesirabilityCheckers = new HashSet<TileDesirabilityChecker>();
 
-    public synchronized void registerTileUpdateListener(TileUpdateListener listener) {
-        this.tileUpdateListeners.add(listener);
+    public void registerTileUpdateListener(TileUpdateListener listener) {
+        this.tileUpdates.register(listener);
+        this.allTileRefreshes.register(listener);
     }
 
     public synchronized void registerTileDesirabilityChecker(TileDesirabilityChecker checker) {
         this.tileDesirabilityCheckers.add(checker);
     }
 
-    private static enum Type { LOAD_TILE, REFRESH_REMEMBERED }
+    private static enum Type { LOAD_TILE, REFRESH_REMEMBERED, PREFETCH }
 
     private static class Event {
         public Type type;
@@ -464,7 +902,7 @@ class TileDownloaderThread implements Runnable {
         public long timeMillis;
 
         public Uri extraCarpark = null;
-        public Model extraData = null;
+        public CarparkDetails extraData = null;
         public CarparkDetailsUpdateListener extraListener = null;
 
         public Event(MapTile tile, long time) {
@@ -489,8 +927,8 @@ class TileDownloaderThread implements Runnable {
     }
 
     public static class ParkingInformation {
-        private double lat = Double.NaN;
-        private double lon = Double.NaN;
+        double lat = Double.NaN;
+        double lon = Double.NaN;
 
         public int late6 = 0;
         public int lone6 = 0;
@@ -564,31 +1002,39 @@ class TileDownloaderThread implements Runnable {
                 }
             }
 
-            if (p.title == null) {
-                p.title = ParkingsService.get(null).formatUnknownCarparkTitle(p.id.substring(p.id.lastIndexOf('/')+1));
+            return p.complete() ? p : null;
+        }
+
+        /**
+         * fills in the defaults for what the data didn't say, and computes the E6 coordinates
+         * @return false if the information is not usable as a car park
+         */
+        boolean complete() {
+            if (this.title == null) {
+                this.title = ParkingsService.get(null).formatUnknownCarparkTitle(this.id.substring(this.id.lastIndexOf('/')+1));
             }
 
             // todo this shouldn't be here - the server should give us this URI, and the same for updateResource below
-            if (p.availabilityResource == null) {
-                p.availabilityResource = Config.SERVER + "parks/" + p.id.substring(p.id.lastIndexOf('/')+1) + "/avail";
+            if (this.availabilityResource == null) {
+                this.availabilityResource = Config.SERVER + "parks/" + this.id.substring(this.id.lastIndexOf('/')+1) + "/avail";
             }
 
-            if (p.updateResource == null) {
-                p.updateResource = p.id;
+            if (this.updateResource == null) {
+                this.updateResource = this.id;
             }
 
-            if (p.lat==Double.NaN || p.lon==Double.NaN) {
-//                Log.w(TAG, "parking " + p.id + " doesn't have both geo properties (" + p.lat + ", " + p.lon + ")");
-                return null;
+            if (this.lat==Double.NaN || this.lon==Double.NaN) {
+//                Log.w(TAG, "parking " + this.id + " doesn't have both geo properties (" + this.lat + ", " + this.lon + ")");
+                return false;
             }
-            p.late6 = (int) Math.floor(p.lat*1e6);
-            p.lone6 = (int) Math.floor(p.lon*1e6);
-            return p;
+            this.late6 = (int) Math.floor(this.lat*1e6);
+            this.lone6 = (int) Math.floor(this.lon*1e6);
+            return true;
         }
 
         public Parking createParking() {
             // todo is initial availability TTL of 5s a good value? it should be the same as the smallest value the server would return from PAVAIL
-            return new Parking(new GeoPoint(this.late6, this.lone6),
+            return Parking.getOrCreate(new GeoPoint(this.late6, this.lone6),
                     this.title,
                     Uri.parse(this.id),
                     this.availabilityResource,
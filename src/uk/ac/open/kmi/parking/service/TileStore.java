@@ -0,0 +1,204 @@
+/*
+   Copyright 2012 Jacek Kopecky (jacek@jacek.cz)
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package uk.ac.open.kmi.parking.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * a second-level store of downloaded supertiles on local storage, so that after the process is killed the map doesn't start empty
+ * every supertile is a file with the raw data from the server and its update times; the least recently used files are deleted when the store goes over its size budget
+ * this class is synchronized
+ */
+class TileStore {
+    private static final String TAG = "tile store";
+
+    // if the file format changes, change this number and old files will be deleted as they are found
+    private static final int VERSION = 1;
+    // version, last update, next update and data length
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+    private static final String PREFIX = "supertile_";
+
+    private final File dir;
+    private final long budget;
+
+    /**
+     * @param dir the directory for the store, it will be created if necessary
+     * @param budget the maximum size (in bytes) of all the stored supertiles together
+     */
+    public TileStore(File dir, long budget) {
+        this.dir = dir;
+        this.budget = budget;
+    }
+
+    /**
+     * loads the stored supertile that contains a tile; the supertile can be of any size, because the layout of the supertiles
+     * is learned again after a restart, so the stored supertiles of the areas that aren't of the default density have other sizes than it says
+     * @param tile the tile
+     * @return the stored supertile data, or null if no supertile with the tile is stored or if it can't be read
+     */
+    public synchronized Entry load(MapTile tile) {
+        // if there are several (the layout changed), the most recently used one is the one that was downloaded last
+        File file = null;
+        MapTile supertile = null;
+        int factor = 0;
+        for (int level = 0; level <= SupertileLayout.MAX_LEVEL; level++) {
+            int f = SupertileLayout.ROOT_FACTOR >> level;
+            MapTile s = SupertileLayout.supertileOf(tile, f);
+            File candidate = fileFor(s, f);
+            if (candidate.exists() && (file == null || candidate.lastModified() > file.lastModified())) {
+                file = candidate;
+                supertile = s;
+                factor = f;
+            }
+        }
+        if (file == null) {
+            return null;
+        }
+        return read(file, supertile, factor);
+    }
+
+    /**
+     * loads a stored supertile of the given size
+     * @param supertile the supertile, only its late6min and lone6min are used
+     * @param factor the size of the supertile in tiles
+     * @return the stored supertile data, or null if it isn't stored or if it can't be read
+     */
+    public synchronized Entry load(MapTile supertile, int factor) {
+        File file = fileFor(supertile, factor);
+        if (!file.exists()) {
+            return null;
+        }
+        return read(file, supertile, factor);
+    }
+
+    private Entry read(File file, MapTile supertile, int factor) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                file.delete();
+                return null;
+            }
+            long lastUpdate = in.readLong();
+            long nextUpdate = in.readLong();
+            // a corrupt length must not make us allocate a huge array
+            int length = in.readInt();
+            if (length < 0 || length > file.length() - HEADER_SIZE) {
+                throw new IOException("bad data length " + length + " in " + file);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            // used supertiles are kept longest
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(supertile, factor, data, lastUpdate, nextUpdate);
+        } catch (IOException e) {
+            Log.w(TAG, "cannot read stored " + supertile, e);
+            file.delete();
+            return null;
+        } finally {
+            AtomicFile.close(in);
+        }
+    }
+
+    /**
+     * stores a supertile, replacing any older version, and evicts old supertiles if the store is over its budget
+     * @param supertile the supertile, only its late6min and lone6min are used
+     * @param factor the size of the supertile in tiles
+     * @param data the raw data from the server
+     * @param lastUpdate when the data was downloaded
+     * @param nextUpdate when the data should be refreshed
+     */
+    public synchronized void save(MapTile supertile, int factor, final byte[] data, final long lastUpdate, final long nextUpdate) {
+        boolean saved = AtomicFile.write(fileFor(supertile, factor), new AtomicFile.Content() {
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(VERSION);
+                out.writeLong(lastUpdate);
+                out.writeLong(nextUpdate);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        });
+        if (saved) {
+            evict();
+        }
+    }
+
+    /**
+     * deletes the least recently used files until the store fits in its budget
+     */
+    private void evict() {
+        File[] files = this.dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        while (size > this.budget) {
+            File oldest = null;
+            for (File f : files) {
+                if (f != null && (oldest == null || f.lastModified() < oldest.lastModified())) {
+                    oldest = f;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            size -= oldest.length();
+//            Log.d(TAG, "evicting " + oldest.getName());
+            oldest.delete();
+            for (int i=0; i<files.length; i++) {
+                if (files[i] == oldest) {
+                    files[i] = null;
+                }
+            }
+        }
+    }
+
+    private File fileFor(MapTile supertile, int factor) {
+        return new File(this.dir, PREFIX + supertile.late6min + "_" + supertile.lone6min + "_" + factor);
+    }
+
+    /**
+     * a supertile as it was stored
+     */
+    static class Entry {
+        // only late6min and lone6min are set
+        final MapTile supertile;
+        // the size of the supertile in tiles
+        final int factor;
+        final byte[] data;
+        final long lastUpdate;
+        final long nextUpdate;
+
+        Entry(MapTile supertile, int factor, byte[] data, long lastUpdate, long nextUpdate) {
+            this.supertile = supertile;
+            this.factor = factor;
+            this.data = data;
+            this.lastUpdate = lastUpdate;
+            this.nextUpdate = nextUpdate;
+        }
+    }
+}
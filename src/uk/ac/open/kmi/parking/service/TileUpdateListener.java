@@ -16,9 +16,15 @@
 
 package uk.ac.open.kmi.parking.service;
 
+import java.util.Collection;
+
 interface TileUpdateListener {
 
-    public abstract void onTileUpdated(MapTile tile);
+    /**
+     * called on the event bus thread with the tiles updated since the last call, e.g. all the tiles of a newly loaded supertile
+     * @param tiles the updated tiles, must not be changed
+     */
+    public abstract void onTilesUpdated(Collection<MapTile> tiles);
 
     public abstract void onAllTileRefresh();
 